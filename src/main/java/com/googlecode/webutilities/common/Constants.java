@@ -71,6 +71,10 @@ public final class Constants {
 
     public static final int DEFAULT_COMPRESSION_SIZE_THRESHOLD = 128 * 1024; //128KB
 
+    public static final int DEFAULT_COMPRESSION_SAMPLE_SIZE = 4 * 1024; //4KB
+
+    public static final int DEFAULT_MAX_SAMPLED_RATIO = 95; //percent
+
     public static final String HTTP_VARY_HEADER = "Vary";
 
     public static final String HTTP_ACCEPT_ENCODING_HEADER = "Accept-Encoding";
@@ -95,6 +99,8 @@ public final class Constants {
 
     public static final String CONTENT_ENCODING_DEFLATE = "deflate";
 
+    public static final String CONTENT_ENCODING_BROTLI = "br";
+
     public static final String CONTENT_ENCODING_IDENTITY = "identity";
 
     public static final String HTTP_USER_AGENT_HEADER = "User-Agent";
@@ -122,7 +128,14 @@ public final class Constants {
 
     public static final Pattern CSS_IMG_URL_PATTERN = Pattern.compile("[uU][rR][lL]\\s*\\(\\s*['\"]?([^('|\")]*)['\"]?\\s*\\)");
 
-    //Map that holds Image path -> CSS files path that refers it
+    /**
+     * Map that holds CSS file path -> Image paths it refers, only kept by the deprecated
+     * {@link com.googlecode.webutilities.util.Utils#updateReferenceMap(String, String)}
+     *
+     * @deprecated references are kept in the dependency graph of
+     * {@link com.googlecode.webutilities.util.ResourceMetadataRegistry}
+     */
+    @Deprecated
     public static final Map<String, List<String>> CSS_IMG_REFERENCES = new HashMap<String, List<String>>();
 
     private Constants() {
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * ByteArrayOutputStream that gives access to its buffer, so that what is written can be read back without
+ * <code>toByteArray()</code> copying it.
+ * <p/>
+ * The buffer and the streams over it are valid only until something more is written or the stream is reset.
+ *
+ * @version 1.0
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream() {
+        super();
+    }
+
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * @return internal buffer, only the first {@link #size()} bytes of it are valid. Must not be modified.
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return stream reading the bytes written so far, without copying them
+     */
+    public synchronized InputStream newInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+}
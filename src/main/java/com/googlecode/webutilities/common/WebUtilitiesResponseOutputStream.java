@@ -31,10 +31,10 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class WebUtilitiesResponseOutputStream extends ServletOutputStream {
 
-    private ByteArrayOutputStream byteArrayOutputStream;
+    private ExposedByteArrayOutputStream byteArrayOutputStream;
 	
 	public WebUtilitiesResponseOutputStream(WebUtilitiesResponseWrapper wrapper){
-            	byteArrayOutputStream = new ByteArrayOutputStream();
+            	byteArrayOutputStream = new ExposedByteArrayOutputStream();
 	}
 	
 	public void write(int b) throws IOException {
@@ -59,6 +59,9 @@ public class WebUtilitiesResponseOutputStream extends ServletOutputStream {
 	public ByteArrayOutputStream getByteArrayOutputStream() {
 		return byteArrayOutputStream;
 	}
+	ExposedByteArrayOutputStream getExposedByteArrayOutputStream() {
+		return byteArrayOutputStream;
+	}
     void reset() {
         byteArrayOutputStream.reset();
     }
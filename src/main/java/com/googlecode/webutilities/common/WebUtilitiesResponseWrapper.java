@@ -21,6 +21,8 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -216,6 +218,41 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         return stream.getByteArrayOutputStream().toByteArray();
     }
 
+    /**
+     * @return stream reading the generated response without copying it
+     */
+    public InputStream getInputStream() {
+        this.flushWriter();
+        return stream.getExposedByteArrayOutputStream().newInputStream();
+    }
+
+    /**
+     * @return buffer holding the generated response, only the first {@link #getSize()} bytes are valid. Must not be modified.
+     */
+    public byte[] getBuffer() {
+        this.flushWriter();
+        return stream.getExposedByteArrayOutputStream().getBuffer();
+    }
+
+    /**
+     * @return number of bytes in the generated response
+     */
+    public int getSize() {
+        this.flushWriter();
+        return stream.getByteArrayOutputStream().size();
+    }
+
+    /**
+     * Writes the generated response without copying it
+     *
+     * @param outputStream - where to write
+     * @throws IOException - in case write fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        this.flushWriter();
+        stream.getByteArrayOutputStream().writeTo(outputStream);
+    }
+
     public WebUtilitiesResponseWrapper(HttpServletResponse response) {
         super(response);
         stream = new WebUtilitiesResponseOutputStream(this);
@@ -241,7 +278,7 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         response.setStatus(this.getStatus());
         this.flushWriter();
         try {
-            response.getOutputStream().write(this.getBytes());
+            this.writeTo(response.getOutputStream());
             response.getOutputStream().close();
         } catch (RuntimeException ex) {
             try{
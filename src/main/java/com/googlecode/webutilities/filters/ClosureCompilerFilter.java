@@ -16,6 +16,7 @@
 
 package com.googlecode.webutilities.filters;
 
+import static com.googlecode.webutilities.common.Constants.DEFAULT_CHARSET;
 import static com.googlecode.webutilities.common.Constants.EXT_CSS;
 import static com.googlecode.webutilities.common.Constants.EXT_JS;
 import static com.googlecode.webutilities.common.Constants.EXT_JSON;
@@ -25,10 +26,26 @@ import static com.googlecode.webutilities.util.Utils.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
 import com.google.javascript.jscomp.BasicErrorManager;
 import com.google.javascript.jscomp.CheckLevel;
 import com.google.javascript.jscomp.JSError;
@@ -48,15 +65,35 @@ import com.google.javascript.jscomp.Compiler;
 import com.google.javascript.jscomp.CompilerOptions;
 import com.google.javascript.jscomp.CodingConventions;
 import com.google.javascript.jscomp.JSSourceFile;
-import com.google.javascript.jscomp.LoggerErrorManager;
 import com.google.javascript.jscomp.Result;
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.filters.common.BackgroundMinifier;
 
 
 /**
  * Filter that performs minification using Google Closure Compiler
+ * <p/>
+ * Compiler options are built once from the init parameters and never modified afterwards. With <code>useCache</code>, compiled output is
+ * cached against the hash of the script and the options, and concurrent requests for the same uncached script wait for a
+ * single compilation. Compilations run on a bounded pool, if the pool is full or the compilation does not finish in
+ * time the script is served as is, not to be cached by browsers and proxies (the compilation still completes in the
+ * background and is cached). Scripts that
+ * fail to compile are cached too, so they are served as is without being compiled again. With <code>async</code> the
+ * request never waits, the script is served as is, not to be cached by browsers and proxies, until its compiled output
+ * is in the cache.
+ * <pre>
+ *  <b>compilationLevel</b> - WHITESPACE_ONLY, SIMPLE_OPTIMIZATIONS or ADVANCED_OPTIMIZATIONS. Default SIMPLE_OPTIMIZATIONS.
+ *  <b>useCache</b> - to cache the compiled output. Default false.
+ *  <b>cacheSize</b> - maximum number of compiled bytes to keep in the cache. Default 8MB.
+ *  <b>compileThreads</b> - maximum number of concurrent compilations. Default number of processors.
+ *  <b>compileQueueSize</b> - maximum number of compilations waiting for a thread. Default 64.
+ *  <b>compileTimeout</b> - milliseconds to wait for a compilation before serving the script as is. Default 10000.
+ *  <b>async</b> - do not wait for compilations, serve the script as is until compiled. Needs useCache. Default false.
+ * </pre>
+ * The {@link BackgroundMinifier} running the compilations is created on the first compilation. From then on, with its
+ * queue depth, latency and failure counts, it is available from the servlet context attribute <code>com.googlecode.webutilities.filters.ClosureCompilerFilter.minifier.&lt;filter-name&gt;</code>.
  *
  * @author rpatil
  * @version 1.0
@@ -65,25 +102,84 @@ public class ClosureCompilerFilter extends AbstractFilter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClosureCompilerFilter.class.getName());
 
-    CompilerOptions compilerOptions;
+    private static final String INIT_PARAM_USE_CACHE = "useCache";
 
-    JSSourceFile nullExtern = JSSourceFile.fromCode("/dev/null", "");
+    private static final String INIT_PARAM_CACHE_SIZE = "cacheSize";
+
+    private static final String INIT_PARAM_COMPILE_THREADS = "compileThreads";
+
+    private static final String INIT_PARAM_COMPILE_QUEUE_SIZE = "compileQueueSize";
+
+    private static final String INIT_PARAM_COMPILE_TIMEOUT = "compileTimeout";
+
+    private static final String INIT_PARAM_ASYNC = "async";
+
+    public static final String MINIFIER_ATTRIBUTE_PREFIX = ClosureCompilerFilter.class.getName() + ".minifier.";
+
+    private static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    private CompilerOptions compilerOptions; //never modified after init, cloned for each compilation
+
+    private String optionsKey; //part of the cache key
+
+    private final JSSourceFile nullExtern = JSSourceFile.fromCode("/dev/null", "");
+
+    private static final String FAILED = "\u0000failed\u0000"; //prefixes the original source of failed compilations
+
+    private Cache<String, String> cache; //source hash + options -> compiled source, or FAILED + original source
+
+    private volatile BackgroundMinifier minifier; //created on first compilation
+
+    private int compileThreads;
+
+    private int compileQueueSize;
+
+    private long compileTimeout = 10000;
+
+    private boolean async = false;
+
+    private Charset charset = Charset.forName(DEFAULT_CHARSET);
 
     private static final String PROCESSED_ATTR = YUIMinFilter.class.getName() + ".MINIFIED";
 
     public void init(FilterConfig config) throws ServletException {
         super.init(config);
         compilerOptions = buildCompilerOptionsFromConfig(config);
-        LOGGER.debug("Filter initialized with: {}", compilerOptions.toString());
+        optionsKey = buildOptionsKey(config);
+        String charsetName = config.getInitParameter("charset");
+        if (charsetName != null && Charset.isSupported(charsetName)) {
+            charset = Charset.forName(charsetName);
+        }
+        long cacheSize = readLong(config.getInitParameter(INIT_PARAM_CACHE_SIZE), DEFAULT_CACHE_SIZE);
+        cache = readBoolean(config.getInitParameter(INIT_PARAM_USE_CACHE), false) && cacheSize > 0 ? buildCache(cacheSize) : null;
+        compileThreads = Math.max(1, readInt(config.getInitParameter(INIT_PARAM_COMPILE_THREADS), Runtime.getRuntime().availableProcessors()));
+        compileQueueSize = Math.max(1, readInt(config.getInitParameter(INIT_PARAM_COMPILE_QUEUE_SIZE), 64));
+        compileTimeout = readLong(config.getInitParameter(INIT_PARAM_COMPILE_TIMEOUT), compileTimeout);
+        async = cache != null && readBoolean(config.getInitParameter(INIT_PARAM_ASYNC), async);
+        LOGGER.debug("Filter initialized with: {}, cache: {}, threads: {}, queue: {}, timeout: {}ms, async: {}", new Object[]{
+            optionsKey, cache != null, compileThreads, compileQueueSize, compileTimeout, async});
+    }
+
+    private BackgroundMinifier getMinifier() {
+        BackgroundMinifier minifier = this.minifier;
+        if (minifier == null) {
+            synchronized (this) {
+                minifier = this.minifier;
+                if (minifier == null) {
+                    minifier = new BackgroundMinifier("closure-compiler", compileThreads, compileQueueSize);
+                    filterConfig.getServletContext().setAttribute(MINIFIER_ATTRIBUTE_PREFIX + filterConfig.getFilterName(), minifier);
+                    this.minifier = minifier;
+                }
+            }
+        }
+        return minifier;
     }
 
     //init
     @Override
     public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
 
-        //build compiler options
-        //create compiler object
-        //compile, get result
+        //compile (or take from cache), get result
         //write result to output stream
         HttpServletRequest rq = (HttpServletRequest) req;
 
@@ -107,41 +203,24 @@ public class ClosureCompilerFilter extends AbstractFilter {
             Writer out = resp.getWriter();
             String mime = wrapper.getContentType();
             if (!isMIMEAccepted(mime)) {
-                out.write(wrapper.getContents());
+                copy(wrapper, out);
                 out.flush();
-                LOGGER.trace("Not minifying. Mime {) not allowed.", mime);
+                LOGGER.trace("Not minifying. Mime {} not allowed.", mime);
                 return;
             }
 
-            ByteArrayInputStream is = new ByteArrayInputStream(wrapper.getBytes());
-
             //work on generated response
             if (lowerUrl.endsWith(EXT_JS) || lowerUrl.endsWith(EXT_JSON) || (wrapper.getContentType() != null && (wrapper.getContentType().equals(MIME_JS) || wrapper.getContentType().equals(MIME_JSON)))) {
-                Compiler closureCompiler = new Compiler(new BasicErrorManager() {
-                    @Override
-                    public void println(CheckLevel checkLevel, JSError jsError) {
-                        if (checkLevel.equals(CheckLevel.WARNING)) {
-                            LOGGER.warn("Warning. {}", jsError);
-                        } else if (checkLevel.equals(CheckLevel.ERROR)) {
-                            LOGGER.error("Error. {}", jsError);
-                        }
-                    }
-
-                    @Override
-                    protected void printSummary() {
-                        //!TODO implementation
-                    }
-                });
                 LOGGER.trace("Compressing JS/JSON type");
-                CompilationLevel level = CompilationLevel.SIMPLE_OPTIMIZATIONS;
-                level.setOptionsForCompilationLevel(compilerOptions);
-                Result result = closureCompiler.compile(nullExtern, JSSourceFile.fromInputStream(null, is), compilerOptions);
-                if (result.success) {
-                    out.append(closureCompiler.toSource());
+                String compiled = this.compile(url, wrapper, rs);
+                if (compiled != null) {
+                    out.write(compiled);
+                } else {
+                    copy(wrapper, out);
                 }
             } else {
                 LOGGER.trace("Not Compressing anything.");
-                out.write(wrapper.getContents());
+                copy(wrapper, out);
             }
 
             out.flush();
@@ -151,11 +230,145 @@ public class ClosureCompilerFilter extends AbstractFilter {
         }
     }
 
+    //decodes straight from the buffered response, no copy of the whole body
+    private void copy(WebUtilitiesResponseWrapper wrapper, Writer out) throws IOException {
+        CharStreams.copy(new InputStreamReader(wrapper.getInputStream(), charset), out);
+    }
+
+    /**
+     * @param url      - url of the script, for logging
+     * @param wrapper  - holding the script to be compiled, not modified anymore
+     * @param response - response to be sent, kept from being cached if the script is served as is for now
+     * @return compiled script or null if it is to be served as is (compilation failed, timed out or was rejected)
+     * @throws IOException - if interrupted while waiting for compilation
+     */
+    private String compile(final String url, WebUtilitiesResponseWrapper wrapper, HttpServletResponse response) throws IOException {
+        final byte[] source = wrapper.getBuffer();
+        final int size = wrapper.getSize();
+        final String key = optionsKey + ":" + Hashing.murmur3_128().hashBytes(source, 0, size).toString();
+        if (cache != null) {
+            String compiled = cache.getIfPresent(key);
+            if (compiled != null && compiled.startsWith(FAILED)) {
+                LOGGER.trace("Compilation of {} failed before. Serving it as is.", url);
+                return null;
+            } else if (compiled != null) {
+                LOGGER.trace("Compiled source found in cache for {}", url);
+                return compiled;
+            }
+        }
+        Future<String> task = getMinifier().submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                String compiled = null;
+                try {
+                    compiled = doCompile(url, source, size);
+                    return compiled;
+                } finally {
+                    if (cache != null) {
+                        //failures weigh as much as the source, so they stay as long as a compiled one would
+                        cache.put(key, compiled != null ? compiled : FAILED + new String(source, 0, size, charset));
+                    }
+                }
+            }
+        });
+        if (task == null) {
+            LOGGER.warn("Compile queue is full. Serving {} as is.", url);
+            preventCaching(response, wrapper);
+            return null;
+        }
+        if (async && !task.isDone()) {
+            LOGGER.trace("Compilation of {} queued. Serving it as is.", url);
+            preventCaching(response, wrapper); //compiled one is served once ready
+            return null;
+        }
+        try {
+            return task.get(compileTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            LOGGER.warn("Compilation of {} did not finish in {}ms. Serving it as is.", url, compileTimeout);
+            preventCaching(response, wrapper); //compiled one is served once ready
+        } catch (ExecutionException ex) {
+            LOGGER.error("Compilation of {} failed. {}", url, ex.getCause());
+        } catch (CancellationException ex) {
+            LOGGER.warn("Compilation of {} was cancelled. Serving it as is.", url);
+            preventCaching(response, wrapper);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compiling " + url);
+        }
+        return null;
+    }
+
+    private String doCompile(String name, byte[] source, int size) throws IOException, CloneNotSupportedException {
+        Compiler closureCompiler = new Compiler(new BasicErrorManager() {
+            @Override
+            public void println(CheckLevel checkLevel, JSError jsError) {
+                if (checkLevel.equals(CheckLevel.WARNING)) {
+                    LOGGER.warn("Warning. {}", jsError);
+                } else if (checkLevel.equals(CheckLevel.ERROR)) {
+                    LOGGER.error("Error. {}", jsError);
+                }
+            }
+
+            @Override
+            protected void printSummary() {
+                //!TODO implementation
+            }
+        });
+        //compiler may tweak the options it is given, so give it a copy
+        CompilerOptions options = (CompilerOptions) compilerOptions.clone();
+        Result result = closureCompiler.compile(nullExtern, JSSourceFile.fromInputStream(name, new ByteArrayInputStream(source, 0, size)), options);
+        return result.success ? closureCompiler.toSource() : null;
+    }
+
+    private static Cache<String, String> buildCache(long maxBytes) {
+        return CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String key, String compiled) {
+                    return (key.length() + compiled.length()) * 2;
+                }
+            }).build();
+    }
+
+    @Override
+    public void destroy() {
+        BackgroundMinifier minifier;
+        synchronized (this) {
+            minifier = this.minifier;
+            this.minifier = null;
+        }
+        if (minifier != null) {
+            LOGGER.debug("Compilation stats: {}", minifier);
+            minifier.shutdown();
+            if (filterConfig != null) {
+                filterConfig.getServletContext().removeAttribute(MINIFIER_ATTRIBUTE_PREFIX + filterConfig.getFilterName());
+            }
+        }
+        if (cache != null) {
+            LOGGER.debug("Compiled source cache stats: {}", cache.stats());
+            cache.invalidateAll();
+        }
+        super.destroy();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String buildOptionsKey(FilterConfig config) {
+        List<String> names = Collections.list((Enumeration<String>) config.getInitParameterNames());
+        Collections.sort(names);
+        List<String> options = new ArrayList<String>(names.size());
+        for (String name : names) {
+            options.add(name.trim() + "=" + config.getInitParameter(name));
+        }
+        return options.toString();
+    }
+
     @SuppressWarnings("unchecked")
     private static CompilerOptions buildCompilerOptionsFromConfig(FilterConfig config) {
 
         CompilerOptions compilerOptions = new CompilerOptions();
         compilerOptions.setCodingConvention(CodingConventions.getDefault());
+        CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel(compilerOptions); //default
         //List<String> processedArgs = Lists.newArrayList();
         Enumeration<String> initParams = config.getInitParameterNames();
         while (initParams.hasMoreElements()) {
@@ -182,4 +395,3 @@ public class ClosureCompilerFilter extends AbstractFilter {
     }
 
 }
-
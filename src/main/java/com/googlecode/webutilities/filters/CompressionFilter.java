@@ -17,13 +17,15 @@
  */
 package com.googlecode.webutilities.filters;
 
-import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_IDENTITY;
+import static com.googlecode.webutilities.common.Constants.DEFAULT_COMPRESSION_SAMPLE_SIZE;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_COMPRESSION_SIZE_THRESHOLD;
+import static com.googlecode.webutilities.common.Constants.DEFAULT_MAX_SAMPLED_RATIO;
 import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_ENCODING_HEADER;
 import static com.googlecode.webutilities.util.Utils.*;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,8 +40,13 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.filters.compression.AcceptEncoding;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletRequestWrapper;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletResponseWrapper;
+import com.googlecode.webutilities.filters.compression.AdaptiveCompressionPolicy;
+import com.googlecode.webutilities.filters.compression.CompressedResponseCache;
+import com.googlecode.webutilities.filters.compression.CompressionProfiles;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
 import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
 
 
@@ -48,6 +55,43 @@ import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
  * and also respond with compressed contents supporting gzip, compress or
  * deflate compression encoding.
  * <p/>
+ * Init parameters
+ * <pre>
+ *  <b>compressionThreshold</b> - minimum response size in bytes to be compressed.
+ *  <b>compressionProfiles</b> - level, strategy and buffer size per MIME type and size band, see {@link CompressionProfiles}.
+ *      eg. <code>mime=application/json,minSize=1m,level=1; mime=text/.*,level=9</code>. Default JDK default level.
+ *  <b>encodings</b> - more content encodings to be supported, comma separated <code>encoding:factory-class</code>
+ *      eg. <code>br:com.example.BrotliEncodedStreamsFactory</code>, factory classes extend {@link EncodedStreamsFactory}.
+ *      Factories listed as <code>ServiceLoader</code> providers are registered as well, see {@link EncodedStreamsFactory}.
+ *  <b>useCache</b> - to cache compressed bodies of responses having strong ETag and serve them from cache, see
+ *      {@link CompressedResponseCache}. Default false.
+ *  <b>cacheSize</b> - maximum number of compressed bytes to keep in the cache. Default 16MB.
+ *  <b>maxCachedSize</b> - maximum compressed bytes of a single response to be cached. Default 1MB.
+ *  <b>maxInflatedSize</b> - maximum bytes a gzip/deflate encoded request body may inflate to, reading it beyond fails
+ *      with IOException. Default 10MB, 0 for no limit.
+ *  <b>maxInflateRatio</b> - maximum times an encoded request body may inflate (checked after 64KB). Default 100, 0 for no limit.
+ *  <b>sampleSize</b> - bytes compressed (at the fastest level) before compressing a response, to tell if it compresses
+ *      well. Default 4KB, 0 not to sample.
+ *  <b>maxSampledRatio</b> - percentage of its size the sample may compress to, for the response to be compressed.
+ *      Responses not compressing better (eg. images or archives served as application/octet-stream) are sent as is.
+ *      Default 95.
+ *  <b>adaptiveThreshold</b> - to adapt the threshold to the CPU time compression takes, per MIME type, see
+ *      {@link AdaptiveCompressionPolicy}. <code>compressionThreshold</code> is then the most it is raised to. Default false.
+ *  <b>minCompressionThreshold</b> - threshold used by <code>adaptiveThreshold</code> while within the CPU budget. Default 1KB.
+ *  <b>cpuBudget</b> - percentage of all processors compression may take with <code>adaptiveThreshold</code>. Default 25.
+ *  <b>compressorPoolSize</b> - maximum idle zlib deflaters/inflaters kept for reuse per level (and 16 times as many 4KB
+ *      buffer chunks), see {@link CompressorPool}. The pool is shared by all the filters loaded by the same class loader
+ *      (all the web applications, when webutilities is in the container's lib), so the value set by the filter
+ *      initialized last applies to all of them. Filters not setting it leave the pool as is.
+ * </pre>
+ * Response encoding is negotiated by the q-values of Accept-Encoding, see {@link AcceptEncoding}.
+ * The pool is available, for its occupancy metrics, from the servlet context attribute
+ * <code>com.googlecode.webutilities.filters.compression.CompressorPool</code>. With <code>useCache</code>, the cache
+ * (with its hit/miss statistics) is available from the servlet context attribute
+ * <code>com.googlecode.webutilities.filters.compression.CompressedResponseCache.&lt;filter-name&gt;</code>. With
+ * <code>adaptiveThreshold</code>, the policy (with its load and thresholds) is available from the servlet context
+ * attribute <code>com.googlecode.webutilities.filters.compression.AdaptiveCompressionPolicy.&lt;filter-name&gt;</code>.
+ * <p/>
  * Visit http://code.google.com/p/webutilities/wiki/CompressionFilter for more details.
  *
  * @author rpatil
@@ -80,6 +124,75 @@ public class CompressionFilter extends AbstractFilter {
      */
     private static final String INIT_PARAM_COMPRESSION_THRESHOLD = "compressionThreshold";
 
+    /**
+     * Pluggable encodings
+     */
+    private static final String INIT_PARAM_ENCODINGS = "encodings";
+
+    /**
+     * Compression profiles
+     */
+    private static final String INIT_PARAM_COMPRESSION_PROFILES = "compressionProfiles";
+
+    private CompressionProfiles compressionProfiles = CompressionProfiles.DEFAULT;
+
+    /**
+     * Request decoding limits
+     */
+    private static final String INIT_PARAM_MAX_INFLATED_SIZE = "maxInflatedSize";
+
+    private static final String INIT_PARAM_MAX_INFLATE_RATIO = "maxInflateRatio";
+
+    private long maxInflatedSize = 10 * 1024 * 1024;
+
+    private int maxInflateRatio = 100;
+
+    /**
+     * Compressed response cache
+     */
+    private static final String INIT_PARAM_USE_CACHE = "useCache";
+
+    private static final String INIT_PARAM_CACHE_SIZE = "cacheSize";
+
+    private static final String INIT_PARAM_MAX_CACHED_SIZE = "maxCachedSize";
+
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_CACHED_SIZE = 1024 * 1024;
+
+    public static final String CACHE_ATTRIBUTE_PREFIX = CompressedResponseCache.class.getName() + ".";
+
+    private CompressedResponseCache compressedResponseCache; //null if not used
+
+    /**
+     * Compressibility sampling
+     */
+    private static final String INIT_PARAM_SAMPLE_SIZE = "sampleSize";
+
+    private static final String INIT_PARAM_MAX_SAMPLED_RATIO = "maxSampledRatio";
+
+    private int sampleSize = DEFAULT_COMPRESSION_SAMPLE_SIZE;
+
+    private int maxSampledRatio = DEFAULT_MAX_SAMPLED_RATIO;
+
+    /**
+     * Adaptive threshold
+     */
+    private static final String INIT_PARAM_ADAPTIVE_THRESHOLD = "adaptiveThreshold";
+
+    private static final String INIT_PARAM_MIN_COMPRESSION_THRESHOLD = "minCompressionThreshold";
+
+    private static final String INIT_PARAM_CPU_BUDGET = "cpuBudget";
+
+    public static final String ADAPTIVE_POLICY_ATTRIBUTE_PREFIX = AdaptiveCompressionPolicy.class.getName() + ".";
+
+    private AdaptiveCompressionPolicy adaptivePolicy; //null if not used
+
+    /**
+     * Idle deflaters/inflaters to keep
+     */
+    private static final String INIT_PARAM_COMPRESSOR_POOL_SIZE = "compressorPoolSize";
+
     /* (non-Javadoc)
      * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
      */
@@ -92,8 +205,87 @@ public class CompressionFilter extends AbstractFilter {
         if (compressionMinSize > 0) { // priority given to configured value
             this.compressionThreshold = compressionMinSize;
         }
-        LOGGER.trace("Filter initialized with: {}:{}", new Object[]{
-            INIT_PARAM_COMPRESSION_THRESHOLD, String.valueOf(this.compressionThreshold)});
+
+        registerEncodings(filterConfig.getInitParameter(INIT_PARAM_ENCODINGS));
+
+        try {
+            this.compressionProfiles = CompressionProfiles.parse(filterConfig.getInitParameter(INIT_PARAM_COMPRESSION_PROFILES));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("Invalid " + INIT_PARAM_COMPRESSION_PROFILES + ". " + ex.getMessage(), ex);
+        }
+
+        CompressorPool pool = CompressorPool.getInstance(); //shared, not only by this filter
+        if (filterConfig.getInitParameter(INIT_PARAM_COMPRESSOR_POOL_SIZE) != null) {
+            pool.setMaxIdle(readInt(filterConfig.getInitParameter(INIT_PARAM_COMPRESSOR_POOL_SIZE), pool.getMaxIdle()));
+        }
+        filterConfig.getServletContext().setAttribute(CompressorPool.class.getName(), pool);
+
+        this.maxInflatedSize = readLong(filterConfig.getInitParameter(INIT_PARAM_MAX_INFLATED_SIZE), this.maxInflatedSize);
+        this.maxInflateRatio = readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_INFLATE_RATIO), this.maxInflateRatio);
+
+        long cacheSize = readLong(filterConfig.getInitParameter(INIT_PARAM_CACHE_SIZE), DEFAULT_CACHE_SIZE);
+        if (readBoolean(filterConfig.getInitParameter(INIT_PARAM_USE_CACHE), false) && cacheSize > 0) {
+            this.compressedResponseCache = new CompressedResponseCache(cacheSize,
+                readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_CACHED_SIZE), DEFAULT_MAX_CACHED_SIZE));
+            filterConfig.getServletContext().setAttribute(CACHE_ATTRIBUTE_PREFIX + filterConfig.getFilterName(), this.compressedResponseCache);
+        }
+
+        this.sampleSize = readInt(filterConfig.getInitParameter(INIT_PARAM_SAMPLE_SIZE), this.sampleSize);
+        this.maxSampledRatio = readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_SAMPLED_RATIO), this.maxSampledRatio);
+
+        if (readBoolean(filterConfig.getInitParameter(INIT_PARAM_ADAPTIVE_THRESHOLD), false)) {
+            this.adaptivePolicy = new AdaptiveCompressionPolicy(
+                readInt(filterConfig.getInitParameter(INIT_PARAM_MIN_COMPRESSION_THRESHOLD), AdaptiveCompressionPolicy.DEFAULT_MIN_THRESHOLD),
+                this.compressionThreshold,
+                readInt(filterConfig.getInitParameter(INIT_PARAM_CPU_BUDGET), AdaptiveCompressionPolicy.DEFAULT_CPU_BUDGET_PERCENT));
+            filterConfig.getServletContext().setAttribute(ADAPTIVE_POLICY_ATTRIBUTE_PREFIX + filterConfig.getFilterName(), this.adaptivePolicy);
+        }
+
+        LOGGER.trace("Filter initialized with: {}:{}, {}:{}, {}:{}, {}:{}, {}:{}, {}:{}, {}:{}, {}:{}, {}:{}, encodings:{}", new Object[]{
+            INIT_PARAM_COMPRESSION_THRESHOLD, String.valueOf(this.compressionThreshold),
+            INIT_PARAM_MAX_INFLATED_SIZE, String.valueOf(this.maxInflatedSize),
+            INIT_PARAM_MAX_INFLATE_RATIO, String.valueOf(this.maxInflateRatio),
+            INIT_PARAM_COMPRESSION_PROFILES, this.compressionProfiles,
+            INIT_PARAM_USE_CACHE, String.valueOf(this.compressedResponseCache != null),
+            INIT_PARAM_SAMPLE_SIZE, String.valueOf(this.sampleSize),
+            INIT_PARAM_MAX_SAMPLED_RATIO, String.valueOf(this.maxSampledRatio),
+            INIT_PARAM_ADAPTIVE_THRESHOLD, this.adaptivePolicy,
+            INIT_PARAM_COMPRESSOR_POOL_SIZE, String.valueOf(pool.getMaxIdle()),
+            EncodedStreamsFactory.getPreferredEncodings()});
+    }
+
+    private static void registerEncodings(String encodings) throws ServletException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader != null) {
+            EncodedStreamsFactory.loadProviders(classLoader);
+        }
+        if (encodings == null) return;
+        for (String pair : encodings.split("\\s*,\\s*")) {
+            int colon = pair.indexOf(':');
+            if (colon <= 0) {
+                throw new ServletException("Invalid " + INIT_PARAM_ENCODINGS + " entry: " + pair);
+            }
+            String encoding = pair.substring(0, colon).trim();
+            String className = pair.substring(colon + 1).trim();
+            String failure = "Failed to register " + encoding + " encoding using " + className;
+            try {
+                Class<? extends EncodedStreamsFactory> factoryClass = Class.forName(className, true,
+                    classLoader != null ? classLoader : CompressionFilter.class.getClassLoader()).asSubclass(EncodedStreamsFactory.class);
+                EncodedStreamsFactory.register(encoding, factoryClass.getDeclaredConstructor().newInstance());
+            } catch (ClassNotFoundException ex) {
+                throw new ServletException(failure + ", class not found.", ex);
+            } catch (ClassCastException ex) {
+                throw new ServletException(failure + ", it does not extend " + EncodedStreamsFactory.class.getName(), ex);
+            } catch (NoSuchMethodException ex) {
+                throw new ServletException(failure + ", it has no constructor without arguments.", ex);
+            } catch (InstantiationException ex) {
+                throw new ServletException(failure + ", it is abstract.", ex);
+            } catch (IllegalAccessException ex) {
+                throw new ServletException(failure + ", its constructor is not accessible.", ex);
+            } catch (InvocationTargetException ex) {
+                throw new ServletException(failure + ", its constructor failed.", ex.getCause());
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -109,7 +301,13 @@ public class CompressionFilter extends AbstractFilter {
 
         request.setAttribute(PROCESSED_ATTR, Boolean.TRUE);
 
-        chain.doFilter(req, resp);
+        try {
+            chain.doFilter(req, resp);
+        } finally {
+            if (req instanceof CompressedHttpServletRequestWrapper) {
+                ((CompressedHttpServletRequestWrapper) req).close(); //releases the inflater
+            }
+        }
 
         if (resp instanceof CompressedHttpServletResponseWrapper) {
 
@@ -135,6 +333,24 @@ public class CompressionFilter extends AbstractFilter {
 
     }
 
+    @Override
+    public void destroy() {
+        if (this.compressedResponseCache != null) {
+            LOGGER.debug("Compressed response cache stats: {}", this.compressedResponseCache.getStats());
+            if (this.filterConfig != null) {
+                this.filterConfig.getServletContext().removeAttribute(CACHE_ATTRIBUTE_PREFIX + this.filterConfig.getFilterName());
+            }
+            this.compressedResponseCache.invalidateAll();
+        }
+        if (this.adaptivePolicy != null) {
+            LOGGER.debug("Adaptive compression policy: {}", this.adaptivePolicy);
+            if (this.filterConfig != null) {
+                this.filterConfig.getServletContext().removeAttribute(ADAPTIVE_POLICY_ATTRIBUTE_PREFIX + this.filterConfig.getFilterName());
+            }
+        }
+        super.destroy();
+    }
+
     private ServletRequest getRequest(ServletRequest request) {
 
         if (!(request instanceof HttpServletRequest)) {
@@ -158,31 +374,9 @@ public class CompressionFilter extends AbstractFilter {
 
         LOGGER.debug("Decompressing request: content encoding : {}", contentEncoding);
 
-        return new CompressedHttpServletRequestWrapper(httpRequest, EncodedStreamsFactory.getFactoryForContentEncoding(contentEncoding));
-
-    }
+        return new CompressedHttpServletRequestWrapper(httpRequest, EncodedStreamsFactory.getFactoryForContentEncoding(contentEncoding),
+            maxInflatedSize, maxInflateRatio);
 
-    private String getAppropriateContentEncoding(String acceptEncoding) {
-        if (acceptEncoding == null) return null;
-
-        String contentEncoding = null;
-        if (CONTENT_ENCODING_IDENTITY.equals(acceptEncoding.trim())) {
-            return contentEncoding; //no encoding to be applied
-        }
-
-        String[] clientAccepts = acceptEncoding.trim().split("\\s*,\\s*");
-
-        //!TODO select best encoding (based on q) when multiple encoding are accepted by client
-        //@see http://stackoverflow.com/questions/3225136/http-what-is-the-preferred-accept-encoding-for-gzip-deflate
-        for (String accepts : clientAccepts) {
-            if (CONTENT_ENCODING_IDENTITY.equals(accepts)) {
-                return contentEncoding;
-            } else if (EncodedStreamsFactory.SUPPORTED_ENCODINGS.containsKey(accepts)) {
-                contentEncoding = accepts; //get first matching encoding
-                break;
-            }
-        }
-        return contentEncoding;
     }
 
     private ServletResponse getResponse(ServletRequest request, ServletResponse response) {
@@ -202,7 +396,7 @@ public class CompressionFilter extends AbstractFilter {
 
         String acceptEncoding = httpRequest.getHeader(HTTP_ACCEPT_ENCODING_HEADER);
 
-        String contentEncoding = getAppropriateContentEncoding(acceptEncoding);
+        String contentEncoding = AcceptEncoding.negotiate(acceptEncoding);
 
         if (contentEncoding == null) {
             LOGGER.trace("No Compression: Accept encoding is : {}", acceptEncoding);
@@ -225,7 +419,13 @@ public class CompressionFilter extends AbstractFilter {
 
         LOGGER.debug("Compressing response: content encoding : {}", contentEncoding);
 
-        return new CompressedHttpServletResponseWrapper(httpResponse, encodedStreamsFactory, contentEncoding, compressionThreshold, this);
+        CompressedHttpServletResponseWrapper wrapper = new CompressedHttpServletResponseWrapper(httpResponse, encodedStreamsFactory, contentEncoding, compressionThreshold, this);
+        wrapper.setCompressionProfiles(compressionProfiles);
+        String queryString = httpRequest.getQueryString();
+        wrapper.setCompressedResponseCache(compressedResponseCache, queryString != null ? requestURI + '?' + queryString : requestURI);
+        wrapper.setAdaptivePolicy(adaptivePolicy);
+        wrapper.setCompressibilitySampling(sampleSize, maxSampledRatio);
+        return wrapper;
     }
 
 }
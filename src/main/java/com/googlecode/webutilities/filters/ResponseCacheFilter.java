@@ -42,6 +42,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
 
 
 /**
@@ -154,12 +155,20 @@ public class ResponseCacheFilter extends AbstractFilter {
         if (cache == null) // fixme: checking for letting the unit test happy but nothing.
             cache = buildCache(reloadTime);
 
+        ResourceMetadataRegistry.acquire(filterConfig.getServletContext()); //for resources modified checks
+
         LOGGER.debug("Cache Filter initialized with: {}:{},\n{}:{}",
                 new Object[]{INIT_PARAM_RELOAD_TIME, String.valueOf(reloadTime),
                 INIT_PARAM_RESET_TIME ,String.valueOf(resetTime)});
 
     }
 
+    @Override
+    public void destroy() {
+        ResourceMetadataRegistry.release(filterConfig.getServletContext());
+        super.destroy();
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
 
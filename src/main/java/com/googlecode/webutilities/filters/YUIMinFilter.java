@@ -25,10 +25,14 @@ import static com.googlecode.webutilities.common.Constants.MIME_JS;
 import static com.googlecode.webutilities.common.Constants.MIME_JSON;
 import static com.googlecode.webutilities.util.Utils.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +45,17 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
 import com.googlecode.webutilities.common.Constants;
 import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
+import com.googlecode.webutilities.filters.common.BackgroundMinifier;
 import com.yahoo.platform.yui.compressor.CssCompressor;
 import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
 
@@ -96,9 +108,23 @@ import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
  *  <b>noMunge</b> - equivalent to YUICompressor --nomunge. Minify only, do not obfuscate. Default false.
  *  <b>preserveSemi</b> - equivalent to YUICompressor --preserve-semi. Preserve all semicolons. Default false.
  *  <b>disableOptimizations</b> - equivalent to YUICompressor --disable-optimizations. Disable all micro optimizations. Default false.
- *  <b>useCache</b> - to cache the earlier minified contents and serve from cache. Default true.
+ *  <b>useCache</b> - to cache the earlier minified contents and serve from cache. Default false.
+ *  <b>cacheSize</b> - maximum number of minified bytes to keep in the cache, least recently used are evicted first. Default 8MB.
+ *  <b>async</b> - minify in background and serve the original content, not to be cached by browsers and proxies, until the minified one is in the cache. Needs useCache. Default false.
+ *  <b>minifyThreads</b> - maximum number of concurrent background minifications. Default 1.
+ *  <b>minifyQueueSize</b> - maximum number of background minifications waiting for a thread. Default 64.
  *  <b>charset</b> - to use specified charset
  * </pre>
+ * <h3>Cache</h3>
+ * <p>
+ * With <code>useCache</code>, minified output is cached against the hash of the response bytes along with the compressor options, so identical
+ * responses are minified only once whichever URL they come from. Content that fails to minify is cached as such, and
+ * served as is without being minified again. Statistics of the cache (hits, misses, evictions)
+ * are available from the servlet context attribute <code>com.googlecode.webutilities.filters.YUIMinFilter.cacheStats.&lt;filter-name&gt;</code>
+ * as a <code>com.google.common.base.Supplier</code> of <code>com.google.common.cache.CacheStats</code>. With <code>async</code>,
+ * the {@link BackgroundMinifier} (queue depth, latency, failures) is available from the servlet context attribute
+ * <code>com.googlecode.webutilities.filters.YUIMinFilter.minifier.&lt;filter-name&gt;</code>.
+ * </p>
  * <h3>Dependency</h3>
  * <p>The <code>YUIMinFilter</code> depends on servlet-api and YUICompressor jar to be in the classpath.</p>
  * <p><b>servlet-api.jar</b> - Must be already present in your webapp classpath</p>
@@ -127,6 +153,22 @@ public class YUIMinFilter extends AbstractFilter {
 
     private static final String INIT_PARAM_CHARSET = "charset";
 
+    private static final String INIT_PARAM_USE_CACHE = "useCache";
+
+    private static final String INIT_PARAM_CACHE_SIZE = "cacheSize";
+
+    private static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    private static final String INIT_PARAM_ASYNC = "async";
+
+    private static final String INIT_PARAM_MINIFY_THREADS = "minifyThreads";
+
+    private static final String INIT_PARAM_MINIFY_QUEUE_SIZE = "minifyQueueSize";
+
+    public static final String MINIFIER_ATTRIBUTE_PREFIX = YUIMinFilter.class.getName() + ".minifier.";
+
+    public static final String CACHE_STATS_ATTRIBUTE_PREFIX = YUIMinFilter.class.getName() + ".cacheStats.";
+
     private int lineBreak = -1;
 
     private boolean noMunge = false;
@@ -135,6 +177,18 @@ public class YUIMinFilter extends AbstractFilter {
 
     private boolean disableOptimizations = false;
 
+    private boolean useCache = false;
+
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
+    private String options; //compressor options, part of the cache key
+
+    private static final String FAILED = "\u0000failed\u0000"; //prefixes the original content of failed minifications
+
+    private Cache<String, String> cache; //content hash -> minified content, or FAILED + original content
+
+    private BackgroundMinifier minifier; //null unless async
+
     private static final String PROCESSED_ATTR = YUIMinFilter.class.getName() + ".MINIFIED";
 
 
@@ -166,26 +220,22 @@ public class YUIMinFilter extends AbstractFilter {
             Writer out = resp.getWriter();
             String mime = wrapper.getContentType();
             if (!isMIMEAccepted(mime)) {
-                out.write(wrapper.getContents());
+                this.copy(wrapper, out);
                 out.flush();
                 LOGGER.trace("Not minifying. Mime {} not allowed", mime);
                 return;
             }
 
-            StringReader sr = new StringReader(new String(wrapper.getBytes(), this.charset));
-
             //work on generated response
             if (lowerUrl.endsWith(EXT_JS) || lowerUrl.endsWith(EXT_JSON) || (wrapper.getContentType() != null && (wrapper.getContentType().equals(MIME_JS) || wrapper.getContentType().equals(MIME_JSON)))) {
-                JavaScriptCompressor compressor = new JavaScriptCompressor(sr, null);
                 LOGGER.trace("Compressing JS/JSON type");
-                compressor.compress(out, this.lineBreak, !this.noMunge, false, this.preserveSemi, this.disableOptimizations);
+                this.minify(url, wrapper, rs, true, out);
             } else if (lowerUrl.endsWith(EXT_CSS) || (wrapper.getContentType() != null && (wrapper.getContentType().equals(MIME_CSS)))) {
-                CssCompressor compressor = new CssCompressor(sr);
                 LOGGER.trace("Compressing CSS type");
-                compressor.compress(out, this.lineBreak);
+                this.minify(url, wrapper, rs, false, out);
             } else {
                 LOGGER.trace("Not Compressing anything.");
-                out.write(wrapper.getContents());
+                this.copy(wrapper, out);
             }
 
             out.flush();
@@ -195,6 +245,93 @@ public class YUIMinFilter extends AbstractFilter {
         }
     }
 
+    //decodes straight from the buffered response, no copy of the whole body
+    private void copy(WebUtilitiesResponseWrapper wrapper, Writer out) throws IOException {
+        CharStreams.copy(new InputStreamReader(wrapper.getInputStream(), this.charset), out);
+    }
+
+    /**
+     * Writes minified content, or the content as is if it is being minified in background
+     */
+    private void minify(String url, WebUtilitiesResponseWrapper wrapper, HttpServletResponse response, final boolean js, Writer out) throws IOException {
+        if (this.cache == null) {
+            this.compress(new InputStreamReader(wrapper.getInputStream(), this.charset), js, out);
+            return;
+        }
+        final byte[] buffer = wrapper.getBuffer();
+        final int size = wrapper.getSize();
+        final String key = (js ? "js:" : "css:") + this.options + ":" + Hashing.murmur3_128().hashBytes(buffer, 0, size).toString();
+        String minified = this.cache.getIfPresent(key);
+        if (minified != null && minified.startsWith(FAILED)) {
+            LOGGER.trace("Minification of {} failed before. Serving it as is.", url);
+            this.copy(wrapper, out);
+            return;
+        } else if (minified != null) {
+            LOGGER.trace("Minified content found in cache. {}", key);
+        } else if (this.minifier != null) {
+            //buffer is not written anymore, so it is safe to be read later
+            this.minifier.submit(key, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    String minified = null;
+                    try {
+                        StringWriter result = new StringWriter();
+                        compress(new InputStreamReader(new ByteArrayInputStream(buffer, 0, size), charset), js, result);
+                        minified = result.toString();
+                        return minified;
+                    } finally {
+                        cache.put(key, minified != null ? minified : FAILED + new String(buffer, 0, size, charset));
+                    }
+                }
+            });
+            LOGGER.trace("Minification of {} queued. Serving it as is.", url);
+            preventCaching(response, wrapper); //minified one is served once ready
+            this.copy(wrapper, out);
+            return;
+        } else {
+            StringWriter result = new StringWriter();
+            try {
+                this.compress(new InputStreamReader(wrapper.getInputStream(), this.charset), js, result);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Minification of {} failed. Serving it as is. {}", url, ex);
+                this.cache.put(key, FAILED + new String(buffer, 0, size, this.charset));
+                this.copy(wrapper, out);
+                return;
+            }
+            minified = result.toString();
+            this.cache.put(key, minified);
+        }
+        out.write(minified);
+    }
+
+    private void compress(Reader reader, boolean js, Writer out) throws IOException {
+        if (js) {
+            JavaScriptCompressor compressor = new JavaScriptCompressor(reader, null);
+            compressor.compress(out, this.lineBreak, !this.noMunge, false, this.preserveSemi, this.disableOptimizations);
+        } else {
+            CssCompressor compressor = new CssCompressor(reader);
+            compressor.compress(out, this.lineBreak);
+        }
+    }
+
+    private static Cache<String, String> buildCache(long maxBytes) {
+        return CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String key, String minified) {
+                    return (key.length() + minified.length()) * 2;
+                }
+            }).build();
+    }
+
+    /**
+     * @return statistics of the minified content cache, or null if cache is not used
+     */
+    public CacheStats getCacheStats() {
+        return this.cache == null ? null : this.cache.stats();
+    }
+
     @Override
     public void init(FilterConfig config) throws ServletException {
 
@@ -215,14 +352,60 @@ public class YUIMinFilter extends AbstractFilter {
 
         this.disableOptimizations = readBoolean(filterConfig.getInitParameter(INIT_PARAM_DISABLE_OPTIMIZATIONS), this.disableOptimizations);
 
-        LOGGER.debug("Filter initialized with: {\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{},\n\t{}:{}\n}", new Object[]{
+        this.useCache = readBoolean(filterConfig.getInitParameter(INIT_PARAM_USE_CACHE), this.useCache);
+
+        this.cacheSize = readLong(filterConfig.getInitParameter(INIT_PARAM_CACHE_SIZE), this.cacheSize);
+
+        this.options = this.lineBreak + "," + this.noMunge + "," + this.preserveSemi + "," + this.disableOptimizations + "," + this.charset;
+
+        this.cache = this.useCache && this.cacheSize > 0 ? buildCache(this.cacheSize) : null;
+
+        if (this.cache != null && readBoolean(filterConfig.getInitParameter(INIT_PARAM_ASYNC), false)) {
+            this.minifier = new BackgroundMinifier("yui-minifier",
+                readInt(filterConfig.getInitParameter(INIT_PARAM_MINIFY_THREADS), 1),
+                readInt(filterConfig.getInitParameter(INIT_PARAM_MINIFY_QUEUE_SIZE), 64));
+            config.getServletContext().setAttribute(MINIFIER_ATTRIBUTE_PREFIX + config.getFilterName(), this.minifier);
+        }
+
+        if (this.cache != null) {
+            config.getServletContext().setAttribute(CACHE_STATS_ATTRIBUTE_PREFIX + config.getFilterName(), new Supplier<CacheStats>() {
+                @Override
+                public CacheStats get() {
+                    return getCacheStats();
+                }
+            });
+        }
+
+        LOGGER.debug("Filter initialized with: {\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n}", new Object[]{
             INIT_PARAM_LINE_BREAK, String.valueOf(lineBreak),
             INIT_PARAM_NO_MUNGE, String.valueOf(noMunge),
             INIT_PARAM_PRESERVE_SEMI, String.valueOf(preserveSemi),
             INIT_PARAM_DISABLE_OPTIMIZATIONS, String.valueOf(disableOptimizations),
+            INIT_PARAM_USE_CACHE, String.valueOf(useCache),
+            INIT_PARAM_CACHE_SIZE, String.valueOf(cacheSize),
+            INIT_PARAM_ASYNC, String.valueOf(minifier != null),
             INIT_PARAM_CHARSET, charset});
 
     }
 
+    @Override
+    public void destroy() {
+        if (this.minifier != null) {
+            LOGGER.debug("Background minification stats: {}", this.minifier);
+            this.minifier.shutdown();
+            if (this.filterConfig != null) {
+                this.filterConfig.getServletContext().removeAttribute(MINIFIER_ATTRIBUTE_PREFIX + this.filterConfig.getFilterName());
+            }
+        }
+        if (this.cache != null) {
+            LOGGER.debug("Minified content cache stats: {}", this.cache.stats());
+            if (this.filterConfig != null) {
+                this.filterConfig.getServletContext().removeAttribute(CACHE_STATS_ATTRIBUTE_PREFIX + this.filterConfig.getFilterName());
+            }
+            this.cache.invalidateAll();
+        }
+        super.destroy();
+    }
+
 }
 
@@ -16,9 +16,18 @@
 
 package com.googlecode.webutilities.filters.common;
 
+import static com.googlecode.webutilities.common.Constants.HEADER_EXPIRES;
+import static com.googlecode.webutilities.common.Constants.HTTP_CACHE_CONTROL_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_ETAG_HEADER;
+
+import java.util.Map;
+
 import javax.servlet.Filter;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -127,6 +136,25 @@ public abstract class AbstractFilter implements Filter, IgnoreAcceptContext {
         return !this.isUserAgentIgnored(userAgent) && (this.acceptUAPattern == null || (userAgent != null && userAgent.matches(acceptUAPattern)));
     }
 
+    /**
+     * Keeps the response from being cached by browsers and proxies, when what is served now is not the final content
+     * (eg. served as is while it is being minified). Strong ETag set while generating it is weakened, so that the
+     * compressed response cache doesn't keep it either.
+     *
+     * @param response - response to be sent
+     * @param wrapper  - wrapper the response was generated in
+     */
+    protected static void preventCaching(HttpServletResponse response, WebUtilitiesResponseWrapper wrapper) {
+        response.setHeader(HTTP_CACHE_CONTROL_HEADER, "no-store");
+        response.setDateHeader(HEADER_EXPIRES, 0);
+        for (Map.Entry<String, Object> header : wrapper.getHeaders().entrySet()) {
+            if (HTTP_ETAG_HEADER.equalsIgnoreCase(header.getKey()) && header.getValue() instanceof String
+                && !((String) header.getValue()).startsWith("W/")) {
+                response.setHeader(HTTP_ETAG_HEADER, "W/" + header.getValue());
+            }
+        }
+    }
+
     @Override
     public void destroy() {
         LOGGER.debug("destroying...");
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs minifications on a bounded pool of background threads, so that the minifying filters can serve the original
+ * content while the minified one is being prepared.
+ * <p/>
+ * Minifications are keyed, only one minification per key runs at a time and concurrent submissions of the same key
+ * share it. Queue depth, latency (from submission to completion) and failures are kept so that they can be observed
+ * through the getters, filters publish the instance as a servlet context attribute.
+ *
+ * @version 1.0
+ */
+public final class BackgroundMinifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundMinifier.class.getName());
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, FutureTask<String>> running = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param name      - used in the thread names
+     * @param threads   - maximum number of concurrent minifications
+     * @param queueSize - maximum number of minifications waiting for a thread
+     */
+    public BackgroundMinifier(final String name, int threads, int queueSize) {
+        threads = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "webutilities-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the minification unless one for the same key is already running
+     *
+     * @param key      - identifies the content being minified
+     * @param minifier - minifies the content, it is expected to keep the result where the caller finds it next time
+     * @return future of the running minification for the key, or null if the queue is full
+     */
+    public Future<String> submit(final String key, final Callable<String> minifier) {
+        FutureTask<String> task = running.get(key);
+        if (task != null) {
+            return task;
+        }
+        final long start = System.nanoTime();
+        FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    String minified = minifier.call();
+                    if (minified == null) {
+                        failed.incrementAndGet();
+                    }
+                    return minified;
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                    LOGGER.warn("Minification of {} failed. {}", key, ex);
+                    throw ex;
+                } finally {
+                    record(System.nanoTime() - start);
+                    running.remove(key);
+                }
+            }
+        });
+        task = running.putIfAbsent(key, newTask);
+        if (task != null) {
+            return task;
+        }
+        try {
+            executor.execute(newTask);
+            submitted.incrementAndGet();
+            return newTask;
+        } catch (RejectedExecutionException ex) {
+            running.remove(key, newTask);
+            rejected.incrementAndGet();
+            LOGGER.debug("Minification queue is full, {} not queued.", key);
+            return null;
+        }
+    }
+
+    private void record(long latencyNanos) {
+        completed.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        long max = maxLatencyNanos.get();
+        while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+            max = maxLatencyNanos.get();
+        }
+    }
+
+    /**
+     * @return number of minifications waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of minifications queued or running
+     */
+    public int getInFlight() {
+        return running.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of minifications finished, successfully or not
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of minifications not queued because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return average milliseconds from submission to completion
+     */
+    public long getAverageLatencyMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / count);
+    }
+
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+
+    /**
+     * Stops the threads, running minifications are interrupted
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        running.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "{queueDepth:" + getQueueDepth() + ", inFlight:" + getInFlight() + ", submitted:" + getSubmitted()
+            + ", completed:" + getCompleted() + ", failed:" + getFailed() + ", rejected:" + getRejected()
+            + ", averageLatency:" + getAverageLatencyMillis() + "ms, maxLatency:" + getMaxLatencyMillis() + "ms}";
+    }
+
+}
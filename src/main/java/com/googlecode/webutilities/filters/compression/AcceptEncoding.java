@@ -0,0 +1,246 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_COMPRESS;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_DEFLATE;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_IDENTITY;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Parsed Accept-Encoding request header (RFC 7231 section 5.3.4) choosing the content encoding of the response.
+ * <p/>
+ * Encodings are ranked by their quality value (<code>q</code>, 1 if not given, <code>*</code> standing for the ones
+ * not listed). Among equally acceptable ones, plugged in encodings (see {@link EncodedStreamsFactory}) win, then the
+ * ones listed explicitly in the order client listed them, then gzip, deflate and compress. <code>q=0</code> means
+ * not acceptable. <code>identity</code> competes only if listed explicitly, choosing it means not to encode.
+ * <p/>
+ * Browsers send a handful of distinct headers, so parsed headers are kept in a small bounded cache and the encoding
+ * chosen among the registered ones is remembered with them.
+ *
+ * @version 1.0
+ */
+public final class AcceptEncoding {
+
+    private static final int CACHE_SIZE = 256;
+
+    private static final int MAX_HEADER_LENGTH = 512; //longer ones are parsed but not cached
+
+    private static final List<String> BUILT_IN_PREFERENCE = Arrays.asList(CONTENT_ENCODING_GZIP, CONTENT_ENCODING_DEFLATE, CONTENT_ENCODING_COMPRESS);
+
+    private static final String NONE = "";
+
+    private static final AcceptEncoding EMPTY = new AcceptEncoding(new ArrayList<String>(), new float[0], -1);
+
+    private static final LoadingCache<String, AcceptEncoding> CACHE = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE)
+        .build(new CacheLoader<String, AcceptEncoding>() {
+            @Override
+            public AcceptEncoding load(String header) {
+                return doParse(header);
+            }
+        });
+
+    private final List<String> codings; //in client order
+
+    private final float[] qualities;
+
+    private final float wildcardQuality; //-1 if * is not listed
+
+    private volatile String negotiated; //among registered encodings, NONE for no encoding
+
+    private volatile int negotiatedVersion = -1;
+
+    private AcceptEncoding(List<String> codings, float[] qualities, float wildcardQuality) {
+        this.codings = codings;
+        this.qualities = qualities;
+        this.wildcardQuality = wildcardQuality;
+    }
+
+    /**
+     * @param header - Accept-Encoding header, may be null
+     * @return parsed header
+     */
+    public static AcceptEncoding parse(String header) {
+        if (header == null || header.length() == 0) {
+            return EMPTY;
+        }
+        if (header.length() > MAX_HEADER_LENGTH) {
+            return doParse(header);
+        }
+        try {
+            return CACHE.get(header);
+        } catch (ExecutionException ex) {
+            return doParse(header);
+        }
+    }
+
+    /**
+     * @param header - Accept-Encoding header, may be null
+     * @return most acceptable of the registered encodings, null if response is not to be encoded
+     */
+    public static String negotiate(String header) {
+        return parse(header).negotiate();
+    }
+
+    private static AcceptEncoding doParse(String header) {
+        List<String> codings = new ArrayList<String>();
+        List<Float> qualities = new ArrayList<Float>();
+        float wildcardQuality = -1;
+        int length = header.length();
+        int start = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end < 0) end = length;
+            String element = header.substring(start, end);
+            start = end + 1;
+            int semicolon = element.indexOf(';');
+            String coding = (semicolon >= 0 ? element.substring(0, semicolon) : element).trim().toLowerCase();
+            if (coding.length() == 0) continue;
+            float quality = semicolon >= 0 ? parseQuality(element.substring(semicolon + 1)) : 1f;
+            if (quality < 0) continue; //malformed, ignored
+            if ("*".equals(coding)) {
+                wildcardQuality = quality;
+            } else if (!codings.contains(coding)) {
+                codings.add(coding);
+                qualities.add(quality);
+            }
+        }
+        float[] q = new float[qualities.size()];
+        for (int i = 0; i < q.length; i++) {
+            q[i] = qualities.get(i);
+        }
+        return new AcceptEncoding(codings, q, wildcardQuality);
+    }
+
+    //parameters of an element, only q is of interest
+    private static float parseQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && "q".equalsIgnoreCase(parameter.substring(0, equals).trim())) {
+                try {
+                    float quality = Float.parseFloat(parameter.substring(equals + 1).trim());
+                    return quality >= 0 && quality <= 1 ? quality : -1;
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return 1f;
+    }
+
+    /**
+     * @param coding - content coding
+     * @return quality value of the coding, 0 if not acceptable
+     */
+    public float getQuality(String coding) {
+        int index = codings.indexOf(coding);
+        if (index >= 0) {
+            return qualities[index];
+        }
+        if (CONTENT_ENCODING_IDENTITY.equals(coding)) {
+            return wildcardQuality == 0 ? 0 : 1; //always acceptable unless excluded
+        }
+        return wildcardQuality > 0 ? wildcardQuality : 0;
+    }
+
+    /**
+     * @param coding - content coding
+     * @return true if it is acceptable
+     */
+    public boolean accepts(String coding) {
+        return getQuality(coding) > 0;
+    }
+
+    /**
+     * @return most acceptable of the registered encodings, null if response is not to be encoded
+     */
+    public String negotiate() {
+        int version = EncodedStreamsFactory.getRegistryVersion();
+        if (negotiatedVersion != version) {
+            String encoding = negotiate(EncodedStreamsFactory.SUPPORTED_ENCODINGS.keySet());
+            negotiated = encoding == null ? NONE : encoding;
+            negotiatedVersion = version;
+        }
+        return NONE.equals(negotiated) ? null : negotiated;
+    }
+
+    /**
+     * @param available - encodings response can be encoded with
+     * @return most acceptable of them, null if response is not to be encoded
+     */
+    public String negotiate(Collection<String> available) {
+        String best = null;
+        float bestQuality = 0;
+        for (String coding : available) {
+            float quality = getQuality(coding);
+            if (quality > 0 && (best == null || quality > bestQuality || (quality == bestQuality && isPreferred(coding, best)))) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        int identity = codings.indexOf(CONTENT_ENCODING_IDENTITY);
+        if (best != null && identity >= 0 && qualities[identity] > 0) {
+            //identity listed explicitly competes as well
+            float identityQuality = qualities[identity];
+            int bestIndex = codings.indexOf(best);
+            boolean bestPlugged = EncodedStreamsFactory.getPreferredEncodings().contains(best);
+            if (identityQuality > bestQuality || (identityQuality == bestQuality && !bestPlugged && (bestIndex < 0 || identity < bestIndex))) {
+                return null;
+            }
+        }
+        return best;
+    }
+
+    //of two equally acceptable codings
+    private boolean isPreferred(String coding, String other) {
+        List<String> plugged = EncodedStreamsFactory.getPreferredEncodings();
+        int codingRank = plugged.indexOf(coding), otherRank = plugged.indexOf(other);
+        if (codingRank != otherRank) {
+            return codingRank >= 0 && (otherRank < 0 || codingRank < otherRank);
+        }
+        int codingIndex = codings.indexOf(coding), otherIndex = codings.indexOf(other);
+        if (codingIndex != otherIndex) {
+            return codingIndex >= 0 && (otherIndex < 0 || codingIndex < otherIndex);
+        }
+        int codingPreference = BUILT_IN_PREFERENCE.indexOf(coding), otherPreference = BUILT_IN_PREFERENCE.indexOf(other);
+        return codingPreference >= 0 && (otherPreference < 0 || codingPreference < otherPreference);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < qualities.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(codings.get(i)).append(";q=").append(qualities[i]);
+        }
+        if (wildcardQuality >= 0) {
+            sb.append(sb.length() > 0 ? ", " : "").append("*;q=").append(wildcardQuality);
+        }
+        return sb.toString();
+    }
+
+}
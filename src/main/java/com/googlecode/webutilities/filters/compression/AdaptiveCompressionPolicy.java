@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compression threshold adapting to the CPU time compression takes, so that under load responses are compressed
+ * selectively instead of compression adding to the latency of all of them.
+ * <p/>
+ * Every compressed response is recorded, per MIME type, in a lock-free histogram of power of two size buckets
+ * holding the responses, bytes in, bytes out and CPU nanoseconds spent. Once a second the share of the CPU
+ * (all processors) spent compressing is compared with the budget:
+ * <ul>
+ * <li>within the budget, responses from <code>minThreshold</code> bytes on are compressed.</li>
+ * <li>over it, the threshold of each MIME type is raised to the smallest size whose bigger responses took
+ * <code>budget / load</code> of its compression time, the big ones saving the most bytes per response.</li>
+ * <li>when that is beyond <code>maxThreshold</code> (the most a response is buffered before compressing), or the
+ * MIME type does not compress below {@link #DENSE_RATIO} of its size (already dense content eg. images, archives),
+ * responses are not compressed at all.</li>
+ * </ul>
+ * Histograms are halved every second, so thresholds follow the load back down and dense types are tried again.
+ *
+ * @version 1.0
+ */
+public final class AdaptiveCompressionPolicy {
+
+    /**
+     * Threshold meaning response is not to be compressed
+     */
+    public static final int NO_COMPRESSION = -1;
+
+    public static final int DEFAULT_CPU_BUDGET_PERCENT = 25;
+
+    public static final int DEFAULT_MIN_THRESHOLD = 1024;
+
+    public static final double DENSE_RATIO = 0.9;
+
+    private static final int BUCKETS = 32; //bucket i holds sizes [2^i, 2^(i+1))
+
+    private static final int MAX_MIME_TYPES = 64; //beyond which only the aggregate is kept
+
+    private static final int MIN_SAMPLES = 32;
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final int minThreshold;
+
+    private final int maxThreshold;
+
+    private final double cpuBudget; //share of all processors
+
+    private final int processors = Runtime.getRuntime().availableProcessors();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private final Histogram all = new Histogram();
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong windowCpuNanos = new AtomicLong();
+
+    private volatile double load; //share of all processors spent compressing, smoothed
+
+    /**
+     * @param minThreshold     - threshold within the budget, bytes
+     * @param maxThreshold     - maximum threshold, bytes. Responses are not compressed when it would need to be more
+     * @param cpuBudgetPercent - percentage of all processors compression may take
+     */
+    public AdaptiveCompressionPolicy(int minThreshold, int maxThreshold, int cpuBudgetPercent) {
+        this.minThreshold = Math.max(0, minThreshold);
+        this.maxThreshold = Math.max(this.minThreshold, maxThreshold);
+        this.cpuBudget = Math.max(1, Math.min(100, cpuBudgetPercent)) / 100.0;
+        this.all.threshold = this.minThreshold;
+    }
+
+    /**
+     * @return CPU time of the current thread (wall time if not supported), nanoseconds
+     */
+    static long now() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @param contentType - content type of the response, may be null
+     * @return bytes from which the response is to be compressed, {@link #NO_COMPRESSION} if not to be compressed
+     */
+    public int getThreshold(String contentType) {
+        rollWindow();
+        Histogram histogram = histograms.get(mimeOf(contentType));
+        return (histogram != null ? histogram : all).threshold;
+    }
+
+    /**
+     * @param contentType - content type of the response, may be null
+     * @param inputBytes  - bytes compressed
+     * @param outputBytes - compressed bytes
+     * @param cpuNanos    - time taken, as measured by {@link #now()}
+     */
+    public void record(String contentType, long inputBytes, long outputBytes, long cpuNanos) {
+        if (inputBytes <= 0) return;
+        windowCpuNanos.addAndGet(cpuNanos);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(inputBytes));
+        all.add(bucket, inputBytes, outputBytes, cpuNanos);
+        String mime = mimeOf(contentType);
+        Histogram histogram = histograms.get(mime);
+        if (histogram == null && histograms.size() < MAX_MIME_TYPES) {
+            Histogram newHistogram = new Histogram();
+            newHistogram.threshold = all.threshold;
+            histogram = histograms.putIfAbsent(mime, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        if (histogram != null) {
+            histogram.add(bucket, inputBytes, outputBytes, cpuNanos);
+        }
+        rollWindow();
+    }
+
+    private void rollWindow() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        long elapsed = now - start;
+        if (elapsed < WINDOW_NANOS || !windowStart.compareAndSet(start, now)) {
+            return; //only one thread rolls the window
+        }
+        double windowLoad = windowCpuNanos.getAndSet(0) / ((double) elapsed * processors);
+        load = (load + windowLoad) / 2;
+        double keep = load > cpuBudget ? cpuBudget / load : 1; //share of the compression time to keep
+        all.threshold = all.computeThreshold(keep, false); //density is per MIME type
+        for (Histogram histogram : histograms.values()) {
+            histogram.threshold = histogram.computeThreshold(keep, true);
+            histogram.decay();
+        }
+        all.decay();
+    }
+
+    /**
+     * @return share of all processors spent compressing recently, 0-1
+     */
+    public double getLoad() {
+        return load;
+    }
+
+    public double getCpuBudget() {
+        return cpuBudget;
+    }
+
+    private static String mimeOf(String contentType) {
+        if (contentType == null) return "";
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{load:").append(String.format("%.3f", load))
+            .append(", budget:").append(cpuBudget).append(", threshold:").append(all.threshold);
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    private final class Histogram {
+
+        private final AtomicLongArray responses = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray bytesIn = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray bytesOut = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray cpuNanos = new AtomicLongArray(BUCKETS);
+
+        private volatile int threshold = minThreshold;
+
+        void add(int bucket, long in, long out, long nanos) {
+            responses.incrementAndGet(bucket);
+            bytesIn.addAndGet(bucket, in);
+            bytesOut.addAndGet(bucket, out);
+            cpuNanos.addAndGet(bucket, nanos);
+        }
+
+        long samples() {
+            long samples = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                samples += responses.get(i);
+            }
+            return samples;
+        }
+
+        double ratio() {
+            long in = 0, out = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                in += bytesIn.get(i);
+                out += bytesOut.get(i);
+            }
+            return in == 0 ? 0 : out / (double) in;
+        }
+
+        int computeThreshold(double keep, boolean skipDense) {
+            if (skipDense && samples() >= MIN_SAMPLES && ratio() >= DENSE_RATIO) {
+                return NO_COMPRESSION;
+            }
+            if (keep >= 1) {
+                return minThreshold;
+            }
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += cpuNanos.get(i);
+            }
+            long threshold;
+            if (total == 0) {
+                threshold = (long) (Math.max(1, minThreshold) / keep);
+            } else {
+                long target = (long) (total * keep), kept = 0;
+                int bucket = BUCKETS - 1;
+                while (bucket > 0 && kept + cpuNanos.get(bucket) <= target) {
+                    kept += cpuNanos.get(bucket--);
+                }
+                threshold = 1L << (bucket + 1); //buckets above the one exceeding the target
+            }
+            threshold = Math.max(minThreshold, threshold);
+            return threshold > maxThreshold ? NO_COMPRESSION : (int) threshold;
+        }
+
+        void decay() {
+            for (int i = 0; i < BUCKETS; i++) {
+                responses.addAndGet(i, -responses.get(i) / 2);
+                bytesIn.addAndGet(i, -bytesIn.get(i) / 2);
+                bytesOut.addAndGet(i, -bytesOut.get(i) / 2);
+                cpuNanos.addAndGet(i, -cpuNanos.get(i) / 2);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{threshold:" + threshold + ", samples:" + samples() + ", ratio:" + String.format("%.2f", ratio()) + "}";
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable buffer made of chunks borrowed from {@link CompressorPool} one at a time as bytes are written, so that
+ * a small response holds one chunk rather than a buffer as big as the compression threshold. Chunks go back to the
+ * pool on {@link #reset()}.
+ *
+ * @version 1.0
+ */
+final class ChunkedBuffer extends OutputStream {
+
+    private final CompressorPool pool;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>(4);
+
+    private byte[] current;
+
+    private int position; //in current chunk
+
+    private int size;
+
+    ChunkedBuffer(CompressorPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void nextChunk() {
+        current = pool.borrowChunk();
+        chunks.add(current);
+        position = 0;
+    }
+
+    /**
+     * @return bytes written
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param out - where bytes written so far are to be written
+     * @throws IOException - in case write fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int last = chunks.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            out.write(chunks.get(i), 0, i == last ? position : chunks.get(i).length);
+        }
+    }
+
+    /**
+     * Discards the bytes written, giving the chunks back to the pool
+     */
+    public void reset() {
+        for (byte[] chunk : chunks) {
+            pool.returnChunk(chunk);
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+    }
+
+}
@@ -20,6 +20,7 @@ package com.googlecode.webutilities.filters.compression;
 
 import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_ENCODING_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_LENGTH_HEADER;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -41,12 +42,55 @@ public final class CompressedHttpServletRequestWrapper extends HttpServletReques
     private BufferedReader bufferedReader;
     private boolean getInputStreamCalled;
     private boolean getReaderCalled;
+    private final long maxInflatedSize;
+    private final int maxInflateRatio;
 
     public CompressedHttpServletRequestWrapper(HttpServletRequest request, EncodedStreamsFactory encodedStreamsFactory) {
+        this(request, encodedStreamsFactory, 0, 0);
+    }
+
+    /**
+     * @param request               - request with encoded body
+     * @param encodedStreamsFactory - factory of the body's encoding
+     * @param maxInflatedSize       - maximum bytes body may inflate to, reading beyond fails with IOException. 0 for no limit
+     * @param maxInflateRatio       - maximum times body may inflate, reading beyond fails with IOException. 0 for no limit
+     */
+    public CompressedHttpServletRequestWrapper(HttpServletRequest request, EncodedStreamsFactory encodedStreamsFactory,
+                                               long maxInflatedSize, int maxInflateRatio) {
         super(request);
         this.request = request;
         this.encodedStreamsFactory = encodedStreamsFactory;
+        this.maxInflatedSize = maxInflatedSize;
+        this.maxInflateRatio = maxInflateRatio;
+    }
 
+    /**
+     * @return -1, length of the decoded body is not known
+     */
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    /**
+     * @return encoded bytes of the body read so far
+     */
+    public long getEncodedBytes() {
+        return compressedStream == null ? 0 : compressedStream.getEncodedBytes();
+    }
+
+    /**
+     * @return decoded bytes of the body read so far
+     */
+    public long getInflatedBytes() {
+        return compressedStream == null ? 0 : compressedStream.getInflatedBytes();
+    }
+
+    /**
+     * @return nanoseconds taken to read the body till its end, -1 if it is not read till end yet
+     */
+    public long getInflateNanos() {
+        return compressedStream == null ? -1 : compressedStream.getInflateNanos();
     }
 
     public ServletInputStream getInputStream() throws IOException {
@@ -72,14 +116,26 @@ public final class CompressedHttpServletRequestWrapper extends HttpServletReques
     private CompressedServletInputStream getCompressedServletInputStream() throws IOException {
         if (compressedStream == null) {
             compressedStream = new CompressedServletInputStream(request.getInputStream(),
-                    encodedStreamsFactory);
+                    encodedStreamsFactory, maxInflatedSize, maxInflateRatio);
         }
         return compressedStream;
     }
 
+    /**
+     * Closes the decoded body if it was read, so that the inflater is released even if it was not read till end
+     *
+     * @throws IOException - in case close fails
+     */
+    public void close() throws IOException {
+        if (compressedStream != null) {
+            compressedStream.close();
+        }
+    }
+
     private static boolean skippedHeader(String headerName) {
         return HTTP_ACCEPT_ENCODING_HEADER.equalsIgnoreCase(headerName) ||
-                HTTP_CONTENT_ENCODING_HEADER.equalsIgnoreCase(headerName);
+                HTTP_CONTENT_ENCODING_HEADER.equalsIgnoreCase(headerName) ||
+                HTTP_CONTENT_LENGTH_HEADER.equalsIgnoreCase(headerName);
     }
 
     @Override
@@ -18,7 +18,10 @@
 
 package com.googlecode.webutilities.filters.compression;
 
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_IDENTITY;
+import static com.googlecode.webutilities.common.Constants.DEFAULT_COMPRESSION_SAMPLE_SIZE;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_COMPRESSION_SIZE_THRESHOLD;
+import static com.googlecode.webutilities.common.Constants.DEFAULT_MAX_SAMPLED_RATIO;
 import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CACHE_CONTROL_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_ENCODING_HEADER;
@@ -67,6 +70,13 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
     private boolean mimeIgnored;
     private boolean noTransformSet;
     private int threshold = DEFAULT_COMPRESSION_SIZE_THRESHOLD;
+    private CompressionProfiles compressionProfiles = CompressionProfiles.DEFAULT;
+    private CompressedResponseCache compressedResponseCache;
+    private String cacheURL; //request URL, part of the cache key
+    private AdaptiveCompressionPolicy adaptivePolicy;
+    private boolean adaptiveSkip;
+    private int sampleSize = DEFAULT_COMPRESSION_SAMPLE_SIZE;
+    private int maxSampledRatio = DEFAULT_MAX_SAMPLED_RATIO;
 
     private static final List<String> UNALLOWED_HEADERS = new ArrayList<String>();
 
@@ -100,6 +110,136 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         this.threshold = threshold;
     }
 
+    public void setCompressionProfiles(CompressionProfiles compressionProfiles) {
+        this.compressionProfiles = compressionProfiles != null ? compressionProfiles : CompressionProfiles.DEFAULT;
+    }
+
+    /**
+     * @param compressedResponseCache - cache to serve and keep compressed bodies having strong ETag, null for none
+     * @param url                     - request URI with query string, compressed bodies are cached against
+     */
+    public void setCompressedResponseCache(CompressedResponseCache compressedResponseCache, String url) {
+        this.compressedResponseCache = url != null ? compressedResponseCache : null;
+        this.cacheURL = url;
+    }
+
+    /**
+     * @param adaptivePolicy - policy adapting the threshold to CPU spent compressing, null to use the threshold as is
+     */
+    public void setAdaptivePolicy(AdaptiveCompressionPolicy adaptivePolicy) {
+        this.adaptivePolicy = adaptivePolicy;
+    }
+
+    public AdaptiveCompressionPolicy getAdaptivePolicy() {
+        return adaptivePolicy;
+    }
+
+    /**
+     * @param sampleSize      - bytes compressed to tell if the response compresses well, 0 not to sample
+     * @param maxSampledRatio - percentage of its size the sample may compress to, for the response to be compressed
+     */
+    public void setCompressibilitySampling(int sampleSize, int maxSampledRatio) {
+        this.sampleSize = sampleSize;
+        this.maxSampledRatio = maxSampledRatio;
+    }
+
+    int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampledRatio - compressed to sampled bytes, 0 if not known
+     * @return true if the response is not to be compressed, in which case non compression headers are set
+     */
+    boolean isIncompressible(double sampledRatio) {
+        if (sampledRatio * 100 <= maxSampledRatio) {
+            return false;
+        }
+        LOGGER.trace("No Compression: sample compressed to {} of its size", sampledRatio);
+        noCompression();
+        return true;
+    }
+
+    /**
+     * @param inputBytes  - bytes compressed
+     * @param outputBytes - compressed bytes
+     * @param cpuNanos    - time taken compressing
+     */
+    void recordCompression(long inputBytes, long outputBytes, long cpuNanos) {
+        if (adaptivePolicy != null) {
+            adaptivePolicy.record(httpResponse.getContentType(), inputBytes, outputBytes, cpuNanos);
+        }
+    }
+
+    /**
+     * @return compressed body of the strong ETag set, if cached and this response is to be compressed, null otherwise
+     */
+    byte[] getCachedCompressed() {
+        if (getCacheableETag() == null || mustNotCompress()) {
+            return null;
+        }
+        byte[] encoded = compressedResponseCache.get(cacheURL, httpResponse.getContentType(), savedETag, compressedContentEncoding);
+        if (encoded != null) {
+            LOGGER.trace("Compressed response found in cache for {} ETag {}", cacheURL, savedETag);
+        }
+        return encoded;
+    }
+
+    /**
+     * @return strong ETag set, if compressed body of this response can be cached, null otherwise
+     */
+    String getCacheableETag() {
+        int status = getStatus();
+        if (compressedResponseCache == null || (status != 0 && status != SC_OK) || !CompressedResponseCache.isStrong(savedETag)) {
+            return null;
+        }
+        return savedETag;
+    }
+
+    /**
+     * @return maximum compressed bytes of a body to be cached
+     */
+    int getMaxCachedSize() {
+        return compressedResponseCache != null ? compressedResponseCache.getMaxEntrySize() : 0;
+    }
+
+    /**
+     * @param eTag    - ETag compression started with
+     * @param encoded - compressed body
+     */
+    void cacheCompressed(String eTag, byte[] encoded) {
+        if (eTag.equals(savedETag)) { //not changed midway
+            compressedResponseCache.put(cacheURL, httpResponse.getContentType(), eTag, compressedContentEncoding, encoded);
+        }
+    }
+
+    /**
+     * Switching to compression, with compressed body of known length
+     *
+     * @param length - compressed bytes
+     */
+    void useCachedCompression(int length) {
+        useCompression();
+        httpResponse.setHeader(HTTP_CONTENT_LENGTH_HEADER, String.valueOf(length));
+    }
+
+    private void eTagChanged() {
+        if (compressingStream != null) {
+            compressingStream.lookupCache(0);
+        }
+    }
+
+    /**
+     * @param bytesWritten - bytes written so far, used as size when content length is not set
+     * @return profile to compress this response with
+     */
+    CompressionProfile getCompressionProfile(long bytesWritten) {
+        long size = savedContentLengthSet ? savedContentLength : bytesWritten;
+        CompressionProfile profile = compressionProfiles.select(httpResponse.getContentType(), size);
+        LOGGER.trace("Compressing with profile {}", profile);
+        return profile;
+    }
+
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
         if (getWriterCalled) {
@@ -147,6 +287,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         } else if (HTTP_ETAG_HEADER.equalsIgnoreCase(name)) {
             savedETag = value;
             setETagHeader();
+            eTagChanged();
         } else if (isAllowedHeader(name)) {
             httpResponse.addHeader(name, value);
         }
@@ -162,6 +303,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         } else if (HTTP_ETAG_HEADER.equalsIgnoreCase(name)) {
             savedETag = String.valueOf(value);
             setETagHeader();
+            eTagChanged();
         } else if (isAllowedHeader(name)) {
             httpResponse.addIntHeader(name, value);
         }
@@ -199,6 +341,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         } else if (HTTP_ETAG_HEADER.equalsIgnoreCase(name)) {
             savedETag = value;
             setETagHeader();
+            eTagChanged();
         } else if (isAllowedHeader(name)) {
             httpResponse.setHeader(name, value);
         }
@@ -235,6 +378,7 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
         } else if (HTTP_ETAG_HEADER.equalsIgnoreCase(name)) {
             savedETag = String.valueOf(value);
             setETagHeader();
+            eTagChanged();
         } else if (isAllowedHeader(name)) {
             httpResponse.setIntHeader(name, value);
         }
@@ -357,12 +501,20 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
 
     private static boolean alreadyCompressedEncoding(String encoding) {
 
-        return (encoding != null && EncodedStreamsFactory.SUPPORTED_ENCODINGS.containsKey(encoding));
+        //any encoding, even the one not supported here (eg. br served precompressed), is not to be encoded again
+        return (encoding != null && encoding.trim().length() > 0 && !CONTENT_ENCODING_IDENTITY.equalsIgnoreCase(encoding.trim()));
 
     }
 
     private CompressedServletOutputStream getCompressedServletOutputStream() throws IOException {
         if (compressingStream == null) {
+            if (adaptivePolicy != null) {
+                int adaptiveThreshold = adaptivePolicy.getThreshold(httpResponse.getContentType());
+                adaptiveSkip = adaptiveThreshold == AdaptiveCompressionPolicy.NO_COMPRESSION;
+                if (!adaptiveSkip) {
+                    threshold = adaptiveThreshold;
+                }
+            }
             compressingStream =
                 new CompressedServletOutputStream(httpResponse.getOutputStream(),
                     encodedStreamsFactory,
@@ -391,6 +543,10 @@ public class CompressedHttpServletResponseWrapper extends WebUtilitiesResponseWr
             LOGGER.trace("No Compression: no-transform is set");
             return true;
         }
+        if (adaptiveSkip) {
+            LOGGER.trace("No Compression: skipped by adaptive policy {}", adaptivePolicy);
+            return true;
+        }
         return alreadyCompressedEncoding(savedContentEncoding);
     }
 }
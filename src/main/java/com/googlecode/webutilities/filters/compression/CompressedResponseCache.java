@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Encoded (compressed) response bodies against their request URL, content type, strong ETag and content encoding, so
+ * that a response already compressed once is served from here instead of being compressed again.
+ * <p/>
+ * Strong ETag promises byte identical body of the same URL only (the default one is built from last modified time and
+ * size), so the URL is part of the key. Weak ETags (<code>W/</code>) don't promise it and are never cached. The cache is
+ * bounded by the total of encoded bytes, least recently used are evicted first. Bodies bigger than
+ * <code>maxEntrySize</code> are not cached.
+ *
+ * @version 1.0
+ */
+public final class CompressedResponseCache {
+
+    private final Cache<String, byte[]> cache;
+
+    private final int maxEntrySize;
+
+    /**
+     * @param maxBytes     - maximum encoded bytes to keep
+     * @param maxEntrySize - maximum encoded bytes of a single body to keep
+     */
+    public CompressedResponseCache(long maxBytes, int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, byte[]>() {
+                @Override
+                public int weigh(String key, byte[] encoded) {
+                    return key.length() * 2 + encoded.length;
+                }
+            }).build();
+    }
+
+    /**
+     * @param eTag - ETag header value, may be null
+     * @return true if it is strong ETag
+     */
+    public static boolean isStrong(String eTag) {
+        return eTag != null && eTag.length() > 0 && !eTag.startsWith("W/");
+    }
+
+    /**
+     * @param url             - request URI, with query string if any
+     * @param contentType     - content type of the response, may be null
+     * @param eTag            - strong ETag of the body (as set before encoding)
+     * @param contentEncoding - content encoding
+     * @return encoded body, null if not cached
+     */
+    public byte[] get(String url, String contentType, String eTag, String contentEncoding) {
+        return cache.getIfPresent(key(url, contentType, eTag, contentEncoding));
+    }
+
+    /**
+     * @param url             - request URI, with query string if any
+     * @param contentType     - content type of the response, may be null
+     * @param eTag            - strong ETag of the body (as set before encoding)
+     * @param contentEncoding - content encoding
+     * @param encoded         - encoded body, not to be modified anymore
+     */
+    public void put(String url, String contentType, String eTag, String contentEncoding, byte[] encoded) {
+        if (url != null && isStrong(eTag) && encoded.length <= maxEntrySize) {
+            cache.put(key(url, contentType, eTag, contentEncoding), encoded);
+        }
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return hits, misses and evictions
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static String key(String url, String contentType, String eTag, String contentEncoding) {
+        return contentEncoding + ':' + eTag + ' ' + contentType + ' ' + url;
+    }
+
+    @Override
+    public String toString() {
+        return "{entries:" + size() + ", " + getStats() + "}";
+    }
+
+}
@@ -23,34 +23,138 @@ import java.io.InputStream;
 
 import javax.servlet.ServletInputStream;
 
-final class CompressedServletInputStream extends ServletInputStream {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Decoded request body. Inflating it beyond <code>maxInflatedSize</code> bytes, or beyond <code>maxInflateRatio</code>
+ * times the encoded bytes read, fails the read with an IOException, so that a small body inflating to gigabytes
+ * (zip bomb) can not take over the heap. Ratio is checked only once {@link #RATIO_CHECK_THRESHOLD} bytes are inflated.
+ * Limits &lt;= 0 are not enforced.
+ */
+public final class CompressedServletInputStream extends ServletInputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressedServletInputStream.class.getName());
+
+    public static final long RATIO_CHECK_THRESHOLD = 64 * 1024;
+
+    private final CountingInputStream encodedStream;
 
     private final InputStream compressedStream;
 
+    private final long maxInflatedSize;
+
+    private final int maxInflateRatio;
+
+    private long inflated;
+
+    private final long startNanos;
+
+    private long inflateNanos = -1; //until end is reached
+
     private boolean closed;
 
-    CompressedServletInputStream(InputStream inputStream, EncodedStreamsFactory encodedStreamsFactory) throws IOException {
-        this.compressedStream = encodedStreamsFactory.getCompressedStream(inputStream).getCompressedInputStream();
+    public CompressedServletInputStream(InputStream inputStream, EncodedStreamsFactory encodedStreamsFactory) throws IOException {
+        this(inputStream, encodedStreamsFactory, 0, 0);
+    }
+
+    /**
+     * @param inputStream           - encoded request body
+     * @param encodedStreamsFactory - factory of the content encoding of the body
+     * @param maxInflatedSize       - maximum bytes the body may inflate to
+     * @param maxInflateRatio       - maximum times the encoded bytes the body may inflate to
+     * @throws IOException - in case decoding stream could not be created
+     */
+    public CompressedServletInputStream(InputStream inputStream, EncodedStreamsFactory encodedStreamsFactory,
+                                        long maxInflatedSize, int maxInflateRatio) throws IOException {
+        this.startNanos = System.nanoTime();
+        this.encodedStream = new CountingInputStream(inputStream);
+        this.compressedStream = encodedStreamsFactory.getCompressedStream(encodedStream).getCompressedInputStream();
+        this.maxInflatedSize = maxInflatedSize;
+        this.maxInflateRatio = maxInflateRatio;
     }
 
     public int read() throws IOException {
         assertOpen();
-        return compressedStream.read();
+        int b = compressedStream.read();
+        inflated(b == -1 ? -1 : 1);
+        return b;
     }
 
     public int read(byte[] b) throws IOException {
-        assertOpen();
-        return compressedStream.read(b);
+        return read(b, 0, b.length);
     }
 
     public int read(byte[] b, int offset, int length) throws IOException {
         assertOpen();
-        return compressedStream.read(b, offset, length);
+        int n = compressedStream.read(b, offset, length);
+        inflated(n);
+        return n;
     }
 
     public long skip(long n) throws IOException {
         assertOpen();
-        return compressedStream.skip(n);
+        long skipped = compressedStream.skip(n);
+        inflated(skipped);
+        return skipped;
+    }
+
+    private void inflated(long n) throws IOException {
+        if (n < 0) {
+            ended();
+            return;
+        }
+        inflated += n;
+        if (maxInflatedSize > 0 && inflated > maxInflatedSize) {
+            throw limitExceeded("Request body inflates beyond " + maxInflatedSize + " bytes");
+        }
+        if (maxInflateRatio > 0 && inflated > RATIO_CHECK_THRESHOLD && inflated > maxInflateRatio * Math.max(1, encodedStream.getCount())) {
+            throw limitExceeded("Request body inflates beyond " + maxInflateRatio + " times its " + encodedStream.getCount() + " encoded bytes");
+        }
+    }
+
+    private IOException limitExceeded(String message) {
+        LOGGER.warn(message);
+        try {
+            close(); //no more inflating, inflater back to the pool
+        } catch (IOException ex) {
+            LOGGER.debug("Failed to close request stream. {}", ex.toString());
+        }
+        return new IOException(message);
+    }
+
+    private void ended() {
+        if (inflateNanos < 0) {
+            inflateNanos = System.nanoTime() - startNanos;
+            if (LOGGER.isDebugEnabled()) {
+                long millis = Math.max(1, inflateNanos / 1000000);
+                LOGGER.debug("Inflated {} request bytes to {} in {}ms ({} KB/s)", new Object[]{
+                    encodedStream.getCount(), inflated, inflateNanos / 1000000, inflated * 1000 / 1024 / millis});
+            }
+        }
+    }
+
+    /**
+     * @return encoded bytes read so far
+     */
+    public long getEncodedBytes() {
+        return encodedStream.getCount();
+    }
+
+    /**
+     * @return decoded bytes read so far
+     */
+    public long getInflatedBytes() {
+        return inflated;
+    }
+
+    /**
+     * @return nanoseconds taken to read the body until its end (or a limit) was reached, -1 until then
+     */
+    public long getInflateNanos() {
+        return inflateNanos;
     }
 
     public int available() throws IOException {
@@ -60,6 +164,7 @@ final class CompressedServletInputStream extends ServletInputStream {
 
     public void close() throws IOException {
         if (!closed) {
+            ended();
             compressedStream.close();
             closed = true;
         }
@@ -19,23 +19,36 @@
 package com.googlecode.webutilities.filters.compression;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 import javax.servlet.ServletOutputStream;
 
+import com.google.common.io.CountingOutputStream;
+
 public class CompressedServletOutputStream extends ServletOutputStream {
     private final OutputStream uncompressedStream;
     private CompressedOutput compressed;
 
     private final EncodedStreamsFactory encodedStreamsFactory;
     private final CompressedHttpServletResponseWrapper compressedResponseWrapper;
-    protected ByteArrayOutputStream buffer = null;
+    protected ChunkedBuffer buffer = null; //grows as written, up to threshold
 
     private boolean useBuffer = true;
     private boolean closed;
     private boolean cancelled;
     private int maxSize;
+    private long sizeHint; //bytes written by the time compression starts
+    private boolean cacheLookedUp;
+    private byte[] cachedCompressed; //served instead of what is written
+    private String captureETag;
+    private CaptureOutputStream capture; //copy of compressed bytes, to be cached
+    private final boolean timed; //for adaptive policy
+    private long bytesWritten;
+    private long compressNanos;
+    private CountingOutputStream compressedCount;
+    private boolean sampled;
 
     CompressedServletOutputStream(OutputStream uncompressedStream,
                                   EncodedStreamsFactory encodedStreamsFactory,
@@ -46,6 +59,7 @@ public class CompressedServletOutputStream extends ServletOutputStream {
         closed = false;
         cancelled = false;
         maxSize = threshold;
+        timed = compressedResponseWrapper.getAdaptivePolicy() != null;
     }
 
     private OutputStream getCompressed() throws IOException {
@@ -53,31 +67,68 @@ public class CompressedServletOutputStream extends ServletOutputStream {
     		return uncompressedStream;
     	}
         if (compressed == null) {
-            compressed = encodedStreamsFactory.getCompressedStream(uncompressedStream);
+            OutputStream target = uncompressedStream;
+            captureETag = compressedResponseWrapper.getCacheableETag();
+            if (captureETag != null) {
+                capture = new CaptureOutputStream(uncompressedStream, compressedResponseWrapper.getMaxCachedSize());
+                target = capture;
+            }
+            if (timed) {
+                compressedCount = new CountingOutputStream(target);
+                target = compressedCount;
+            }
+            compressed = encodedStreamsFactory.getCompressedStream(target, compressedResponseWrapper.getCompressionProfile(sizeHint));
             //we are switching to compression here, write compression headers
             compressedResponseWrapper.useCompression();
         }
         return compressed.getCompressedOutputStream();
     }
 
+    /**
+     * Looks up compressed body of the ETag set, to be served instead of compressing what is written, if nothing
+     * has been compressed yet.
+     *
+     * @param length - bytes about to be written, lookup is skipped if none are and none were (eg. 304)
+     */
+    void lookupCache(int length) {
+        if (cachedCompressed != null || !useBuffer || cancelled || closed) return;
+        if (length <= 0 && (buffer == null || buffer.size() == 0)) return;
+        cachedCompressed = compressedResponseWrapper.getCachedCompressed();
+        if (cachedCompressed != null && buffer != null) {
+            buffer.reset(); //chunks back to the pool
+            buffer = null;
+        }
+    }
+
+    private boolean servingCached(int length) {
+        if (!cacheLookedUp && length > 0) {
+            cacheLookedUp = true;
+            lookupCache(length);
+        }
+        return cachedCompressed != null;
+    }
+
     private void flushBufferToStream(OutputStream outputStream) throws IOException {
         if (buffer != null) {
-            buffer.writeTo(outputStream);
-            buffer.flush();
-            buffer = null;
-            useBuffer = false;
+            try {
+                buffer.writeTo(outputStream);
+            } finally {
+                buffer.reset(); //chunks back to the pool
+                buffer = null;
+                useBuffer = false;
+            }
         }
     }
 
     private boolean canBuffer(int length) throws IOException {
         if (!useBuffer) return useBuffer;
 
+        sizeHint = (buffer != null ? buffer.size() : 0) + (long) length;
         if (length > maxSize) {
             useBuffer = false;
-            getCompressed();
         } else {
             if (buffer == null) {
-                buffer = new ByteArrayOutputStream(maxSize);
+                buffer = new ChunkedBuffer(CompressorPool.getInstance());
             }
             useBuffer = (buffer.size() + length) <= maxSize;
 
@@ -89,33 +140,85 @@ public class CompressedServletOutputStream extends ServletOutputStream {
     @Override
     public void write(byte[] b) throws IOException {
         assertOpen();
+        if (servingCached(b.length)) return;
+        bytesWritten += b.length;
         if (canBuffer(b.length)) {
             buffer.write(b);
         } else {
+            sampleCompressibility(b, 0, b.length);
+            long start = startTiming();
             flushBufferToStream(getCompressed());
             getCompressed().write(b);
+            stopTiming(start);
         }
     }
 
     @Override
     public void write(byte[] b, int offset, int length) throws IOException {
         assertOpen();
+        if (servingCached(length)) return;
+        bytesWritten += length;
         if (canBuffer(length)) {
             buffer.write(b, offset, length);
         } else {
+            sampleCompressibility(b, offset, length);
+            long start = startTiming();
             flushBufferToStream(getCompressed());
             getCompressed().write(b, offset, length);
+            stopTiming(start);
         }
     }
 
     @Override
     public void write(int b) throws IOException {
         assertOpen();
+        if (servingCached(1)) return;
+        bytesWritten += 1;
         if (canBuffer(1)) {
             buffer.write(b);
         } else {
+            sampleCompressibility(null, 0, 0); //buffered bytes make the sample
+            long start = startTiming();
             flushBufferToStream(getCompressed());
             getCompressed().write(b);
+            stopTiming(start);
+        }
+    }
+
+    /**
+     * Compresses the first bytes (buffered ones, then the ones about to be written) once, before compression starts,
+     * and cancels compression if they do not compress well enough.
+     */
+    private void sampleCompressibility(byte[] b, int offset, int length) throws IOException {
+        if (sampled || compressed != null || cancelled) return;
+        sampled = true;
+        int sampleSize = compressedResponseWrapper.getSampleSize();
+        if (sampleSize <= 0) return;
+        CompressibilitySampler sampler = new CompressibilitySampler(CompressorPool.getInstance(), sampleSize);
+        double ratio;
+        try {
+            if (buffer != null) {
+                buffer.writeTo(sampler);
+            }
+            if (b != null) {
+                sampler.write(b, offset, length);
+            }
+            ratio = sampler.finish();
+        } finally {
+            sampler.close(); //pooled deflater back even if the buffer could not be sampled
+        }
+        if (compressedResponseWrapper.isIncompressible(ratio)) {
+            cancelCompression();
+        }
+    }
+
+    private long startTiming() {
+        return timed ? AdaptiveCompressionPolicy.now() : 0;
+    }
+
+    private void stopTiming(long start) {
+        if (timed) {
+            compressNanos += AdaptiveCompressionPolicy.now() - start;
         }
     }
 
@@ -128,7 +231,10 @@ public class CompressedServletOutputStream extends ServletOutputStream {
     void reset() {
         if (useBuffer && buffer != null) {
             buffer.reset();
+            bytesWritten = 0;
         }
+        cachedCompressed = null;
+        cacheLookedUp = false;
     }
 
     @Override
@@ -143,18 +249,30 @@ public class CompressedServletOutputStream extends ServletOutputStream {
         if (!closed) {
             compressedResponseWrapper.flushBuffer();
             closed = true;
-            if (useBuffer || cancelled) { //mean we wrote everything to buffer so far or compressed was cancelled
+            if (cachedCompressed != null) { //compressed body of the same ETag served, whatever was written is discarded
+                compressedResponseWrapper.useCachedCompression(cachedCompressed.length);
+                uncompressedStream.write(cachedCompressed);
+                uncompressedStream.close();
+            } else if (useBuffer || cancelled) { //mean we wrote everything to buffer so far or compressed was cancelled
                 //We did not use compressed stream (content less than threshold)
                 flushBufferToStream(uncompressedStream);
                 compressedResponseWrapper.noCompression();
                 uncompressedStream.close();
             } else {//we are not using buffer, means content is more than threshold
                 compressedResponseWrapper.useCompression();
+                long start = startTiming();
                 OutputStream outputStream = compressed.getCompressedOutputStream();
                 flushBufferToStream(outputStream);
                 outputStream.flush();
                 compressed.finish();
                 outputStream.close();
+                stopTiming(start);
+                if (compressedCount != null) {
+                    compressedResponseWrapper.recordCompression(bytesWritten, compressedCount.getCount(), compressNanos);
+                }
+                if (capture != null && capture.copy != null) {
+                    compressedResponseWrapper.cacheCompressed(captureETag, capture.copy.toByteArray());
+                }
             }
 
         }
@@ -165,6 +283,9 @@ public class CompressedServletOutputStream extends ServletOutputStream {
     }
 
     void cancelCompression() throws IOException {
+        if (cachedCompressed != null) {
+            return; //body is already being discarded, compressed one of the same ETag is served
+        }
     	if(useBuffer){
     		flushBufferToStream(uncompressedStream);
     	}
@@ -175,4 +296,44 @@ public class CompressedServletOutputStream extends ServletOutputStream {
         return cancelled;
     }
 
+    /**
+     * Passes bytes through, keeping a copy of them until it exceeds the max size
+     */
+    private static final class CaptureOutputStream extends FilterOutputStream {
+
+        private final int maxSize;
+
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CaptureOutputStream(OutputStream out, int maxSize) {
+            super(out);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null && copy.size() < maxSize) {
+                copy.write(b);
+            } else {
+                copy = null; //too big to be cached
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (copy == null) return;
+            if (copy.size() + len > maxSize) {
+                copy = null; //too big to be cached
+            } else {
+                copy.write(b, off, len);
+            }
+        }
+    }
+
 }
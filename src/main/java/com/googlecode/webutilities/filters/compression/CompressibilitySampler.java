@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses, at the fastest level, the first bytes written to it and discards the output, to tell how well the rest
+ * would compress. Already compressed content (images, archives) served under a generic MIME type comes out about as
+ * big as it went in, and is better sent as is than compressed in full.
+ * <p/>
+ * Deflater and output chunk are borrowed from {@link CompressorPool} on the first sampled byte and given back by
+ * {@link #close()}, which {@link #finish()} calls.
+ *
+ * @version 1.0
+ */
+public final class CompressibilitySampler extends OutputStream {
+
+    private static final int MIN_SAMPLE_SIZE = 256; //below which no verdict is given
+
+    private final CompressorPool pool;
+
+    private final int sampleSize;
+
+    private Deflater deflater;
+
+    private byte[] chunk;
+
+    private boolean closed;
+
+    private int bytesIn;
+
+    private int bytesOut;
+
+    /**
+     * @param pool       - pool to borrow the deflater and output chunk from
+     * @param sampleSize - bytes to sample, the ones written beyond are ignored
+     */
+    public CompressibilitySampler(CompressorPool pool, int sampleSize) {
+        this.pool = pool;
+        this.sampleSize = sampleSize;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int n = Math.min(len, sampleSize - bytesIn);
+        if (n <= 0 || closed) return;
+        if (deflater == null) {
+            deflater = pool.borrowDeflater(Deflater.BEST_SPEED, true);
+            chunk = pool.borrowChunk();
+        }
+        deflater.setInput(b, off, n);
+        while (!deflater.needsInput()) {
+            bytesOut += deflater.deflate(chunk);
+        }
+        bytesIn += n;
+    }
+
+    /**
+     * Gives the deflater and chunk back to the pool, not to be written anymore
+     *
+     * @return compressed to sampled bytes, 0 if too few bytes were sampled to tell
+     */
+    public double finish() {
+        try {
+            if (bytesIn < MIN_SAMPLE_SIZE || closed) {
+                return 0;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                bytesOut += deflater.deflate(chunk);
+            }
+            return bytesOut / (double) bytesIn;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Gives the deflater and chunk back to the pool if they were borrowed, not to be written anymore
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (deflater != null) {
+            pool.returnDeflater(deflater, Deflater.BEST_SPEED, true);
+            pool.returnChunk(chunk);
+            deflater = null;
+            chunk = null;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.util.zip.Deflater;
+
+/**
+ * How a response is to be compressed: zlib level, strategy and the size of the buffer compressed bytes are
+ * collected in before being written.
+ *
+ * @version 1.0
+ * @see CompressionProfiles
+ */
+public final class CompressionProfile {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    public static final CompressionProfile DEFAULT = new CompressionProfile(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, DEFAULT_BUFFER_SIZE);
+
+    private final int level;
+
+    private final int strategy;
+
+    private final int bufferSize;
+
+    /**
+     * @param level      - 0-9 or <code>Deflater.DEFAULT_COMPRESSION</code>
+     * @param strategy   - <code>Deflater.DEFAULT_STRATEGY</code>, <code>FILTERED</code> or <code>HUFFMAN_ONLY</code>
+     * @param bufferSize - bytes
+     */
+    public CompressionProfile(int level, int strategy, int bufferSize) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid compression strategy " + strategy);
+        }
+        this.level = level;
+        this.strategy = strategy;
+        this.bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param strategy - default, filtered or huffman (case insensitive)
+     * @return zlib strategy
+     */
+    static int parseStrategy(String strategy) {
+        if ("filtered".equalsIgnoreCase(strategy)) return Deflater.FILTERED;
+        if ("huffman".equalsIgnoreCase(strategy) || "huffman_only".equalsIgnoreCase(strategy)) return Deflater.HUFFMAN_ONLY;
+        if ("default".equalsIgnoreCase(strategy)) return Deflater.DEFAULT_STRATEGY;
+        throw new IllegalArgumentException("Invalid compression strategy " + strategy);
+    }
+
+    private static String strategyName(int strategy) {
+        return strategy == Deflater.FILTERED ? "filtered" : strategy == Deflater.HUFFMAN_ONLY ? "huffman" : "default";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompressionProfile that = (CompressionProfile) o;
+        return level == that.level && strategy == that.strategy && bufferSize == that.bufferSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * level + strategy) + bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "level=" + level + ",strategy=" + strategyName(strategy) + ",buffer=" + bufferSize;
+    }
+
+}
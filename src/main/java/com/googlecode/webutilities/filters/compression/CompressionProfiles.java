@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Ordered rules choosing the {@link CompressionProfile} of a response by its MIME type and size, first matching
+ * rule wins, {@link CompressionProfile#DEFAULT} if none matches.
+ * <p/>
+ * Rules are separated by <code>;</code> or new lines, each rule is a comma separated list of
+ * <code>key=value</code>, all optional:
+ * <pre>
+ *  <b>mime</b> - regex matched against the MIME type (without parameters). Default any.
+ *  <b>minSize</b>, <b>maxSize</b> - size band in bytes, k and m suffixes allowed. Default unbounded.
+ *  <b>level</b> - 0-9 or default.
+ *  <b>strategy</b> - default, filtered or huffman.
+ *  <b>buffer</b> - bytes compressed output is collected in before being written. Default 4096.
+ * </pre>
+ * eg. <code>mime=application/json,minSize=1m,level=1; mime=text/css,level=9; level=6</code>
+ * <p/>
+ * Size is the content length when the response declares it, otherwise the bytes written by the time compression
+ * starts (at least the compression threshold).
+ *
+ * @version 1.0
+ */
+public final class CompressionProfiles {
+
+    public static final CompressionProfiles DEFAULT = new CompressionProfiles(Collections.<Rule>emptyList());
+
+    private final List<Rule> rules;
+
+    private CompressionProfiles(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param spec - rules as explained above, null or empty for default
+     * @return profiles
+     * @throws IllegalArgumentException - if spec is invalid
+     */
+    public static CompressionProfiles parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return DEFAULT;
+        }
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String ruleSpec : spec.split("[;\\r\\n]+")) {
+            if (ruleSpec.trim().length() > 0) {
+                rules.add(Rule.parse(ruleSpec.trim()));
+            }
+        }
+        return new CompressionProfiles(Collections.unmodifiableList(rules));
+    }
+
+    /**
+     * @param contentType - content type of the response, may be null
+     * @param size        - size of the response in bytes
+     * @return profile of the first matching rule, or default
+     */
+    public CompressionProfile select(String contentType, long size) {
+        if (rules.isEmpty()) {
+            return CompressionProfile.DEFAULT;
+        }
+        String mime = mimeOf(contentType);
+        for (Rule rule : rules) {
+            if (rule.matches(mime, size)) {
+                return rule.profile;
+            }
+        }
+        return CompressionProfile.DEFAULT;
+    }
+
+    private static String mimeOf(String contentType) {
+        if (contentType == null) return "";
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return rules.toString();
+    }
+
+    private static final class Rule {
+
+        private final Pattern mime; //null for any
+
+        private final long minSize;
+
+        private final long maxSize;
+
+        private final CompressionProfile profile;
+
+        private Rule(Pattern mime, long minSize, long maxSize, CompressionProfile profile) {
+            this.mime = mime;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.profile = profile;
+        }
+
+        static Rule parse(String spec) {
+            Pattern mime = null;
+            long minSize = 0, maxSize = Long.MAX_VALUE;
+            int level = CompressionProfile.DEFAULT.getLevel();
+            int strategy = CompressionProfile.DEFAULT.getStrategy();
+            int buffer = CompressionProfile.DEFAULT_BUFFER_SIZE;
+            for (String pair : spec.split(",")) {
+                int equals = pair.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Invalid compression profile " + spec);
+                }
+                String key = pair.substring(0, equals).trim();
+                String value = pair.substring(equals + 1).trim();
+                if ("mime".equals(key)) {
+                    mime = Pattern.compile(value, Pattern.CASE_INSENSITIVE);
+                } else if ("minSize".equals(key)) {
+                    minSize = parseSize(value);
+                } else if ("maxSize".equals(key)) {
+                    maxSize = parseSize(value);
+                } else if ("level".equals(key)) {
+                    level = "default".equalsIgnoreCase(value) ? CompressionProfile.DEFAULT.getLevel() : Integer.parseInt(value);
+                } else if ("strategy".equals(key)) {
+                    strategy = CompressionProfile.parseStrategy(value);
+                } else if ("buffer".equals(key)) {
+                    buffer = (int) parseSize(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown key " + key + " in compression profile " + spec);
+                }
+            }
+            return new Rule(mime, minSize, maxSize, new CompressionProfile(level, strategy, buffer));
+        }
+
+        private static long parseSize(String size) {
+            String lower = size.toLowerCase();
+            long multiplier = 1;
+            if (lower.endsWith("k")) {
+                multiplier = 1024;
+            } else if (lower.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            return Long.parseLong(multiplier == 1 ? lower : lower.substring(0, lower.length() - 1)) * multiplier;
+        }
+
+        boolean matches(String contentMime, long size) {
+            return size >= minSize && size <= maxSize && (mime == null || mime.matcher(contentMime).matches());
+        }
+
+        @Override
+        public String toString() {
+            return "mime=" + (mime == null ? ".*" : mime.pattern()) + ",minSize=" + minSize + ",maxSize=" + maxSize + "," + profile;
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of zlib <code>Deflater</code>s and <code>Inflater</code>s, so that the native state (~256KB per deflater) is
+ * reused across responses instead of being allocated per response and left to finalizers to release.
+ * <p/>
+ * Deflaters are pooled per compression level and wrapping (zlib or raw, used by gzip), inflaters per wrapping. They
+ * are reset when returned. At most <code>maxIdle</code> of each kind are kept idle, the ones returned beyond it
+ * (and the idle ones when it is lowered) are <code>end()</code>ed right away.
+ * <p/>
+ * Also pools the {@link #CHUNK_SIZE} byte chunks responses below the compression threshold are buffered in, at most
+ * {@link #CHUNKS_PER_IDLE} times <code>maxIdle</code> of them.
+ *
+ * @version 1.0
+ */
+public final class CompressorPool {
+
+    public static final int DEFAULT_MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    public static final int CHUNK_SIZE = 4096;
+
+    public static final int CHUNKS_PER_IDLE = 16;
+
+    private static final CompressorPool INSTANCE = new CompressorPool(DEFAULT_MAX_IDLE);
+
+    private final ConcurrentMap<Integer, Pool<Deflater>> deflaters = new ConcurrentHashMap<Integer, Pool<Deflater>>();
+
+    private final ConcurrentMap<Integer, Pool<Inflater>> inflaters = new ConcurrentHashMap<Integer, Pool<Inflater>>();
+
+    private final Pool<byte[]> chunks = new Pool<byte[]>();
+
+    private volatile int maxIdle;
+
+    private final Stats deflaterStats = new Stats();
+
+    private final Stats inflaterStats = new Stats();
+
+    private final Stats chunkStats = new Stats();
+
+    /**
+     * @param maxIdle - maximum idle deflaters (per level and wrapping) and inflaters (per wrapping) to keep
+     */
+    public CompressorPool(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    /**
+     * @return pool shared by the encoded streams factories. It is one per class loader, so it is shared by all the
+     *         filters (and web applications, when loaded by the container's class loader) using them, and so is its
+     *         <code>maxIdle</code>.
+     */
+    public static CompressorPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param level  - compression level, 0-9 or <code>Deflater.DEFAULT_COMPRESSION</code>
+     * @param nowrap - true for raw deflate (gzip), false for zlib
+     * @return deflater ready to be used, to be given back with {@link #returnDeflater}
+     */
+    public Deflater borrowDeflater(int level, boolean nowrap) {
+        deflaterStats.borrowed.incrementAndGet();
+        Deflater deflater = pool(deflaters, key(level, nowrap)).poll();
+        if (deflater == null) {
+            deflaterStats.created.incrementAndGet();
+            deflater = new Deflater(level, nowrap);
+        }
+        return deflater;
+    }
+
+    /**
+     * @param level    - compression level, 0-9 or <code>Deflater.DEFAULT_COMPRESSION</code>
+     * @param strategy - compression strategy, back to default when returned
+     * @param nowrap   - true for raw deflate (gzip), false for zlib
+     * @return deflater ready to be used, to be given back with {@link #returnDeflater}
+     */
+    public Deflater borrowDeflater(int level, int strategy, boolean nowrap) {
+        Deflater deflater = borrowDeflater(level, nowrap);
+        if (strategy != Deflater.DEFAULT_STRATEGY) {
+            deflater.setStrategy(strategy);
+        }
+        return deflater;
+    }
+
+    /**
+     * @param deflater - deflater borrowed with the same level and wrapping, not to be used by the caller anymore
+     * @param level    - level it was borrowed with
+     * @param nowrap   - wrapping it was borrowed with
+     */
+    public void returnDeflater(Deflater deflater, int level, boolean nowrap) {
+        deflaterStats.returned.incrementAndGet();
+        deflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+        deflater.reset();
+        if (!pool(deflaters, key(level, nowrap)).offer(deflater, maxIdle)) {
+            deflaterStats.ended.incrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param nowrap - true for raw deflate (gzip), false for zlib
+     * @return inflater ready to be used, to be given back with {@link #returnInflater}
+     */
+    public Inflater borrowInflater(boolean nowrap) {
+        inflaterStats.borrowed.incrementAndGet();
+        Inflater inflater = pool(inflaters, key(0, nowrap)).poll();
+        if (inflater == null) {
+            inflaterStats.created.incrementAndGet();
+            inflater = new Inflater(nowrap);
+        }
+        return inflater;
+    }
+
+    /**
+     * @param inflater - inflater borrowed with the same wrapping, not to be used by the caller anymore
+     * @param nowrap   - wrapping it was borrowed with
+     */
+    public void returnInflater(Inflater inflater, boolean nowrap) {
+        inflaterStats.returned.incrementAndGet();
+        inflater.reset();
+        if (!pool(inflaters, key(0, nowrap)).offer(inflater, maxIdle)) {
+            inflaterStats.ended.incrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return {@link #CHUNK_SIZE} bytes chunk, contents undefined, to be given back with {@link #returnChunk}
+     */
+    public byte[] borrowChunk() {
+        chunkStats.borrowed.incrementAndGet();
+        byte[] chunk = chunks.poll();
+        if (chunk == null) {
+            chunkStats.created.incrementAndGet();
+            chunk = new byte[CHUNK_SIZE];
+        }
+        return chunk;
+    }
+
+    /**
+     * @param chunk - chunk borrowed, not to be used by the caller anymore
+     */
+    public void returnChunk(byte[] chunk) {
+        chunkStats.returned.incrementAndGet();
+        if (!chunks.offer(chunk, maxIdle * CHUNKS_PER_IDLE)) {
+            chunkStats.ended.incrementAndGet(); //left to gc
+        }
+    }
+
+    /**
+     * Changes the maximum idle ones to keep, ending the idle ones beyond it
+     *
+     * @param maxIdle - maximum idle deflaters (per level and wrapping) and inflaters (per wrapping) to keep
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+        for (Pool<Deflater> pool : deflaters.values()) {
+            Deflater deflater;
+            while (pool.size() > this.maxIdle && (deflater = pool.poll()) != null) {
+                deflaterStats.ended.incrementAndGet();
+                deflater.end();
+            }
+        }
+        for (Pool<Inflater> pool : inflaters.values()) {
+            Inflater inflater;
+            while (pool.size() > this.maxIdle && (inflater = pool.poll()) != null) {
+                inflaterStats.ended.incrementAndGet();
+                inflater.end();
+            }
+        }
+        while (chunks.size() > this.maxIdle * CHUNKS_PER_IDLE && chunks.poll() != null) {
+            chunkStats.ended.incrementAndGet();
+        }
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Ends all the idle ones
+     */
+    public void clear() {
+        int max = maxIdle;
+        setMaxIdle(0);
+        maxIdle = max;
+    }
+
+    public int getIdleDeflaters() {
+        int idle = 0;
+        for (Pool<Deflater> pool : deflaters.values()) {
+            idle += pool.size();
+        }
+        return idle;
+    }
+
+    public int getIdleInflaters() {
+        int idle = 0;
+        for (Pool<Inflater> pool : inflaters.values()) {
+            idle += pool.size();
+        }
+        return idle;
+    }
+
+    /**
+     * @return deflaters borrowed and not yet returned
+     */
+    public long getActiveDeflaters() {
+        return deflaterStats.borrowed.get() - deflaterStats.returned.get();
+    }
+
+    /**
+     * @return inflaters borrowed and not yet returned
+     */
+    public long getActiveInflaters() {
+        return inflaterStats.borrowed.get() - inflaterStats.returned.get();
+    }
+
+    public int getIdleChunks() {
+        return chunks.size();
+    }
+
+    /**
+     * @return chunks borrowed and not yet returned
+     */
+    public long getActiveChunks() {
+        return chunkStats.borrowed.get() - chunkStats.returned.get();
+    }
+
+    public long getCreatedChunks() {
+        return chunkStats.created.get();
+    }
+
+    public long getCreatedDeflaters() {
+        return deflaterStats.created.get();
+    }
+
+    public long getCreatedInflaters() {
+        return inflaterStats.created.get();
+    }
+
+    public long getEndedDeflaters() {
+        return deflaterStats.ended.get();
+    }
+
+    public long getEndedInflaters() {
+        return inflaterStats.ended.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{deflaters:{idle:" + getIdleDeflaters() + ", active:" + getActiveDeflaters() + ", created:" + getCreatedDeflaters()
+            + ", ended:" + getEndedDeflaters() + "}, inflaters:{idle:" + getIdleInflaters() + ", active:" + getActiveInflaters()
+            + ", created:" + getCreatedInflaters() + ", ended:" + getEndedInflaters() + "}, chunks:{idle:" + getIdleChunks()
+            + ", active:" + getActiveChunks() + ", created:" + getCreatedChunks() + "}, maxIdle:" + maxIdle + "}";
+    }
+
+    private static int key(int level, boolean nowrap) {
+        return (level + 1) * 2 + (nowrap ? 1 : 0);
+    }
+
+    private static <T> Pool<T> pool(ConcurrentMap<Integer, Pool<T>> pools, int key) {
+        Pool<T> pool = pools.get(key);
+        if (pool == null) {
+            Pool<T> newPool = new Pool<T>();
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private static final class Pool<T> {
+
+        private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = idle.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        boolean offer(T t, int max) {
+            if (size.incrementAndGet() > max) {
+                size.decrementAndGet();
+                return false;
+            }
+            idle.offer(t);
+            return true;
+        }
+
+        int size() {
+            return size.get();
+        }
+    }
+
+    private static final class Stats {
+
+        private final AtomicLong borrowed = new AtomicLong();
+
+        private final AtomicLong returned = new AtomicLong();
+
+        private final AtomicLong created = new AtomicLong();
+
+        private final AtomicLong ended = new AtomicLong();
+    }
+
+}
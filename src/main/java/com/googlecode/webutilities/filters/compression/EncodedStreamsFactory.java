@@ -26,18 +26,36 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.DeflaterInputStream;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the streams of a content encoding, and keeps the registry of the supported encodings.
+ * <p/>
+ * gzip, deflate and compress are built in. More encodings (eg. br, zstd) can be plugged in by
+ * <ul>
+ * <li>listing the factory classes in <code>META-INF/services/com.googlecode.webutilities.filters.compression.EncodedStreamsFactory</code>
+ * ({@link ServiceLoader}), their {@link #getContentEncoding()} tells the encoding</li>
+ * <li>calling {@link #register(String, EncodedStreamsFactory)}, as <code>CompressionFilter</code> does for its
+ * <code>encodings</code> init parameter</li>
+ * </ul>
+ * Plugged in encodings are preferred over the built in ones when the client accepts both, the ones registered later
+ * first. Among the built in ones the order of the client's Accept-Encoding is followed.
+ */
 public abstract class EncodedStreamsFactory {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(EncodedStreamsFactory.class.getName());
 
     private static final EncodedStreamsFactory GZIP_ENCODED_STREAMS_FACTORY = new GZIPEncodedStreamsFactory();
 
@@ -45,17 +63,68 @@ public abstract class EncodedStreamsFactory {
 
     private static final EncodedStreamsFactory DEFLATE_ENCODED_STREAMS_FACTORY = new DeflateEncodedStreamsFactory();
 
-    public static final Map<String, EncodedStreamsFactory> SUPPORTED_ENCODINGS = EncodedStreamsFactory.getSupportedEncodingMap();
+    private static final ConcurrentMap<String, EncodedStreamsFactory> REGISTRY = new ConcurrentHashMap<String, EncodedStreamsFactory>();
+
+    private static final List<String> PREFERENCE = new CopyOnWriteArrayList<String>(); //plugged in ones, most preferred first
+
+    private static final AtomicInteger VERSION = new AtomicInteger();
+
+    public static final Map<String, EncodedStreamsFactory> SUPPORTED_ENCODINGS = Collections.unmodifiableMap(REGISTRY);
+
+    static {
+        REGISTRY.put(CONTENT_ENCODING_GZIP, GZIP_ENCODED_STREAMS_FACTORY);
+        REGISTRY.put(CONTENT_ENCODING_COMPRESS, ZIP_ENCODED_STREAMS_FACTORY);
+        REGISTRY.put(CONTENT_ENCODING_DEFLATE, DEFLATE_ENCODED_STREAMS_FACTORY);
+        loadProviders(EncodedStreamsFactory.class.getClassLoader());
+    }
+
+    /**
+     * Registers (or replaces) the factory of the encoding, making it the most preferred one
+     *
+     * @param contentEncoding - content encoding token, eg. br
+     * @param factory         - factory of its streams
+     */
+    public static synchronized void register(String contentEncoding, EncodedStreamsFactory factory) {
+        String encoding = contentEncoding.trim().toLowerCase();
+        REGISTRY.put(encoding, factory);
+        PREFERENCE.remove(encoding);
+        PREFERENCE.add(0, encoding);
+        VERSION.incrementAndGet();
+        LOGGER.debug("Registered {} encoding: {}", encoding, factory.getClass().getName());
+    }
 
-    private static Map<String, EncodedStreamsFactory> getSupportedEncodingMap() {
+    /**
+     * Registers the factories listed as {@link ServiceLoader} providers visible to the class loader
+     *
+     * @param classLoader - class loader to look the providers up with
+     */
+    public static void loadProviders(ClassLoader classLoader) {
+        try {
+            for (EncodedStreamsFactory factory : ServiceLoader.load(EncodedStreamsFactory.class, classLoader)) {
+                String encoding = factory.getContentEncoding();
+                if (encoding == null) {
+                    LOGGER.warn("Ignoring {}, it does not tell its content encoding.", factory.getClass().getName());
+                } else if (REGISTRY.get(encoding) == null || REGISTRY.get(encoding).getClass() != factory.getClass()) {
+                    register(encoding, factory);
+                }
+            }
+        } catch (ServiceConfigurationError error) {
+            LOGGER.warn("Failed to load encoded streams factories. {}", error.getMessage());
+        }
+    }
 
-        if (SUPPORTED_ENCODINGS != null) return SUPPORTED_ENCODINGS;
+    /**
+     * @return number bumped each time an encoding is registered, so that negotiated encodings can be cached
+     */
+    static int getRegistryVersion() {
+        return VERSION.get();
+    }
 
-        Map<String, EncodedStreamsFactory> map = new HashMap<String, EncodedStreamsFactory>();
-        map.put(CONTENT_ENCODING_GZIP, GZIP_ENCODED_STREAMS_FACTORY);
-        map.put(CONTENT_ENCODING_COMPRESS, ZIP_ENCODED_STREAMS_FACTORY);
-        map.put(CONTENT_ENCODING_DEFLATE, DEFLATE_ENCODED_STREAMS_FACTORY);
-        return Collections.unmodifiableMap(map);
+    /**
+     * @return plugged in content encodings, most preferred first
+     */
+    public static List<String> getPreferredEncodings() {
+        return Collections.unmodifiableList(PREFERENCE);
     }
 
     public static boolean isRequestContentEncodingSupported(String contentEncoding) {
@@ -66,7 +135,27 @@ public abstract class EncodedStreamsFactory {
         return SUPPORTED_ENCODINGS.get(contentEncoding);
     }
 
-    public abstract CompressedOutput getCompressedStream(OutputStream outputStream) throws  IOException;
+    /**
+     * @return content encoding this factory is for, must be overridden by factories loaded through {@link ServiceLoader}
+     */
+    public String getContentEncoding() {
+        return null;
+    }
+
+    public abstract CompressedOutput getCompressedStream(OutputStream outputStream) throws IOException;
+
+    /**
+     * Same as {@link #getCompressedStream(OutputStream)}, using the given profile. Factories ignore the profile unless
+     * they override this, as the built in zlib based ones (gzip, deflate and compress) do.
+     *
+     * @param outputStream - where compressed bytes are written
+     * @param profile      - compression level, strategy and buffer size
+     * @return compressed output
+     * @throws IOException - in case stream could not be created
+     */
+    public CompressedOutput getCompressedStream(OutputStream outputStream, CompressionProfile profile) throws IOException {
+        return getCompressedStream(outputStream);
+    }
 
     public abstract CompressedInput getCompressedStream(InputStream inputStream) throws IOException;
 
@@ -74,9 +163,20 @@ public abstract class EncodedStreamsFactory {
 
 class GZIPEncodedStreamsFactory extends EncodedStreamsFactory {
 
-    public CompressedOutput getCompressedStream(final OutputStream outputStream) throws IOException {
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING_GZIP;
+    }
+
+    @Override
+    public CompressedOutput getCompressedStream(OutputStream outputStream) throws IOException {
+        return getCompressedStream(outputStream, CompressionProfile.DEFAULT);
+    }
+
+    @Override
+    public CompressedOutput getCompressedStream(final OutputStream outputStream, final CompressionProfile profile) throws IOException {
         return new CompressedOutput() {
-            private final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+            private final DeflaterOutputStream gzipOutputStream = new PooledDeflaterOutputStream(outputStream, CompressorPool.getInstance(), profile, true);
 
             public OutputStream getCompressedOutputStream() {
                 return gzipOutputStream;
@@ -94,7 +194,7 @@ class GZIPEncodedStreamsFactory extends EncodedStreamsFactory {
         return new CompressedInput() {
 
             public InputStream getCompressedInputStream() throws IOException {
-                return new GZIPInputStream(inputStream);
+                return PooledInflaterInputStream.gzip(inputStream, CompressorPool.getInstance());
             }
 
         };
@@ -104,29 +204,26 @@ class GZIPEncodedStreamsFactory extends EncodedStreamsFactory {
 
 class ZIPEncodedStreamsFactory extends EncodedStreamsFactory {
 
-    public CompressedOutput getCompressedStream(final OutputStream outputStream) throws IOException {
-        return new CompressedOutput() {
-            private final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING_COMPRESS;
+    }
 
-            boolean entryAdded = false;
+    @Override
+    public CompressedOutput getCompressedStream(OutputStream outputStream) throws IOException {
+        return getCompressedStream(outputStream, CompressionProfile.DEFAULT);
+    }
+
+    @Override
+    public CompressedOutput getCompressedStream(final OutputStream outputStream, final CompressionProfile profile) throws IOException {
+        return new CompressedOutput() {
+            private final DeflaterOutputStream zipOutputStream = new PooledDeflaterOutputStream(outputStream, CompressorPool.getInstance(), profile, PooledDeflaterOutputStream.Format.ZIP);
 
             public OutputStream getCompressedOutputStream() {
-                if(!entryAdded){
-                    try{
-                        ZipEntry entry = new ZipEntry("compressed-response.out");
-                        zipOutputStream.putNextEntry(entry);
-                        entryAdded = true;
-                    }catch (IOException ioe){
-                        //ignore
-                    }
-                }
                 return zipOutputStream;
             }
 
             public void finish() throws IOException {
-                if(entryAdded){
-                    zipOutputStream.closeEntry();
-                }
                 zipOutputStream.finish();
             }
         };
@@ -138,7 +235,9 @@ class ZIPEncodedStreamsFactory extends EncodedStreamsFactory {
         return new CompressedInput() {
 
             public InputStream getCompressedInputStream() throws IOException {
-                return new ZipInputStream(inputStream);
+                ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+                zipInputStream.getNextEntry(); //nothing can be read before the entry is positioned
+                return zipInputStream;
             }
 
         };
@@ -148,9 +247,20 @@ class ZIPEncodedStreamsFactory extends EncodedStreamsFactory {
 
 class DeflateEncodedStreamsFactory extends EncodedStreamsFactory {
 
-    public CompressedOutput getCompressedStream(final OutputStream outputStream) {
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING_DEFLATE;
+    }
+
+    @Override
+    public CompressedOutput getCompressedStream(OutputStream outputStream) throws IOException {
+        return getCompressedStream(outputStream, CompressionProfile.DEFAULT);
+    }
+
+    @Override
+    public CompressedOutput getCompressedStream(final OutputStream outputStream, final CompressionProfile profile) throws IOException {
         return new CompressedOutput() {
-            private final DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream);
+            private final DeflaterOutputStream deflaterOutputStream = new PooledDeflaterOutputStream(outputStream, CompressorPool.getInstance(), profile, false);
 
             public OutputStream getCompressedOutputStream() {
                 return deflaterOutputStream;
@@ -168,7 +278,7 @@ class DeflateEncodedStreamsFactory extends EncodedStreamsFactory {
         return new CompressedInput() {
 
             public InputStream getCompressedInputStream() throws IOException {
-                return new DeflaterInputStream(inputStream);
+                return PooledInflaterInputStream.deflate(inputStream, CompressorPool.getInstance());
             }
 
         };
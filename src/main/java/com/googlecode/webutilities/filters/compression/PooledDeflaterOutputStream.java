@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * DeflaterOutputStream on a deflater borrowed from {@link CompressorPool}, writing zlib (deflate encoding), gzip or
+ * single entry zip (compress encoding) format. The output buffer, when of the default size, is a chunk borrowed from
+ * the pool too. They are given back to the pool as soon as the stream is finished or closed, the stream can not be
+ * written anymore after that.
+ * <p/>
+ * <code>GZIPOutputStream</code> and <code>ZipOutputStream</code> always create their own deflater, so the gzip header
+ * and trailer, and the zip headers, data descriptor and central directory are written here. The zip entry is written
+ * without zip64 extensions, so it can not be larger than 4GB.
+ *
+ * @version 1.0
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    public enum Format {ZLIB, GZIP, ZIP}
+
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, //magic
+        Deflater.DEFLATED, 0, //method, flags
+        0, 0, 0, 0, //modification time
+        0, 0 //extra flags, OS
+    };
+
+    private static final String ZIP_ENTRY_NAME = "compressed-response.out";
+
+    private static final int ZIP_LOCAL_HEADER = 0x04034b50, ZIP_DATA_DESCRIPTOR = 0x08074b50,
+        ZIP_CENTRAL_HEADER = 0x02014b50, ZIP_END = 0x06054b50; //signatures
+
+    private static final int ZIP_VERSION = 20, ZIP_FLAG_DATA_DESCRIPTOR = 8, ZIP_DOS_DATE = (1 << 5) | 1; //1980-01-01
+
+    private final CompressorPool pool;
+
+    private final int level;
+
+    private final Format format;
+
+    private final CRC32 crc;
+
+    private final boolean pooledBuffer; //buffer of the default size is a chunk of the pool
+
+    private boolean released;
+
+    /**
+     * @param outputStream - where compressed bytes are written
+     * @param pool         - pool to borrow the deflater from
+     * @param profile      - compression level, strategy and buffer size
+     * @param gzip         - true for gzip format, false for zlib
+     * @throws IOException - in case writing gzip header fails
+     */
+    public PooledDeflaterOutputStream(OutputStream outputStream, CompressorPool pool, CompressionProfile profile, boolean gzip) throws IOException {
+        this(outputStream, pool, profile, gzip ? Format.GZIP : Format.ZLIB);
+    }
+
+    /**
+     * @param outputStream - where compressed bytes are written
+     * @param pool         - pool to borrow the deflater from
+     * @param profile      - compression level, strategy and buffer size
+     * @param format       - zlib, gzip or zip
+     * @throws IOException - in case writing gzip or zip header fails
+     */
+    public PooledDeflaterOutputStream(OutputStream outputStream, CompressorPool pool, CompressionProfile profile, Format format) throws IOException {
+        super(outputStream, pool.borrowDeflater(profile.getLevel(), profile.getStrategy(), format != Format.ZLIB), 1); //buffer set below
+        this.pooledBuffer = profile.getBufferSize() == CompressorPool.CHUNK_SIZE;
+        this.buf = pooledBuffer ? pool.borrowChunk() : new byte[profile.getBufferSize()];
+        this.pool = pool;
+        this.level = profile.getLevel();
+        this.format = format;
+        this.crc = format != Format.ZLIB ? new CRC32() : null;
+        if (format == Format.GZIP) {
+            outputStream.write(GZIP_HEADER);
+        } else if (format == Format.ZIP) {
+            writeInt(ZIP_LOCAL_HEADER);
+            writeZipEntry(0, 0, 0); //crc and sizes follow the data
+            outputStream.write(ZIP_ENTRY_NAME.getBytes("US-ASCII"));
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            throw new IOException("Stream has been already finished");
+        }
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (released) return;
+        try {
+            super.finish();
+            if (format == Format.GZIP) {
+                writeInt((int) crc.getValue());
+                writeInt((int) def.getBytesRead());
+            } else if (format == Format.ZIP) {
+                finishZip();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            pool.returnDeflater(def, level, format != Format.ZLIB);
+            if (pooledBuffer) {
+                pool.returnChunk(buf);
+            }
+            buf = null; //not to be written through anymore
+        }
+    }
+
+    private void finishZip() throws IOException {
+        long compressedSize = def.getBytesWritten(), size = def.getBytesRead();
+        if (compressedSize > 0xffffffffL || size > 0xffffffffL) {
+            throw new IOException("Zip entry of " + size + " bytes needs zip64");
+        }
+        int crc = (int) this.crc.getValue();
+        writeInt(ZIP_DATA_DESCRIPTOR);
+        writeInt(crc);
+        writeInt((int) compressedSize);
+        writeInt((int) size);
+        long centralDirectoryOffset = 30 + ZIP_ENTRY_NAME.length() + compressedSize + 16;
+        writeInt(ZIP_CENTRAL_HEADER);
+        writeShort(ZIP_VERSION); //made by
+        writeZipEntry(crc, compressedSize, size);
+        writeShort(0); //comment length
+        writeShort(0); //disk number
+        writeShort(0); //internal attributes
+        writeInt(0); //external attributes
+        writeInt(0); //local header offset
+        out.write(ZIP_ENTRY_NAME.getBytes("US-ASCII"));
+        writeInt(ZIP_END);
+        writeShort(0); //disk number
+        writeShort(0); //disk with central directory
+        writeShort(1); //entries on disk
+        writeShort(1); //entries
+        writeInt(46 + ZIP_ENTRY_NAME.length()); //central directory size
+        writeInt((int) centralDirectoryOffset);
+        writeShort(0); //comment length
+    }
+
+    //common to local and central headers, from version needed to extra field length
+    private void writeZipEntry(int crc, long compressedSize, long size) throws IOException {
+        writeShort(ZIP_VERSION);
+        writeShort(ZIP_FLAG_DATA_DESCRIPTOR);
+        writeShort(Deflater.DEFLATED);
+        writeShort(0); //time
+        writeShort(ZIP_DOS_DATE);
+        writeInt(crc);
+        writeInt((int) compressedSize);
+        writeInt((int) size);
+        writeShort(ZIP_ENTRY_NAME.length());
+        writeShort(0); //extra field length
+    }
+
+    //little endian, as gzip and zip want
+    private void writeShort(int s) throws IOException {
+        out.write(s & 0xff);
+        out.write((s >> 8) & 0xff);
+    }
+
+    //little endian, as gzip and zip want
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+}
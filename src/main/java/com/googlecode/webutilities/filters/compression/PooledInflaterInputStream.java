@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.filters.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * InflaterInputStream on an inflater borrowed from {@link CompressorPool}, reading either gzip or deflate (zlib, or
+ * raw deflate some clients send instead) format. The inflater is given back to the pool as soon as the end of the
+ * compressed data is reached or the stream is closed.
+ * <p/>
+ * <code>GZIPInputStream</code> always creates its own inflater, so the gzip header and trailer are read here. Only
+ * the first member of a gzip stream is read.
+ *
+ * @version 1.0
+ */
+public class PooledInflaterInputStream extends InflaterInputStream {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16; //gzip header flags
+
+    private final CompressorPool pool;
+
+    private final boolean nowrap;
+
+    private final CRC32 crc; //null unless gzip
+
+    private boolean released;
+
+    private PooledInflaterInputStream(InputStream inputStream, CompressorPool pool, boolean nowrap, boolean gzip) {
+        super(inputStream, pool.borrowInflater(nowrap), BUFFER_SIZE);
+        this.pool = pool;
+        this.nowrap = nowrap;
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    /**
+     * @param inputStream - gzip compressed bytes
+     * @param pool        - pool to borrow the inflater from
+     * @return stream of inflated bytes
+     * @throws IOException - in case gzip header is invalid or can not be read
+     */
+    public static InputStream gzip(InputStream inputStream, CompressorPool pool) throws IOException {
+        readGzipHeader(inputStream);
+        return new PooledInflaterInputStream(inputStream, pool, true, true);
+    }
+
+    /**
+     * @param inputStream - zlib or raw deflate compressed bytes
+     * @param pool        - pool to borrow the inflater from
+     * @return stream of inflated bytes
+     * @throws IOException - in case first bytes can not be read
+     */
+    public static InputStream deflate(InputStream inputStream, CompressorPool pool) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(inputStream, 2);
+        int b0 = pushback.read();
+        int b1 = b0 == -1 ? -1 : pushback.read();
+        if (b1 != -1) pushback.unread(b1);
+        if (b0 != -1) pushback.unread(b0);
+        boolean zlib = b1 != -1 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0; //CM deflate and FCHECK
+        return new PooledInflaterInputStream(pushback, pool, !zlib, false);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            return -1;
+        }
+        int n;
+        try {
+            n = super.read(b, off, len);
+        } catch (IOException ex) {
+            release();
+            throw ex;
+        }
+        if (n > 0 && crc != null) {
+            crc.update(b, off, n);
+        }
+        if (n == -1 || inf.finished()) {
+            try {
+                if (crc != null) {
+                    readGzipTrailer();
+                }
+            } finally {
+                release();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return released ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            pool.returnInflater(inf, nowrap);
+        }
+    }
+
+    private void readGzipTrailer() throws IOException {
+        int remaining = inf.getRemaining();
+        InputStream trailer = remaining > 0 ? new TrailerInputStream(buf, len - remaining, remaining, in) : in;
+        long expectedCrc = readInt(trailer) & 0xffffffffL;
+        long expectedSize = readInt(trailer) & 0xffffffffL;
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("Corrupt GZIP trailer, CRC mismatch");
+        }
+        if (expectedSize != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer, size mismatch");
+        }
+    }
+
+    private static void readGzipHeader(InputStream in) throws IOException {
+        if ((readUByte(in) | (readUByte(in) << 8)) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUByte(in) != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readUByte(in);
+        skipBytes(in, 6); //modification time, extra flags, OS
+        if ((flags & FEXTRA) == FEXTRA) {
+            skipBytes(in, readUByte(in) | (readUByte(in) << 8));
+        }
+        if ((flags & FNAME) == FNAME) {
+            while (readUByte(in) != 0) ;
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            while (readUByte(in) != 0) ;
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            skipBytes(in, 2);
+        }
+    }
+
+    //little endian, as gzip wants
+    private static int readInt(InputStream in) throws IOException {
+        return readUByte(in) | (readUByte(in) << 8) | (readUByte(in) << 16) | (readUByte(in) << 24);
+    }
+
+    private static int readUByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of GZIP input stream");
+        }
+        return b;
+    }
+
+    private static void skipBytes(InputStream in, int n) throws IOException {
+        while (n-- > 0) {
+            readUByte(in);
+        }
+    }
+
+    /**
+     * Bytes left over in the inflater's buffer followed by the rest of the stream
+     */
+    private static final class TrailerInputStream extends InputStream {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private final int end;
+
+        private final InputStream rest;
+
+        TrailerInputStream(byte[] buffer, int offset, int length, InputStream rest) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return position < end ? buffer[position++] & 0xff : rest.read();
+        }
+    }
+
+}
@@ -17,8 +17,11 @@
 package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.common.Constants;
+import com.googlecode.webutilities.filters.compression.AcceptEncoding;
+import com.googlecode.webutilities.filters.compression.AdaptiveCompressionPolicy;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletRequestWrapper;
 import com.googlecode.webutilities.filters.compression.CompressedHttpServletResponseWrapper;
+import com.googlecode.webutilities.filters.compression.CompressionProfiles;
 import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
@@ -47,12 +50,22 @@ public class CompressionModule implements IModule {
 
         int threshold = Constants.DEFAULT_COMPRESSION_SIZE_THRESHOLD;
 
-        if (tokens.length > 1) {
-            if ("threshold".equals(tokens[index++])) {
-                threshold = Utils.readInt(tokens[index], threshold);
+        String profiles = null;
+
+        int cpuBudget = 0; //not adaptive
+
+        //Compression [threshold <bytes>] [profile <mime=..,minSize=..,level=..;...>] [adaptive <cpu budget percent>]
+        while (index + 1 < tokens.length) {
+            String name = tokens[index++];
+            if ("threshold".equals(name)) {
+                threshold = Utils.readInt(tokens[index++], threshold);
+            } else if ("profile".equals(name)) {
+                profiles = tokens[index++];
+            } else if ("adaptive".equals(name)) {
+                cpuBudget = Utils.readInt(tokens[index++], AdaptiveCompressionPolicy.DEFAULT_CPU_BUDGET_PERCENT);
             }
         }
-        pair = new CompressionRulePair(new StartCompressionRule(threshold), new FinishCompressionRule());
+        pair = new CompressionRulePair(new StartCompressionRule(threshold, profiles, cpuBudget), new FinishCompressionRule());
 
         return pair;
     }
@@ -64,8 +77,22 @@ class StartCompressionRule implements PreChainDirective {
 
     int threshold;
 
-    StartCompressionRule(int threshold) {
+    String profilesSpec;
+
+    CompressionProfiles profiles;
+
+    int cpuBudget;
+
+    AdaptiveCompressionPolicy adaptivePolicy; //null if not adaptive
+
+    StartCompressionRule(int threshold, String profilesSpec, int cpuBudget) {
         this.threshold = threshold;
+        this.profilesSpec = profilesSpec;
+        this.profiles = CompressionProfiles.parse(profilesSpec);
+        this.cpuBudget = cpuBudget;
+        if (cpuBudget > 0) {
+            this.adaptivePolicy = new AdaptiveCompressionPolicy(AdaptiveCompressionPolicy.DEFAULT_MIN_THRESHOLD, threshold, cpuBudget);
+        }
     }
 
     @Override
@@ -73,6 +100,8 @@ class StartCompressionRule implements PreChainDirective {
         //!TODO
 //        CompressedHttpServletResponseWrapper responseWrapper = (CompressedHttpServletResponseWrapper) response;
 //        responseWrapper.setThreshold(threshold);
+//        responseWrapper.setCompressionProfiles(profiles);
+//        responseWrapper.setAdaptivePolicy(adaptivePolicy);
         return IDirective.OK;
     }
 
@@ -83,13 +112,13 @@ class StartCompressionRule implements PreChainDirective {
 
         StartCompressionRule that = (StartCompressionRule) o;
 
-        return that.threshold == threshold;
+        return that.threshold == threshold && that.cpuBudget == cpuBudget && (profilesSpec == null ? that.profilesSpec == null : profilesSpec.equals(that.profilesSpec));
 
     }
 
     @Override
     public int hashCode() {
-        return threshold;
+        return 31 * (31 * threshold + cpuBudget) + (profilesSpec != null ? profilesSpec.hashCode() : 0);
     }
 }
 
@@ -138,29 +167,6 @@ class CompressionRulePair extends DirectivePair {
         super(preChainDirective, postChainDirective);
     }
 
-    private String getAppropriateContentEncoding(String acceptEncoding) {
-        if (acceptEncoding == null) return null;
-
-        String contentEncoding = null;
-        if (CONTENT_ENCODING_IDENTITY.equals(acceptEncoding.trim())) {
-            return contentEncoding; //no encoding to be applied
-        }
-
-        String[] clientAccepts = acceptEncoding.split(",");
-
-        //!TODO select best encoding (based on q) when multiple encoding are accepted by client
-        //@see http://stackoverflow.com/questions/3225136/http-what-is-the-preferred-accept-encoding-for-gzip-deflate
-        for (String accepts : clientAccepts) {
-            if (CONTENT_ENCODING_IDENTITY.equals(accepts.trim())) {
-                return contentEncoding;
-            } else if (EncodedStreamsFactory.SUPPORTED_ENCODINGS.containsKey(accepts.trim())) {
-                contentEncoding = accepts; //get first matching encoding
-                break;
-            }
-        }
-        return contentEncoding;
-    }
-
     @Override
     public ModuleResponse getResponse(HttpServletRequest request, HttpServletResponse response) {
 
@@ -171,7 +177,7 @@ class CompressionRulePair extends DirectivePair {
 
         String acceptEncoding = request.getHeader(HTTP_ACCEPT_ENCODING_HEADER);
 
-        String contentEncoding = getAppropriateContentEncoding(acceptEncoding);
+        String contentEncoding = AcceptEncoding.negotiate(acceptEncoding);
 
         if (contentEncoding == null) {
             //LOGGER.finest("No Compression: Accept encoding is : " + acceptEncoding);
@@ -18,17 +18,18 @@ package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
+import com.googlecode.webutilities.util.CSSURLRewriter;
 import com.googlecode.webutilities.util.Utils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.regex.Matcher;
 
 import static com.googlecode.webutilities.common.Constants.*;
 
@@ -241,48 +242,26 @@ class JSCSSMergeDirective implements PreChainDirective {
      * @param outputStream - output stream
      * @throws java.io.IOException - throws exception in case something woes wrong (IO read/write)
      */
-    private void processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            outputStream.write((line + "\n").getBytes());
-        }
-    }
-
-    /**
-     * @param context - ServletContext
-     * @param contextPath - context path or custom configured context path
-     * @param cssFilePath - css file path
-     * @param line - one single line in a css file
-     * @return processed string with appropriate replacement of image URLs if any
-     */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer line) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-        String cssRealPath = context.getRealPath(cssFilePath);
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+    private void processCSS(final String contextPath, final String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
+        final String cssRealPath = context.getRealPath(cssFilePath);
+        int lastByte = CSSURLRewriter.rewrite(inputStream, outputStream, Charset.forName("UTF-8"), new CSSURLRewriter.URLHandler() {
+            @Override
+            public String rewrite(String refImgPath) {
+                if (Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+                    return null;
+                }
                 String resolvedImgPath = refImgPath;
                 if (!refImgPath.startsWith("/")) {
                     resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(cssFilePath), refImgPath);
                 }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
                 String fingerPrint = Utils.buildETagForResource(resolvedImgPath, context);
-                int offset = line.indexOf(refImgPath);
-                line.replace(
-                        offset, //from
-                        offset + refImgPath.length(), //to
-                        contextPath + Utils.addFingerPrint(fingerPrint, resolvedImgPath)
-                );
-
-                Utils.updateReferenceMap(cssRealPath, imgRealPath);
+                Utils.updateReferenceMap(context, cssRealPath, context.getRealPath(resolvedImgPath));
+                return contextPath + Utils.addFingerPrint(fingerPrint, resolvedImgPath);
             }
+        });
+        if (lastByte != -1 && lastByte != '\n') { //keep merged files on separate lines
+            outputStream.write('\n');
         }
-        return line.toString();
     }
 
     /**
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.servlets;
+
+import com.google.common.io.CharStreams;
+
+import javax.servlet.ServletContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.googlecode.webutilities.common.Constants.EXT_CSS;
+import static com.googlecode.webutilities.common.Constants.EXT_JS;
+
+/**
+ * Finds the bundle urls to be warmed up, from a manifest or from the JSPs of the web application, and warms them up
+ * on a bounded pool of threads.
+ * <p/>
+ * Manifest is a plain text file listing one bundle url (context relative, eg. <code>/js/a,b,c.js</code>) per line.
+ * Empty lines and lines starting with # are ignored. JSPs are scanned for the <code>value</code> attribute of
+ * <code>&lt;prefix:url&gt;</code> tags ({@link com.googlecode.webutilities.tags.URLTag}), dynamic values are skipped.
+ *
+ * @version 1.0
+ */
+final class BundleWarmUp {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleWarmUp.class.getName());
+
+    private static final Pattern URL_TAG_PATTERN = Pattern.compile("<\\w+:url\\s[^>]*?value\\s*=\\s*[\"']([^\"'$<%]+)[\"']");
+
+    private static final String[] JSP_EXTENSIONS = {".jsp", ".jspf", ".jspx", ".tag"};
+
+    /**
+     * Warms up one bundle
+     */
+    interface Warmer {
+
+        /**
+         * @param url - context relative bundle url
+         * @return true if warmed up, false if there was nothing to warm up (eg. resources not found)
+         * @throws IOException - in case merging fails
+         */
+        boolean warmUp(String url) throws IOException;
+    }
+
+    private BundleWarmUp() {
+    } //non instantiable
+
+    /**
+     * @param context      - servlet context
+     * @param manifestPath - context relative path of the manifest
+     * @return bundle urls listed in the manifest, empty if it is not found
+     */
+    static List<String> readManifest(ServletContext context, String manifestPath) {
+        List<String> urls = new ArrayList<String>();
+        String manifest = read(context, manifestPath);
+        if (manifest == null) {
+            LOGGER.warn("Warm up manifest {} not found.", manifestPath);
+            return urls;
+        }
+        for (String line : manifest.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                urls.add(line);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @param context - servlet context
+     * @return JS and CSS urls used with url tag in the JSPs of the web application
+     */
+    static List<String> scanJSPs(ServletContext context) {
+        Set<String> urls = new LinkedHashSet<String>();
+        scanJSPs(context, "/", urls);
+        return new ArrayList<String>(urls);
+    }
+
+    private static void scanJSPs(ServletContext context, String directory, Set<String> urls) {
+        Set<?> paths = context.getResourcePaths(directory);
+        if (paths == null) return;
+        for (Object pathObject : paths) {
+            String path = String.valueOf(pathObject);
+            if (path.endsWith("/")) {
+                if (!path.startsWith("/WEB-INF/lib/") && !path.startsWith("/WEB-INF/classes/")) {
+                    scanJSPs(context, path, urls);
+                }
+            } else if (isJSP(path)) {
+                String jsp = read(context, path);
+                if (jsp == null) continue;
+                Matcher matcher = URL_TAG_PATTERN.matcher(jsp);
+                while (matcher.find()) {
+                    String url = matcher.group(1).trim();
+                    if (url.endsWith(EXT_JS) || url.endsWith(EXT_CSS)) {
+                        urls.add(url);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Warms up all the urls on a pool of at most given threads and waits for them to finish
+     *
+     * @param urls           - bundle urls
+     * @param warmer         - warms up one bundle
+     * @param threads        - maximum threads to use
+     * @param timeoutSeconds - maximum time to wait for all of them
+     * @return milliseconds taken to warm up each url, -1 for the ones failed, skipped or timed out
+     */
+    static Map<String, Long> run(Collection<String> urls, final Warmer warmer, int threads, long timeoutSeconds) {
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        if (urls.isEmpty()) return timings;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, urls.size())), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "webutilities-warm-up-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<String> urlList = new ArrayList<String>(urls);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(urlList.size());
+        for (final String url : urlList) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long start = System.nanoTime();
+                    boolean warmedUp = warmer.warmUp(url);
+                    return warmedUp ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) : -1L;
+                }
+            });
+        }
+        try {
+            List<Future<Long>> futures = executor.invokeAll(tasks, timeoutSeconds, TimeUnit.SECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                String url = urlList.get(i);
+                long took = -1;
+                try {
+                    took = futures.get(i).get();
+                } catch (CancellationException ex) {
+                    LOGGER.warn("Warm up of {} timed out.", url);
+                } catch (ExecutionException ex) {
+                    LOGGER.warn("Warm up of {} failed. {}", url, ex.getCause());
+                }
+                timings.put(url, took);
+                LOGGER.debug("Warm up of {} took {}ms", url, took);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Warm up interrupted.");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return Collections.unmodifiableMap(timings);
+    }
+
+    private static boolean isJSP(String path) {
+        for (String extension : JSP_EXTENSIONS) {
+            if (path.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    private static String read(ServletContext context, String path) {
+        InputStream inputStream = context.getResourceAsStream(path);
+        if (inputStream == null) return null;
+        try {
+            return CharStreams.toString(new InputStreamReader(inputStream, "UTF-8"));
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read {}. {}", path, ex);
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException ex) {
+                LOGGER.trace("Failed to close {}", path);
+            }
+        }
+    }
+
+}
@@ -15,28 +15,69 @@
  */
 package com.googlecode.webutilities.servlets;
 
-import static com.googlecode.webutilities.common.Constants.CSS_IMG_URL_PATTERN;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_BROTLI;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_DEFLATE;
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_CACHE_CONTROL;
+import static com.googlecode.webutilities.common.Constants.DEFAULT_CHARSET;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_EXPIRES_MINUTES;
 import static com.googlecode.webutilities.common.Constants.EXT_CSS;
 import static com.googlecode.webutilities.common.Constants.HEADER_EXPIRES;
 import static com.googlecode.webutilities.common.Constants.HEADER_LAST_MODIFIED;
 import static com.googlecode.webutilities.common.Constants.HEADER_X_OPTIMIZED_BY;
+import static com.googlecode.webutilities.common.Constants.HTTP_ACCEPT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_CACHE_CONTROL_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_CONTENT_ENCODING_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_ETAG_HEADER;
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_MODIFIED_SINCE;
 import static com.googlecode.webutilities.common.Constants.HTTP_IF_NONE_MATCH_HEADER;
+import static com.googlecode.webutilities.common.Constants.HTTP_VARY_HEADER;
+import static com.googlecode.webutilities.common.Constants.PARAM_DEBUG;
+import static com.googlecode.webutilities.common.Constants.PARAM_EXPIRE_CACHE;
+import static com.googlecode.webutilities.common.Constants.PARAM_RESET_CACHE;
+import static com.googlecode.webutilities.common.Constants.PARAM_SKIP_CACHE;
 import static com.googlecode.webutilities.common.Constants.X_OPTIMIZED_BY_VALUE;
 import static com.googlecode.webutilities.util.Utils.*;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import com.googlecode.webutilities.filters.compression.AcceptEncoding;
+import com.googlecode.webutilities.filters.compression.CompressedHttpServletResponseWrapper;
+import com.googlecode.webutilities.filters.compression.CompressedOutput;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+import com.googlecode.webutilities.util.BundleManifest;
+import com.googlecode.webutilities.util.CSSRewritePlan;
+import com.googlecode.webutilities.util.CSSURLRewriter;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.regex.Matcher;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -69,10 +110,20 @@ import javax.servlet.http.HttpServletResponse;
  * 		&lt;param-name&gt;expiresMinutes&lt;/param-name&gt;
  * 		&lt;param-value&gt;7200&lt;/param-value&gt; &lt;!-- 5 days --&gt;
  * 	&lt;/init-param&gt;
- * 	&lt;!-- This init param is also optional and default value is true. Set it false to override. --&gt;
+ * 	&lt;!-- This init param is also optional and default value is false. Set it true to cache merged contents. --&gt;
  * 	&lt;init-param&gt;
  * 		&lt;param-name&gt;useCache&lt;/param-name&gt;
- * 		&lt;param-value&gt;false&lt;/param-value&gt;
+ * 		&lt;param-value&gt;true&lt;/param-value&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- This init param is optional and default value is 16MB. Upper limit on the merged bytes held in the cache. --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;cacheSize&lt;/param-name&gt;
+ * 		&lt;param-value&gt;8388608&lt;/param-value&gt; &lt;!-- 8MB --&gt;
+ * 	&lt;/init-param&gt;
+ * 	&lt;!-- This init param is optional and default value is false. Set it true to serve cached bundles gzip/deflate encoded. --&gt;
+ * 	&lt;init-param&gt;
+ * 		&lt;param-name&gt;precompress&lt;/param-name&gt;
+ * 		&lt;param-value&gt;true&lt;/param-value&gt;
  * 	&lt;/init-param&gt;
  *  &lt;/servlet&gt;
  * ...
@@ -112,20 +163,48 @@ import javax.servlet.http.HttpServletResponse;
  * </p>
  * <pre>
  *  <b>expiresMinutes</b> - Relative number of minutes (added to current time) to be set as Expires header
- *  <b>useCache</b> - to cache the earlier merged contents and serve from cache. Default true.
+ *  <b>useCache</b> - to cache the earlier merged contents and serve from cache. Default false.
+ *  <b>cacheSize</b> - maximum number of merged bytes to keep in the cache, least recently used bundles are evicted first. Default 16MB.
+ *                   CSS rewrite plans are kept in a separate cache of the same size.
+ *  <b>parallelism</b> - maximum number of resources read concurrently, shared by all requests. Resources of a bundle are read
+ *                     concurrently but written in order. Default 1 i.e. read one after the other by the request thread.
+ *  <b>parallelQueueSize</b> - maximum number of resources waiting for a reader thread (needs parallelism). When full, the request
+ *                     thread reads the resource itself. Default 64.
+ *  <b>warmUpManifest</b> - context relative path of a text file listing bundle urls (eg. /js/a,b,c.js) one per line, to be merged and cached during init
+ *                     (needs useCache).
+ *  <b>warmUpScanJSPs</b> - to also warm up the JS/CSS urls used with url tag in the JSPs of the web application. Default false.
+ *  <b>warmUpThreads</b> - maximum number of threads used to warm up bundles. Default 2.
+ *  <b>warmUpTimeout</b> - maximum seconds init waits for the warm up. Default 60.
+ *  <b>charset</b> - charset of the CSS files, used to read and write the urls in them unless the file has a @charset rule. Default UTF-8.
+ *  <b>precompress</b> - to keep gzip and deflate encoded copies of every cached bundle and serve them as per Accept-Encoding. Default false.
+ *  <b>servePrecompressed</b> - to serve <code>foo.js.br</code> or <code>foo.js.gz</code>, if present and not older, as it is
+ *                     when <code>foo.js</code> alone is requested and client accepts br or gzip. Default false.
+ *                     CSS files are served so only when autoCorrectUrlsInCSS is off, as urls in them are not corrected.
  * </pre>
  * <h3>Dependency</h3>
  * <p>Servlet and JSP api (mostly provided by servlet container eg. Tomcat).</p>
  * <p><b>servlet-api.jar</b> - Must be already present in your webapp classpath</p>
  * <h3>Notes on Cache</h3>
- * <p>If you have not set useCache parameter to false then cache will be used and contents will be always served from cache if found.
+ * <p>If you have set useCache parameter to true then cache will be used and contents will be always served from cache if found.
+ * Cached contents are keyed by the list of resources being merged and are validated against the combined ETag of those
+ * resources, so a bundle is merged again as soon as any of its resources changes on disk.
+ * With <b>precompress</b> turned on, the gzip and deflate encoded copies are made once when the bundle is cached and
+ * sent as they are to the clients accepting those encodings, so <code>CompressionFilter</code> won't compress them again.
+ * Each CSS file is also parsed only once per version of it when <b>autoCorrectUrlsInCSS</b> is on. The positions of its
+ * urls and the image paths they resolve to are cached as a rewrite plan, and only the current fingerprints of the images
+ * are spliced in when the CSS is served again.
+ * With warm up configured, the listed bundles are merged (and precompressed) into the cache in <code>init</code>, so
+ * the first requests after deploy don't pay for it. Milliseconds taken for each bundle (-1 if it was not warmed up) are
+ * available as a <code>Map</code> in the servlet context attribute <code>com.googlecode.webutilities.servlets.JSCSSMergeServlet.warmUp.&lt;servlet-name&gt;</code>.
+ * Minification and compression by filters happen on the first request as usual.
  * Sometimes you may not want to use cache or you may want to evict the cache then using URL parameters you can do that.
  * </p>
  * <h4>URL Parameters to skip or evict the cache</h4>
  * <pre>
  * <b>_skipcache_</b> - The JS or CSS request URL if contains this parameters the cache will not be used for it.
  * <b>_dbg_</b> - same as above _skipcache_ parameters.
- * <b>_expirecache_</b> - The cache will be cleaned completely. All existing cached contents will be cleaned.
+ * <b>_expirecache_</b> - The cached contents for the requested resources will be evicted.
+ * <b>_resetcache_</b> - The cache will be cleaned completely. All existing cached contents will be cleaned.
  * </pre>
  * <pre>
  * <b>Eg.</b>
@@ -133,6 +212,12 @@ import javax.servlet.http.HttpServletResponse;
  * or
  * &lt;script language="JavaScript" src="/myapp/js/prototype,controls,dragdrop,myapp.js<b>?_expirecache_=1</b>"&gt;&lt;/script&gt;
  * </pre>
+ * <h3>Compiled bundles</h3>
+ * <p>
+ * Bundles can also be compiled at build time using <code>com.googlecode.webutilities.util.BundleCompiler</code>. When
+ * context init parameter <b>webutilities.manifest</b> points to its manifest, bundles listed in it are served from
+ * their merged, minified and gzipped artifacts as they are, without any processing per request.
+ * </p>
  * <h3>Limitations</h3>
  * <p>
  * The multiple JS or CSS files <b>can be combined together in one request if they are in same parent path</b>. eg. <code><b>/myapp/js/a.js</b></code>, <code><b>/myapp/js/b.js</b></code> and <code><b>/myapp/js/c.js</b></code>
@@ -162,6 +247,42 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     public static final String INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS = "customContextPathForCSSUrls";
 
+    public static final String INIT_PARAM_USE_CACHE = "useCache";
+
+    public static final String INIT_PARAM_CACHE_SIZE = "cacheSize";
+
+    public static final String INIT_PARAM_PRECOMPRESS = "precompress";
+
+    public static final String INIT_PARAM_SERVE_PRECOMPRESSED = "servePrecompressed";
+
+    public static final String INIT_PARAM_PARALLELISM = "parallelism";
+
+    public static final String INIT_PARAM_PARALLEL_QUEUE_SIZE = "parallelQueueSize";
+
+    public static final String INIT_PARAM_WARM_UP_MANIFEST = "warmUpManifest";
+
+    public static final String INIT_PARAM_WARM_UP_SCAN_JSPS = "warmUpScanJSPs";
+
+    public static final String INIT_PARAM_WARM_UP_THREADS = "warmUpThreads";
+
+    public static final String INIT_PARAM_WARM_UP_TIMEOUT = "warmUpTimeout";
+
+    public static final String INIT_PARAM_CHARSET = "charset";
+
+    public static final String WARM_UP_TIMINGS_ATTRIBUTE_PREFIX = JSCSSMergeServlet.class.getName() + ".warmUp.";
+
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024; //16MB
+
+    private static final int DEFAULT_WARM_UP_THREADS = 2;
+
+    private static final long DEFAULT_WARM_UP_TIMEOUT = 60; //seconds
+
+    private static final String[] PRECOMPRESSED_ENCODINGS = {CONTENT_ENCODING_GZIP, CONTENT_ENCODING_DEFLATE}; //in order of preference
+
+    private static final String[][] PRECOMPRESSED_SIBLINGS = {{CONTENT_ENCODING_BROTLI, ".br"}, {CONTENT_ENCODING_GZIP, ".gz"}}; //encoding, file suffix
+
+    private static final String BUNDLE_NODE_PREFIX = JSCSSMergeServlet.class.getName() + ":";
+
     private long expiresMinutes = DEFAULT_EXPIRES_MINUTES; //default value 7 days
 
     private String cacheControl = DEFAULT_CACHE_CONTROL; //default
@@ -176,6 +297,54 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     private boolean turnOfUrlFingerPrinting = false; //default enabled fingerprinting
 
+    private boolean useCache = false; //default
+
+    private Charset charset = Charset.forName(DEFAULT_CHARSET); //of the CSS files not declaring one
+
+    private long cacheSize = DEFAULT_CACHE_SIZE; //default
+
+    private boolean precompress = false; //default
+
+    private boolean servePrecompressed = false; //default
+
+    private Cache<String, CachedBundle> cache;
+
+    private Cache<String, CachedPlan> planCache;
+
+    private ExecutorService executor; //null unless resources are to be read concurrently
+
+    private String realRoot; //real path of the web application, null if it has none (eg. unexploded WAR)
+
+    private ResourceMetadataRegistry.InvalidationListener invalidationListener; //null unless bundles are cached
+
+    private Cache<String, CachedBundle> buildCache(long maxBytes) {
+        return CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, CachedBundle>() {
+                @Override
+                public int weigh(String key, CachedBundle bundle) {
+                    return bundle.getSize();
+                }
+            })
+            .removalListener(new RemovalListener<String, CachedBundle>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, CachedBundle> notification) {
+                    ResourceMetadataRegistry.getInstance(getServletContext()).getDependencyGraph().remove(BUNDLE_NODE_PREFIX + notification.getKey());
+                }
+            }).build();
+    }
+
+    private static Cache<String, CachedPlan> buildPlanCache(long maxBytes) {
+        return CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, CachedPlan>() {
+                @Override
+                public int weigh(String key, CachedPlan cachedPlan) {
+                    return cachedPlan.getPlan().getSize();
+                }
+            }).build();
+    }
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -185,13 +354,143 @@ public class JSCSSMergeServlet extends HttpServlet {
         this.turnOfETag = readBoolean(config.getInitParameter(INIT_PARAM_TURN_OFF_E_TAG), this.turnOfETag);
         this.turnOfUrlFingerPrinting = readBoolean(config.getInitParameter(INIT_PARAM_TURN_OFF_URL_FINGERPRINTING), this.turnOfUrlFingerPrinting);
         this.customContextPathForCSSUrls = config.getInitParameter(INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS);
-        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n}", new Object[]{
+        this.useCache = readBoolean(config.getInitParameter(INIT_PARAM_USE_CACHE), this.useCache);
+        this.cacheSize = readLong(config.getInitParameter(INIT_PARAM_CACHE_SIZE), this.cacheSize);
+        this.precompress = readBoolean(config.getInitParameter(INIT_PARAM_PRECOMPRESS), this.precompress);
+        this.servePrecompressed = readBoolean(config.getInitParameter(INIT_PARAM_SERVE_PRECOMPRESSED), this.servePrecompressed);
+        String charsetName = config.getInitParameter(INIT_PARAM_CHARSET);
+        if (charsetName != null && Charset.isSupported(charsetName)) {
+            this.charset = Charset.forName(charsetName);
+        } else if (charsetName != null) {
+            LOGGER.debug("Charset {} not supported. Using default: {}", charsetName, DEFAULT_CHARSET);
+        }
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.acquire(config.getServletContext());
+        this.realRoot = registry.getRealPath("/");
+        this.cache = this.useCache && this.cacheSize > 0 ? this.buildCache(this.cacheSize) : null;
+        this.planCache = this.useCache && this.cacheSize > 0 ? buildPlanCache(this.cacheSize) : null;
+        if (this.cache != null) { //evict bundles as soon as any of the resources (or images referred by css) changes
+            this.invalidationListener = new ResourceMetadataRegistry.InvalidationListener() {
+                @Override
+                public void invalidated(String key) {
+                    if (key.startsWith(BUNDLE_NODE_PREFIX)) {
+                        cache.invalidate(key.substring(BUNDLE_NODE_PREFIX.length()));
+                    }
+                }
+
+                @Override
+                public void invalidatedAll() {
+                    cache.invalidateAll();
+                    planCache.invalidateAll();
+                }
+            };
+            registry.addInvalidationListener(this.invalidationListener);
+        }
+        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n\t{}:{}\n\t{}:{}\n\t{}:{}\n}", new Object[]{
             INIT_PARAM_EXPIRES_MINUTES, String.valueOf(this.expiresMinutes),
             INIT_PARAM_CACHE_CONTROL, this.cacheControl,
             INIT_PARAM_AUTO_CORRECT_URLS_IN_CSS, String.valueOf(this.autoCorrectUrlsInCSS),
             INIT_PARAM_TURN_OFF_E_TAG, String.valueOf(this.turnOfETag),
-            INIT_PARAM_TURN_OFF_URL_FINGERPRINTING, String.valueOf(this.turnOfUrlFingerPrinting)}
+            INIT_PARAM_TURN_OFF_URL_FINGERPRINTING, String.valueOf(this.turnOfUrlFingerPrinting),
+            INIT_PARAM_USE_CACHE, String.valueOf(this.useCache),
+            INIT_PARAM_CACHE_SIZE, String.valueOf(this.cacheSize),
+            INIT_PARAM_PRECOMPRESS, String.valueOf(this.precompress)}
         );
+        int parallelism = readInt(config.getInitParameter(INIT_PARAM_PARALLELISM), 1);
+        int parallelQueueSize = Math.max(1, readInt(config.getInitParameter(INIT_PARAM_PARALLEL_QUEUE_SIZE), 64));
+        if (parallelism > 1) {
+            ThreadPoolExecutor readers = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(parallelQueueSize), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "webutilities-resource-reader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() {
+                @Override
+                public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                    task.run(); //also once shut down, so that no future is left pending for the request
+                }
+            });
+            readers.allowCoreThreadTimeOut(true);
+            this.executor = readers;
+        } else {
+            this.executor = null;
+        }
+        LOGGER.debug("Reading resources with parallelism {}, queue {}", parallelism, parallelQueueSize);
+        this.warmUp(config);
+    }
+
+    /**
+     * Merges and caches the bundles listed in warm up manifest and/or found in JSPs, if configured
+     *
+     * @param config - servlet config
+     */
+    private void warmUp(ServletConfig config) {
+        String manifest = config.getInitParameter(INIT_PARAM_WARM_UP_MANIFEST);
+        boolean scanJSPs = readBoolean(config.getInitParameter(INIT_PARAM_WARM_UP_SCAN_JSPS), false);
+        if (manifest == null && !scanJSPs) {
+            return;
+        }
+        final ServletContext context = config.getServletContext();
+        final String contextPath = customContextPathForCSSUrls != null ? customContextPathForCSSUrls : contextPathOf(context);
+        if (cache == null || contextPath == null) {
+            LOGGER.warn("Skipping warm up as {}.", cache == null ? "cache is off" : "context path is not known, set " + INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS);
+            return;
+        }
+        Set<String> urls = new LinkedHashSet<String>();
+        if (manifest != null) {
+            urls.addAll(BundleWarmUp.readManifest(context, manifest));
+        }
+        if (scanJSPs) {
+            urls.addAll(BundleWarmUp.scanJSPs(context));
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Long> timings = BundleWarmUp.run(urls, new BundleWarmUp.Warmer() {
+            @Override
+            public boolean warmUp(String url) throws IOException {
+                List<String> resourcesToMerge = findResourcesToMerge("", removeFingerPrint(url));
+                String version = buildETagForResources(resourcesToMerge, context);
+                if (version == null) {
+                    return false;
+                }
+                ByteArrayOutputStream mergedBytes = new ByteArrayOutputStream();
+                if (processResources(contextPath, mergedBytes, resourcesToMerge) > 0) {
+                    return false;
+                }
+                String cacheKey = contextPath + resourcesToMerge.toString();
+                cache.put(cacheKey, buildCachedBundle(version, mergedBytes.toByteArray()));
+                recordDependencies(cacheKey, resourcesToMerge);
+                return true;
+            }
+        }, readInt(config.getInitParameter(INIT_PARAM_WARM_UP_THREADS), DEFAULT_WARM_UP_THREADS),
+            readLong(config.getInitParameter(INIT_PARAM_WARM_UP_TIMEOUT), DEFAULT_WARM_UP_TIMEOUT));
+        context.setAttribute(WARM_UP_TIMINGS_ATTRIBUTE_PREFIX + config.getServletName(), timings);
+        LOGGER.info("Warmed up {} bundles in {}ms", timings.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param context - servlet context
+     * @return context path of the web application if the servlet API (2.5+) provides it, null otherwise
+     */
+    private static String contextPathOf(ServletContext context) {
+        try {
+            return (String) ServletContext.class.getMethod("getContextPath").invoke(context);
+        } catch (Exception ex) {
+            LOGGER.trace("Context path not available from ServletContext. {}", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        ResourceMetadataRegistry.release(this.getServletContext(), this.invalidationListener); //closed once no one else uses it
+        super.destroy();
     }
 
     /**
@@ -229,6 +528,12 @@ public class JSCSSMergeServlet extends HttpServlet {
 
         LOGGER.debug("Started processing request : {}", url);
 
+        BundleManifest manifest = BundleManifest.getInstance(this.getServletContext());
+        if (manifest != null && this.serveFromManifest(req, resp, manifest, url)) {
+            LOGGER.debug("Served from compiled artifact : {}", url);
+            return;
+        }
+
         List<String> resourcesToMerge = findResourcesToMerge(req.getContextPath(), url);
 
         //If not modified, return 304 and stop
@@ -247,15 +552,67 @@ public class JSCSSMergeServlet extends HttpServlet {
         //Add appropriate headers
         this.addAppropriateResponseHeaders(extensionOrPath, resourcesToMerge, status.getActualETag(), resp);
 
-        OutputStream outputStream = resp.getOutputStream();
+        if (this.servePrecompressed && resourcesToMerge.size() == 1
+            && this.servePrecompressedSibling(req, resp, resourcesToMerge.get(0), status.getActualETag())) {
+            LOGGER.debug("Served precompressed sibling of : {}", url);
+            return;
+        }
+
         String contextPathForCss = customContextPathForCSSUrls != null ?
             customContextPathForCSSUrls : req.getContextPath();
-        int resourcesNotFound = this.processResources(contextPathForCss, outputStream, resourcesToMerge);
 
-        if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) { //all resources not found
-            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
-            LOGGER.warn("All resources are not found. Sending 404.");
-            return;
+        String cacheKey = this.getCacheKey(req, contextPathForCss, resourcesToMerge);
+        String version = cacheKey == null ? null :
+            status.getActualETag() != null ? status.getActualETag() : buildETagForResources(resourcesToMerge, this.getServletContext());
+
+        CachedBundle bundle = cacheKey != null ? cache.getIfPresent(cacheKey) : null;
+
+        OutputStream outputStream;
+
+        if (bundle != null && bundle.getVersion().equals(version)) {
+            String encoding = this.selectEncoding(req, resp, bundle);
+            if (encoding != null) {
+                LOGGER.trace("Serving {} encoded merged contents from cache.", encoding);
+                byte[] encoded = bundle.getEncodedBytes(encoding);
+                resp.setHeader(HTTP_CONTENT_ENCODING_HEADER, encoding);
+                resp.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+                resp.setContentLength(encoded.length);
+                if (status.getActualETag() != null && !this.turnOfETag) {
+                    resp.setHeader(HTTP_ETAG_HEADER, bundle.getEncodedETag(encoding));
+                }
+                outputStream = resp.getOutputStream();
+                outputStream.write(encoded);
+            } else {
+                LOGGER.trace("Serving merged contents from cache.");
+                byte[] bytes = bundle.getBytes();
+                resp.setContentLength(bytes.length);
+                outputStream = resp.getOutputStream();
+                outputStream.write(bytes);
+            }
+        } else {
+            outputStream = resp.getOutputStream();
+            OutputStream mergeStream = outputStream;
+            ByteArrayOutputStream mergedBytes = null;
+            if (cacheKey != null && version != null) {
+                mergedBytes = new ByteArrayOutputStream();
+                mergeStream = mergedBytes;
+            }
+
+            int resourcesNotFound = this.processResources(contextPathForCss, mergeStream, resourcesToMerge);
+
+            if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) { //all resources not found
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                LOGGER.warn("All resources are not found. Sending 404.");
+                return;
+            }
+            if (mergedBytes != null) {
+                if (resourcesNotFound == 0) {
+                    cache.put(cacheKey, this.buildCachedBundle(version, mergedBytes.toByteArray()));
+                    this.recordDependencies(cacheKey, resourcesToMerge);
+                    LOGGER.trace("Merged contents added to cache.");
+                }
+                mergedBytes.writeTo(outputStream);
+            }
         }
         if (outputStream != null) {
             try {
@@ -268,6 +625,237 @@ public class JSCSSMergeServlet extends HttpServlet {
         LOGGER.debug("Finished processing Request : {}", url);
     }
 
+    /**
+     * Records the dependency of the cached bundle on the resources it is merged from
+     *
+     * @param cacheKey         - key of the bundle in cache
+     * @param resourcesToMerge - resources merged in bundle
+     */
+    private void recordDependencies(String cacheKey, List<String> resourcesToMerge) {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(this.getServletContext());
+        List<String> keys = new ArrayList<String>(resourcesToMerge.size());
+        for (String resourcePath : resourcesToMerge) {
+            keys.add(registry.keyOf(resourcePath));
+        }
+        registry.getDependencyGraph().setDependencies(BUNDLE_NODE_PREFIX + cacheKey, keys);
+    }
+
+    /**
+     * @param version - version (combined ETag) of the merged resources
+     * @param bytes   - merged contents
+     * @return bundle to be cached, along with its encoded copies if precompress is on
+     */
+    private CachedBundle buildCachedBundle(String version, byte[] bytes) {
+        Map<String, byte[]> encodedBytes = new HashMap<String, byte[]>();
+        if (this.precompress) {
+            for (String encoding : PRECOMPRESSED_ENCODINGS) {
+                try {
+                    encodedBytes.put(encoding, encode(bytes, encoding));
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to precompress using {}: {}", encoding, ex);
+                }
+            }
+        }
+        return new CachedBundle(version, bytes, encodedBytes);
+    }
+
+    /**
+     * @param bytes    - contents to be encoded
+     * @param encoding - gzip or deflate
+     * @return encoded contents
+     * @throws IOException - in case encoding fails
+     */
+    private static byte[] encode(byte[] bytes, String encoding) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        CompressedOutput compressedOutput = EncodedStreamsFactory.getFactoryForContentEncoding(encoding).getCompressedStream(encoded);
+        OutputStream outputStream = compressedOutput.getCompressedOutputStream();
+        outputStream.write(bytes);
+        outputStream.flush();
+        compressedOutput.finish();
+        outputStream.close();
+        return encoded.toByteArray();
+    }
+
+    /**
+     * @param request  - HttpServletRequest
+     * @param response - HttpServletResponse
+     * @param bundle   - cached bundle to be served
+     * @return gzip or deflate, whichever bundle can be served encoded with is most acceptable as per Accept-Encoding, null otherwise
+     */
+    private String selectEncoding(HttpServletRequest request, HttpServletResponse response, CachedBundle bundle) {
+        if (!this.precompress) {
+            return null;
+        }
+        List<String> available = new ArrayList<String>(PRECOMPRESSED_ENCODINGS.length);
+        for (String encoding : PRECOMPRESSED_ENCODINGS) {
+            if (bundle.getEncodedBytes(encoding) != null) {
+                available.add(encoding);
+            }
+        }
+        return acceptEncoding(request, response).negotiate(available);
+    }
+
+    /**
+     * @param request  - HttpServletRequest
+     * @param response - HttpServletResponse
+     * @return parsed Accept-Encoding, accepting no encoding if response is not to be sent encoded
+     */
+    private static AcceptEncoding acceptEncoding(HttpServletRequest request, HttpServletResponse response) {
+        //filters buffering the response to transform it (minify, cache etc.) need the contents as it is
+        if (response instanceof WebUtilitiesResponseWrapper && !(response instanceof CompressedHttpServletResponseWrapper)) {
+            return AcceptEncoding.parse(null);
+        }
+        return AcceptEncoding.parse(request.getHeader(HTTP_ACCEPT_ENCODING_HEADER));
+    }
+
+    /**
+     * Serves the .br or .gz file next to the resource, whichever client accepts more, as it is. Siblings older than
+     * the resource are ignored.
+     *
+     * @param request      - HttpServletRequest
+     * @param response     - HttpServletResponse
+     * @param resourcePath - context relative path of the single resource requested
+     * @param eTag         - ETag of the resource, null if turned off
+     * @return true if served, false if resource is to be served as usual
+     * @throws IOException - in case write fails
+     */
+    private boolean servePrecompressedSibling(HttpServletRequest request, HttpServletResponse response, String resourcePath, String eTag) throws IOException {
+        if (resourcePath.endsWith(EXT_CSS) && this.autoCorrectUrlsInCSS) {
+            return false; //urls in it are to be corrected
+        }
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(this.getServletContext());
+        ResourceMetadataRegistry.ResourceMetadata source = registry.get(resourcePath);
+        if (!source.isFile()) {
+            return false;
+        }
+        List<String> available = new ArrayList<String>(PRECOMPRESSED_SIBLINGS.length);
+        List<String> suffixes = new ArrayList<String>(PRECOMPRESSED_SIBLINGS.length);
+        for (String[] sibling : PRECOMPRESSED_SIBLINGS) {
+            ResourceMetadataRegistry.ResourceMetadata metadata = registry.get(resourcePath + sibling[1]);
+            if (metadata.isFile() && metadata.getLastModified() >= source.getLastModified()) {
+                available.add(sibling[0]);
+                suffixes.add(sibling[1]);
+            }
+        }
+        if (available.isEmpty()) {
+            return false;
+        }
+        response.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+        String encoding = acceptEncoding(request, response).negotiate(available);
+        if (encoding == null) {
+            return false;
+        }
+        String siblingPath = resourcePath + suffixes.get(available.indexOf(encoding));
+        InputStream is = this.openResource(siblingPath);
+        if (is == null) {
+            return false;
+        }
+        try {
+            response.setHeader(HTTP_CONTENT_ENCODING_HEADER, encoding);
+            if (eTag != null && !this.turnOfETag) {
+                response.setHeader(HTTP_ETAG_HEADER, eTag + '-' + encoding);
+            }
+            response.setContentLength((int) registry.get(siblingPath).getSize());
+            response.setStatus(HttpServletResponse.SC_OK);
+            OutputStream outputStream = response.getOutputStream();
+            copyResource(is, outputStream);
+            outputStream.close();
+        } finally {
+            is.close();
+        }
+        return true;
+    }
+
+    /**
+     * Serves the bundle from its artifact compiled ahead of time, gzipped copy of it if client accepts
+     *
+     * @param request  - HttpServletRequest
+     * @param response - HttpServletResponse
+     * @param manifest - manifest of compiled bundles
+     * @param url      - request url without fingerprint
+     * @return false if bundle is not in manifest or its artifact is not found, true if served
+     * @throws IOException - in case write fails
+     */
+    private boolean serveFromManifest(HttpServletRequest request, HttpServletResponse response, BundleManifest manifest, String url) throws IOException {
+        String contextPath = request.getContextPath();
+        String bundleUrl = contextPath != null && url.startsWith(contextPath) ? url.substring(contextPath.length()) : url;
+        String artifact = manifest.getArtifact(bundleUrl);
+        if (artifact == null) {
+            return false;
+        }
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(this.getServletContext());
+        String encoding = null;
+        if (acceptEncoding(request, response).accepts(CONTENT_ENCODING_GZIP) && registry.get(artifact + ".gz").isFile()) {
+            encoding = CONTENT_ENCODING_GZIP;
+        }
+        String artifactPath = encoding != null ? artifact + ".gz" : artifact;
+        ResourceMetadataRegistry.ResourceMetadata metadata = registry.get(artifactPath);
+        InputStream is = metadata.isFile() ? this.openResource(artifactPath) : null;
+        if (is == null) {
+            LOGGER.warn("Compiled artifact {} not found, processing {} instead.", artifactPath, bundleUrl);
+            return false;
+        }
+        try {
+            String eTag = this.turnOfETag ? null : manifest.getFingerprint(bundleUrl);
+            String gzipETag = this.turnOfETag ? null : manifest.getGzipFingerprint(bundleUrl);
+            String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
+            if (eTag != null && requestETag != null && (requestETag.equals(eTag) || requestETag.equals(gzipETag))) {
+                this.sendNotModified(response);
+                return true;
+            }
+            String mime = selectMimeForExtension(detectExtension(bundleUrl));
+            if (mime != null) {
+                response.setContentType(mime);
+            }
+            response.addDateHeader(HEADER_EXPIRES, new Date().getTime() + expiresMinutes * 60 * 1000);
+            response.addHeader(HTTP_CACHE_CONTROL_HEADER, this.cacheControl);
+            response.addDateHeader(HEADER_LAST_MODIFIED, metadata.getLastModified());
+            if (eTag != null) {
+                response.addHeader(HTTP_ETAG_HEADER, encoding != null ? gzipETag : eTag);
+            }
+            response.addHeader(HEADER_X_OPTIMIZED_BY, X_OPTIMIZED_BY_VALUE);
+            if (encoding != null) {
+                response.setHeader(HTTP_CONTENT_ENCODING_HEADER, encoding);
+                response.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+            }
+            response.setContentLength((int) metadata.getSize());
+            response.setStatus(HttpServletResponse.SC_OK);
+            OutputStream outputStream = response.getOutputStream();
+            copyResource(is, outputStream);
+            outputStream.close();
+        } finally {
+            is.close();
+        }
+        return true;
+    }
+
+    /**
+     * @param request          HttpServletRequest
+     * @param contextPath      context path used for correcting urls in CSS
+     * @param resourcesToMerge list of resources relative paths
+     * @return key to look up merged contents in cache or null when cache is not to be used for this request
+     */
+    private String getCacheKey(HttpServletRequest request, String contextPath, List<String> resourcesToMerge) {
+        if (cache == null) {
+            return null;
+        }
+        if (request.getParameter(PARAM_RESET_CACHE) != null) {
+            LOGGER.trace("Resetting whole cache due to URL parameter.");
+            cache.invalidateAll();
+            planCache.invalidateAll();
+        }
+        String key = contextPath + resourcesToMerge.toString();
+        if (request.getParameter(PARAM_EXPIRE_CACHE) != null) {
+            LOGGER.trace("Removing cache for {} due to URL parameter.", key);
+            cache.invalidate(key);
+        }
+        if (request.getParameter(PARAM_DEBUG) != null || request.getParameter(PARAM_SKIP_CACHE) != null) {
+            LOGGER.trace("Skipping cache for {} due to URL parameter.", key);
+            return null;
+        }
+        return key;
+    }
+
     /**
      * @param response httpServletResponse
      */
@@ -312,62 +900,181 @@ public class JSCSSMergeServlet extends HttpServlet {
         return new ResourceStatus(actualETag, false);
     }
 
+    /**
+     * Opens the file of the resource directly when it has a real path within the web application, so that it can be
+     * copied using its {@link FileChannel}, the container's resource stream otherwise.
+     *
+     * @param resourcePath - context relative path of the resource
+     * @return stream of the resource, null if not found
+     */
+    private InputStream openResource(String resourcePath) {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(this.getServletContext());
+        String realPath = registry.getRealPath(resourcePath);
+        if (this.realRoot != null && realPath != null && realPath.startsWith(this.realRoot)
+            && (realPath.length() == this.realRoot.length() || realPath.charAt(this.realRoot.length()) == File.separatorChar)
+            && registry.get(resourcePath).isFile()) {
+            try {
+                return new FileInputStream(realPath);
+            } catch (FileNotFoundException ex) {
+                LOGGER.debug("Unable to open {}, using resource stream instead.", realPath);
+            }
+        }
+        return this.getServletContext().getResourceAsStream(resourcePath);
+    }
+
+    /**
+     * Copies the resource as is. A file is transferred using {@link FileChannel#transferTo} when the output stream is
+     * also a channel, without copying it to heap. Otherwise it is copied through a chunk borrowed from the bounded
+     * {@link CompressorPool}, instead of allocating a buffer for every resource.
+     *
+     * @param is           - stream of the resource, as opened by {@link #openResource(String)}
+     * @param outputStream - stream to write to
+     * @throws IOException - in case read/write fails
+     */
+    private static void copyResource(InputStream is, OutputStream outputStream) throws IOException {
+        if (is instanceof FileInputStream && outputStream instanceof WritableByteChannel) {
+            FileChannel fileChannel = ((FileInputStream) is).getChannel();
+            long position = fileChannel.position();
+            long size = fileChannel.size();
+            outputStream.flush();
+            while (position < size) {
+                position += fileChannel.transferTo(position, size - position, (WritableByteChannel) outputStream);
+            }
+            return;
+        }
+        CompressorPool pool = CompressorPool.getInstance();
+        byte[] buffer = pool.borrowChunk();
+        try {
+            int c;
+            while ((c = is.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, c);
+            }
+        } finally {
+            pool.returnChunk(buffer);
+        }
+    }
+
     /**
      * @param contextPath      HttpServletRequest context path
      * @param outputStream     - OutputStream
      * @param resourcesToMerge list of resources to merge
      * @return number of non existing, unprocessed resources
      */
+    private int processResources(final String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
 
-    private int processResources(String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
+        if (executor == null || resourcesToMerge.size() < 2) {
+            int resourcesNotFound = 0;
+            for (String resourcePath : resourcesToMerge) {
+                if (!this.processResource(contextPath, outputStream, resourcePath)) {
+                    resourcesNotFound++;
+                }
+            }
+            return resourcesNotFound;
+        }
 
+        //read all concurrently, but write in order
+        List<Future<ByteArrayOutputStream>> futures = new ArrayList<Future<ByteArrayOutputStream>>(resourcesToMerge.size());
+        for (final String resourcePath : resourcesToMerge) {
+            futures.add(executor.submit(new Callable<ByteArrayOutputStream>() {
+                @Override
+                public ByteArrayOutputStream call() {
+                    ByteArrayOutputStream resourceBytes = new ByteArrayOutputStream();
+                    return processResource(contextPath, resourceBytes, resourcePath) ? resourceBytes : null;
+                }
+            }));
+        }
         int resourcesNotFound = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                ByteArrayOutputStream resourceBytes = futures.get(i).get();
+                if (resourceBytes == null) {
+                    resourcesNotFound++;
+                } else {
+                    resourceBytes.writeTo(outputStream);
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while reading resource : {}", resourcesToMerge.get(i));
+                Thread.currentThread().interrupt();
+                cancelAll(futures);
+                resourcesNotFound += futures.size() - i;
+                break;
+            } catch (ExecutionException ex) {
+                LOGGER.error("Error while reading resource : {}", resourcesToMerge.get(i));
+                LOGGER.error("Exception: ", ex.getCause());
+                resourcesNotFound++; //not processed, bundle is not to be cached
+            } catch (IOException ex) {
+                LOGGER.error("Failed to write resource : {}", resourcesToMerge.get(i));
+                LOGGER.error("IOException: ", ex);
+                resourcesNotFound++;
+            }
+        }
+        try {
+            outputStream.flush();
+        } catch (IOException ex) {
+            LOGGER.error("Failed to flush out: {}", outputStream);
+        }
+        return resourcesNotFound;
+    }
 
-        ServletContext context = this.getServletContext();
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
 
-        for (String resourcePath : resourcesToMerge) {
+    /**
+     * @param contextPath  - context path or custom configured context path
+     * @param outputStream - output stream
+     * @param resourcePath - context relative path of the resource
+     * @return false if resource is not found or could not be read fully, true otherwise
+     */
+    private boolean processResource(String contextPath, OutputStream outputStream, String resourcePath) {
 
-            LOGGER.trace("Processing resource : {}", resourcePath);
+        LOGGER.trace("Processing resource : {}", resourcePath);
 
-            InputStream is = null;
+        InputStream is = null;
 
-            try {
-                is = context.getResourceAsStream(resourcePath);
-                if (is == null) {
-                    resourcesNotFound++;
-                    continue;
-                }
-                if (resourcePath.endsWith(EXT_CSS) && autoCorrectUrlsInCSS) { //Need to deal with images url in CSS
+        boolean processed = true;
 
-                    this.processCSS(contextPath, resourcePath, is, outputStream);
+        boolean isCSSToBeCorrected = resourcePath.endsWith(EXT_CSS) && autoCorrectUrlsInCSS;
 
-                } else {
-                    byte[] buffer = new byte[128];
-                    int c;
-                    while ((c = is.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, c);
-                    }
-                }
-            } catch (IOException e) {
-                LOGGER.error("Error while reading resource : {}", resourcePath);
-                LOGGER.error("IOException: ", e);
+        try {
+            CSSRewritePlan plan = isCSSToBeCorrected ? this.getCachedPlan(resourcePath) : null;
+            if (plan != null) {
+                LOGGER.trace("Using cached rewrite plan of {}", resourcePath);
+                this.writeCSS(contextPath, plan, outputStream);
+                return true;
+            }
+            is = this.openResource(resourcePath);
+            if (is == null) {
+                return false;
             }
+            if (isCSSToBeCorrected) { //Need to deal with images url in CSS
 
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
-                    LOGGER.warn("Failed to close stream:", ex);
-                }
-                try {
-                    outputStream.flush();
-                } catch (IOException ex) {
-                    LOGGER.error("Failed to flush out: {}", outputStream);
-                }
+                this.processCSS(contextPath, resourcePath, is, outputStream);
+
+            } else {
+                copyResource(is, outputStream);
             }
+        } catch (IOException e) {
+            LOGGER.error("Error while reading resource : {}", resourcePath);
+            LOGGER.error("IOException: ", e);
+            processed = false; //partly written, bundle is not to be cached
+        }
 
+        if (is != null) {
+            try {
+                is.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close stream:", ex);
+            }
+            try {
+                outputStream.flush();
+            } catch (IOException ex) {
+                LOGGER.error("Failed to flush out: {}", outputStream);
+            }
         }
-        return resourcesNotFound;
+        return processed;
     }
 
     /**
@@ -377,48 +1084,177 @@ public class JSCSSMergeServlet extends HttpServlet {
      * @param outputStream - output stream
      * @throws IOException - thrown in case anything (IO read/write) goes wrong
      */
-    private void processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        ServletContext context = this.getServletContext();
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            outputStream.write((line + "\n").getBytes());
+    private void processCSS(final String contextPath, final String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
+        final ServletContext context = this.getServletContext();
+        final ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        final String cssRealPath = registry.getRealPath(cssFilePath);
+        if (planCache != null) {
+            ResourceMetadataRegistry.ResourceMetadata version = registry.get(cssFilePath); //before reading, so a change while reading is not missed
+            CSSRewritePlan plan = CSSRewritePlan.build(inputStream, this.charset, new CSSURLRewriter.URLHandler() {
+                @Override
+                public String rewrite(String refImgPath) {
+                    String resolvedImgPath = resolveCSSUrl(cssFilePath, refImgPath);
+                    if (resolvedImgPath != null) {
+                        updateReferenceMap(context, cssRealPath, registry.getRealPath(resolvedImgPath));
+                    }
+                    return resolvedImgPath;
+                }
+            });
+            planCache.put(cssFilePath, new CachedPlan(version, plan));
+            this.writeCSS(contextPath, plan, outputStream);
+            return;
+        }
+        int lastByte = CSSURLRewriter.rewrite(inputStream, outputStream, this.charset, new CSSURLRewriter.URLHandler() {
+            @Override
+            public String rewrite(String refImgPath) {
+                String resolvedImgPath = resolveCSSUrl(cssFilePath, refImgPath);
+                if (resolvedImgPath == null) {
+                    return null;
+                }
+                String rewritten = spliceCSSUrl(contextPath, resolvedImgPath);
+                updateReferenceMap(context, cssRealPath, registry.getRealPath(resolvedImgPath));
+                return rewritten;
+            }
+        });
+        if (lastByte != -1 && lastByte != '\n') { //keep merged files on separate lines
+            outputStream.write('\n');
+        }
+    }
+
+    /**
+     * @param contextPath  - context path or custom configured context path
+     * @param plan         - rewrite plan of the css file
+     * @param outputStream - output stream
+     * @throws IOException - thrown in case write fails
+     */
+    private void writeCSS(final String contextPath, CSSRewritePlan plan, OutputStream outputStream) throws IOException {
+        int lastByte = plan.writeTo(outputStream, new CSSURLRewriter.URLHandler() {
+            @Override
+            public String rewrite(String resolvedImgPath) {
+                return spliceCSSUrl(contextPath, resolvedImgPath);
+            }
+        });
+        if (lastByte != -1 && lastByte != '\n') { //keep merged files on separate lines
+            outputStream.write('\n');
         }
     }
 
     /**
-     * @param context     - ServletContext
-     * @param contextPath - APP context path or any custom configured context path
      * @param cssFilePath - css file path
-     * @param line        - single line css file
-     * @return - processed line with img path if it had any replaced to appropriate path
+     * @return cached rewrite plan of the css file if it is of the current version of the file, null otherwise
      */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer line) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-        String cssRealPath = context.getRealPath(cssFilePath);
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith("/")) {
-                    resolvedImgPath = buildProperPath(getParentPath(cssFilePath), refImgPath);
-                }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
-                int offset = line.indexOf(refImgPath);
-                line.replace(
-                    offset, //from
-                    offset + refImgPath.length(), //to
-                    contextPath + (this.turnOfUrlFingerPrinting ? resolvedImgPath : addFingerPrint(buildETagForResource(resolvedImgPath, context), resolvedImgPath))
-                );
-
-                updateReferenceMap(cssRealPath, imgRealPath);
+    private CSSRewritePlan getCachedPlan(String cssFilePath) {
+        if (planCache == null) {
+            return null;
+        }
+        CachedPlan cachedPlan = planCache.getIfPresent(cssFilePath);
+        if (cachedPlan == null) {
+            return null;
+        }
+        ResourceMetadataRegistry.ResourceMetadata current = ResourceMetadataRegistry.getInstance(this.getServletContext()).get(cssFilePath);
+        if (cachedPlan.getVersion() != current) { //metadata is read again only when the file changes
+            planCache.invalidate(cssFilePath);
+            return null;
+        }
+        return cachedPlan.getPlan();
+    }
+
+    /**
+     * @param cssFilePath - css file path
+     * @param refImgPath  - url as referred in css
+     * @return context relative path of the url or null if it is to be kept as is
+     */
+    private String resolveCSSUrl(String cssFilePath, String refImgPath) {
+        if (isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+            return null;
+        }
+        if (!refImgPath.startsWith("/")) {
+            return buildProperPath(getParentPath(cssFilePath), refImgPath);
+        }
+        return refImgPath;
+    }
+
+    /**
+     * @param contextPath     - context path or custom configured context path
+     * @param resolvedImgPath - context relative path of the url
+     * @return url to be written in css, fingerprinted with the current ETag of the resource unless turned off
+     */
+    private String spliceCSSUrl(String contextPath, String resolvedImgPath) {
+        return contextPath + (this.turnOfUrlFingerPrinting ? resolvedImgPath : addFingerPrint(buildETagForResource(resolvedImgPath, this.getServletContext()), resolvedImgPath));
+    }
+
+    /**
+     * Merged contents of the resources along with the version (combined ETag) they were merged at
+     * and the encoded copies of the contents if any
+     */
+    private static class CachedBundle {
+
+        private final String version;
+
+        private final byte[] bytes;
+
+        private final Map<String, byte[]> encodedBytes;
+
+        private final Map<String, String> encodedETags; //version with encoding suffix, as sent with encoded bytes
+
+        CachedBundle(String version, byte[] bytes, Map<String, byte[]> encodedBytes) {
+            this.version = version;
+            this.bytes = bytes;
+            this.encodedBytes = encodedBytes;
+            this.encodedETags = new HashMap<String, String>(encodedBytes.size() * 2);
+            for (String encoding : encodedBytes.keySet()) {
+                this.encodedETags.put(encoding, version + '-' + encoding);
+            }
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public byte[] getEncodedBytes(String encoding) {
+            return encodedBytes.get(encoding);
+        }
+
+        public String getEncodedETag(String encoding) {
+            return encodedETags.get(encoding);
+        }
+
+        public int getSize() {
+            int size = bytes.length;
+            for (byte[] encoded : encodedBytes.values()) {
+                size += encoded.length;
             }
+            return size;
         }
-        return line.toString();
+
+    }
+
+    /**
+     * Rewrite plan of a css file along with the version (metadata) of the file it was built from
+     */
+    private static class CachedPlan {
+
+        private final ResourceMetadataRegistry.ResourceMetadata version;
+
+        private final CSSRewritePlan plan;
+
+        CachedPlan(ResourceMetadataRegistry.ResourceMetadata version, CSSRewritePlan plan) {
+            this.version = version;
+            this.plan = plan;
+        }
+
+        public ResourceMetadataRegistry.ResourceMetadata getVersion() {
+            return version;
+        }
+
+        public CSSRewritePlan getPlan() {
+            return plan;
+        }
+
     }
 
     /**
@@ -22,6 +22,7 @@ import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 
+import com.googlecode.webutilities.util.BundleManifest;
 import com.googlecode.webutilities.util.Utils;
 
 import org.slf4j.Logger;
@@ -89,10 +90,16 @@ public class URLTag extends BodyTagSupport {
             throw new JspTagException("Invalid context|value");
         }
 
-        //We got the url, now suffix the fingerprint to it, right before .
-        String eTag = Utils.buildETagForResources(Utils.findResourcesToMerge(context, value),pageContext.getServletContext());
+        BundleManifest manifest = BundleManifest.getInstance(pageContext.getServletContext());
+        String artifact = manifest != null ? manifest.getArtifact(value.replaceAll("/+", "/")) : null;
+        if (artifact != null) { //compiled ahead of time, already fingerprinted
+            value = artifact;
+        } else {
+            //We got the url, now suffix the fingerprint to it, right before .
+            String eTag = Utils.buildETagForResources(Utils.findResourcesToMerge(context, value),pageContext.getServletContext());
 
-        value = Utils.addFingerPrint(eTag, value);
+            value = Utils.addFingerPrint(eTag, value);
+        }
 
         value = context + "/" + value;
 
@@ -20,8 +20,7 @@ import static com.googlecode.webutilities.common.Constants.TYPE_CSS;
 import static com.googlecode.webutilities.common.Constants.TYPE_JS;
 import static com.googlecode.webutilities.util.Utils.*;
 
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -140,22 +139,16 @@ public class YUIMinTag extends BodyTagSupport {
     @Override
     public int doAfterBody() throws JspException {
         BodyContent content = getBodyContent();
-        String stringContent;
-        try{
-            stringContent = new String(content.getString().getBytes(),charset);
-        }catch (UnsupportedEncodingException ex){
-            stringContent = content.getString();
-            LOGGER.warn("Failed to parse contents using charset: {}", charset);
-        }
-        StringReader stringReader = new StringReader(stringContent);
+        //body is already decoded by the JSP, read it as is instead of re-encoding it
+        Reader reader = content.getReader();
         JspWriter jspWriter = content.getEnclosingWriter();
         try {
             if (TYPE_JS.equals(type.toLowerCase())) {
-                JavaScriptCompressor compressor = new JavaScriptCompressor(stringReader, null);
+                JavaScriptCompressor compressor = new JavaScriptCompressor(reader, null);
                 LOGGER.trace("Compressing {}",  TYPE_JS);
                 compressor.compress(jspWriter, this.lineBreak, !this.noMunge, false, this.preserveSemi, this.disableOptimizations);
             } else if (TYPE_CSS.equals(type.toLowerCase())) {
-                CssCompressor compressor = new CssCompressor(stringReader);
+                CssCompressor compressor = new CssCompressor(reader);
                 LOGGER.trace("Compressing {}", TYPE_CSS);
                 compressor.compress(jspWriter, this.lineBreak);
             }
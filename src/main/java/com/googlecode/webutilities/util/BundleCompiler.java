@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.io.Files;
+import com.googlecode.webutilities.filters.compression.CompressedOutput;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+import javax.servlet.ServletContext;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+import static com.googlecode.webutilities.common.Constants.EXT_CSS;
+import static com.googlecode.webutilities.common.Constants.EXT_JS;
+
+/**
+ * Compiles bundles ahead of time, at build time, so that production nodes don't have to merge, correct urls and
+ * minify them at runtime.
+ * <p/>
+ * For each bundle url (eg. <code>/js/a,b,c.js</code>) listed in the bundles file (one per line, # for comments) it
+ * merges the resources from the web application directory as <code>JSCSSMergeServlet</code> does, correcting and
+ * fingerprinting urls in CSS, minifies the result using YUICompressor as <code>YUIMinFilter</code> does and writes it
+ * fingerprinted with SHA-256 of its content along with a gzipped copy. A {@link BundleManifest} of all the bundles is
+ * written at the end.
+ * <p/>
+ * Usage:
+ * <pre>
+ * java -cp webutilities.jar:&lt;dependencies&gt; com.googlecode.webutilities.util.BundleCompiler &lt;webapp dir&gt; &lt;bundles file&gt; [options]
+ *  <b>--out</b> &lt;dir&gt; - where artifacts and manifest are written. Default webapp dir.
+ *  <b>--manifest</b> &lt;path&gt; - context relative path of the manifest. Default /WEB-INF/webutilities-bundles.properties
+ *  <b>--context-path</b> &lt;path&gt; - context path used for correcting urls in CSS. Default none.
+ *  <b>--charset</b> &lt;charset&gt; - charset of the resources. Default UTF-8.
+ *  <b>--no-minify</b> - don't minify.
+ *  <b>--no-gzip</b> - don't write gzipped copies.
+ * </pre>
+ * Set context init parameter <b>webutilities.manifest</b> to the manifest path to use the artifacts at runtime.
+ *
+ * @version 1.0
+ */
+public final class BundleCompiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleCompiler.class.getName());
+
+    private final File webappDir;
+
+    private final File outputDir;
+
+    private final ServletContext context;
+
+    private String contextPath = "";
+
+    private Charset charset = Charset.forName("UTF-8");
+
+    private boolean minify = true;
+
+    private boolean gzip = true;
+
+    /**
+     * @param webappDir - root directory of the web application
+     * @param outputDir - where artifacts are written
+     */
+    public BundleCompiler(File webappDir, File outputDir) {
+        this.webappDir = webappDir;
+        this.outputDir = outputDir;
+        Map<String, String> initParams = new HashMap<String, String>();
+        initParams.put(ETagStrategy.CONTEXT_PARAM_ETAG_STRATEGY, ETagStrategy.SHA256.getName()); //same on every machine
+        this.context = offlineContext(webappDir, initParams);
+    }
+
+    public void setContextPath(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public void setMinify(boolean minify) {
+        this.minify = minify;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BundleCompiler <webapp dir> <bundles file> [--out <dir>] [--manifest <path>] " +
+                "[--context-path <path>] [--charset <charset>] [--no-minify] [--no-gzip]");
+            System.exit(1);
+        }
+        File webappDir = new File(args[0]);
+        File bundlesFile = new File(args[1]);
+        File outputDir = webappDir;
+        String manifestPath = BundleManifest.DEFAULT_MANIFEST_PATH;
+        String contextPath = "";
+        Charset charset = Charset.forName("UTF-8");
+        boolean minify = true;
+        boolean gzip = true;
+        for (int i = 2; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else if ("--manifest".equals(args[i]) && i + 1 < args.length) {
+                manifestPath = args[++i];
+            } else if ("--context-path".equals(args[i]) && i + 1 < args.length) {
+                contextPath = args[++i];
+            } else if ("--charset".equals(args[i]) && i + 1 < args.length) {
+                charset = Charset.forName(args[++i]);
+            } else if ("--no-minify".equals(args[i])) {
+                minify = false;
+            } else if ("--no-gzip".equals(args[i])) {
+                gzip = false;
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        List<String> urls = new ArrayList<String>();
+        for (String line : Files.readLines(bundlesFile, Charset.forName("UTF-8"))) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                urls.add(line);
+            }
+        }
+        BundleCompiler compiler = new BundleCompiler(webappDir, outputDir);
+        compiler.setContextPath(contextPath);
+        compiler.setCharset(charset);
+        compiler.setMinify(minify);
+        compiler.setGzip(gzip);
+        Map<String, String> artifacts = compiler.compile(urls);
+        BundleManifest.write(artifacts, new File(outputDir, manifestPath));
+        System.out.println("Compiled " + artifacts.size() + " bundles, manifest " + manifestPath);
+    }
+
+    /**
+     * @param urls - context relative bundle urls
+     * @return bundle url to context relative artifact path
+     * @throws IOException - in case any resource is not found or reading/writing fails
+     */
+    public Map<String, String> compile(List<String> urls) throws IOException {
+        Map<String, String> artifacts = new LinkedHashMap<String, String>();
+        try {
+            for (String url : urls) {
+                String artifact = this.compile(url);
+                artifacts.put(url, artifact);
+                LOGGER.info("Compiled {} to {}", url, artifact);
+            }
+        } finally {
+            ResourceMetadataRegistry.remove(context);
+        }
+        return artifacts;
+    }
+
+    private String compile(String url) throws IOException {
+        url = Utils.removeFingerPrint(url);
+        List<String> resourcesToMerge = Utils.findResourcesToMerge("", url);
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        for (String resourcePath : resourcesToMerge) {
+            File resource = new File(webappDir, resourcePath);
+            if (!resource.isFile()) {
+                throw new FileNotFoundException(resourcePath + " of " + url + " not found in " + webappDir);
+            }
+            if (resourcePath.endsWith(EXT_CSS)) {
+                InputStream inputStream = new FileInputStream(resource);
+                try {
+                    this.processCSS(resourcePath, inputStream, merged);
+                } finally {
+                    inputStream.close();
+                }
+            } else {
+                Files.copy(resource, merged);
+            }
+        }
+        byte[] bytes = merged.toByteArray();
+        if (minify) {
+            bytes = this.minify(url, new String(bytes, charset)).getBytes(charset);
+        }
+        String artifact = Utils.addFingerPrint(ETagStrategy.SHA256.hash(bytes), url);
+        File artifactFile = new File(outputDir, artifact);
+        Files.createParentDirs(artifactFile);
+        Files.write(bytes, artifactFile);
+        if (gzip) {
+            OutputStream gzipped = new FileOutputStream(new File(outputDir, artifact + ".gz"));
+            try {
+                CompressedOutput compressedOutput = EncodedStreamsFactory.getFactoryForContentEncoding(CONTENT_ENCODING_GZIP).getCompressedStream(gzipped);
+                OutputStream outputStream = compressedOutput.getCompressedOutputStream();
+                outputStream.write(bytes);
+                outputStream.flush();
+                compressedOutput.finish();
+            } finally {
+                gzipped.close();
+            }
+        }
+        return artifact;
+    }
+
+    private void processCSS(final String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
+        int lastByte = CSSURLRewriter.rewrite(inputStream, outputStream, charset, new CSSURLRewriter.URLHandler() {
+            @Override
+            public String rewrite(String refImgPath) {
+                if (Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+                    return null;
+                }
+                String resolvedImgPath = refImgPath;
+                if (!refImgPath.startsWith("/")) {
+                    resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(cssFilePath), refImgPath);
+                }
+                return contextPath + Utils.addFingerPrint(Utils.buildETagForResource(resolvedImgPath, context), resolvedImgPath);
+            }
+        });
+        if (lastByte != -1 && lastByte != '\n') { //keep merged files on separate lines
+            outputStream.write('\n');
+        }
+    }
+
+    private String minify(final String url, String contents) throws IOException {
+        StringWriter out = new StringWriter();
+        if (url.endsWith(EXT_JS)) {
+            JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(contents), new ErrorReporter() {
+                @Override
+                public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                    LOGGER.debug("{} line {}: {}", new Object[]{url, line, message});
+                }
+
+                @Override
+                public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                    LOGGER.error("{} line {}: {}", new Object[]{url, line, message});
+                }
+
+                @Override
+                public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                    return new EvaluatorException(url + ": " + message, sourceName, line, lineSource, lineOffset);
+                }
+            });
+            compressor.compress(out, -1, true, false, false, false);
+        } else if (url.endsWith(EXT_CSS)) {
+            new CssCompressor(new StringReader(contents)).compress(out, -1);
+        } else {
+            return contents;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param root       - root directory of the web application
+     * @param initParams - context init parameters
+     * @return minimal servlet context backed by the directory, enough for resolving and fingerprinting resources
+     */
+    static ServletContext offlineContext(final File root, final Map<String, String> initParams) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        return (ServletContext) Proxy.newProxyInstance(BundleCompiler.class.getClassLoader(), new Class<?>[]{ServletContext.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    File file = args != null && args.length == 1 && args[0] instanceof String ? new File(root, (String) args[0]) : null;
+                    if ("getRealPath".equals(name)) {
+                        return file.getAbsolutePath();
+                    } else if ("getResourceAsStream".equals(name)) {
+                        return file.isFile() ? new FileInputStream(file) : null;
+                    } else if ("getResource".equals(name)) {
+                        try {
+                            return file.exists() ? file.toURI().toURL() : null;
+                        } catch (MalformedURLException ex) {
+                            return null;
+                        }
+                    } else if ("getResourcePaths".equals(name)) {
+                        return resourcePaths(root, (String) args[0]);
+                    } else if ("getInitParameter".equals(name)) {
+                        return initParams.get((String) args[0]);
+                    } else if ("getAttribute".equals(name)) {
+                        return attributes.get((String) args[0]);
+                    } else if ("setAttribute".equals(name)) {
+                        if (args[1] == null) {
+                            attributes.remove((String) args[0]);
+                        } else {
+                            attributes.put((String) args[0], args[1]);
+                        }
+                        return null;
+                    } else if ("removeAttribute".equals(name)) {
+                        attributes.remove((String) args[0]);
+                        return null;
+                    } else if ("getContextPath".equals(name)) {
+                        return "";
+                    } else if ("log".equals(name)) {
+                        LOGGER.info(String.valueOf(args[0]));
+                        return null;
+                    } else if ("hashCode".equals(name)) {
+                        return System.identityHashCode(proxy);
+                    } else if ("equals".equals(name)) {
+                        return proxy == args[0];
+                    } else if ("toString".equals(name)) {
+                        return "OfflineServletContext[" + root + "]";
+                    } else if (method.getReturnType() == int.class) {
+                        return 0;
+                    } else if (method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static Set<String> resourcePaths(File root, String directory) {
+        File[] files = new File(root, directory).listFiles();
+        if (files == null) return null;
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        Set<String> paths = new TreeSet<String>();
+        for (File file : files) {
+            paths.add(prefix + file.getName() + (file.isDirectory() ? "/" : ""));
+        }
+        return paths;
+    }
+
+}
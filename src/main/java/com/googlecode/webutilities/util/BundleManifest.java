@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manifest of the bundles compiled ahead of time by {@link BundleCompiler}.
+ * <p/>
+ * Maps each bundle url (context relative, eg. <code>/js/a,b,c.js</code>) to the context relative path of its merged,
+ * minified and fingerprinted artifact (eg. <code>/js/a,b,c_wu_9f2c...js</code>). A gzipped copy of the artifact, if
+ * compiled, is next to it with <code>.gz</code> suffix.
+ * <p/>
+ * When context init parameter <b>webutilities.manifest</b> is set to the context relative path of the manifest,
+ * <code>JSCSSMergeServlet</code> serves the listed bundles from their artifacts and <code>URLTag</code> refers the
+ * artifacts directly.
+ *
+ * @version 1.0
+ */
+public final class BundleManifest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleManifest.class.getName());
+
+    public static final String CONTEXT_PARAM_MANIFEST = "webutilities.manifest";
+
+    public static final String DEFAULT_MANIFEST_PATH = "/WEB-INF/webutilities-bundles.properties";
+
+    private static final String CONTEXT_ATTR = BundleManifest.class.getName();
+
+    private static final String FINGERPRINT_SEPARATOR = "_wu_";
+
+    private final Map<String, String> artifacts;
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    private final Map<String, String> gzipFingerprints = new HashMap<String, String>(); //as sent with .gz artifact
+
+    private BundleManifest(Map<String, String> artifacts) {
+        this.artifacts = Collections.unmodifiableMap(artifacts);
+        for (Map.Entry<String, String> entry : artifacts.entrySet()) {
+            String artifact = entry.getValue();
+            int from = artifact.lastIndexOf(FINGERPRINT_SEPARATOR);
+            int to = artifact.lastIndexOf('.');
+            if (from >= 0 && to > from) {
+                String fingerprint = artifact.substring(from + FINGERPRINT_SEPARATOR.length(), to);
+                fingerprints.put(entry.getKey(), fingerprint);
+                gzipFingerprints.put(entry.getKey(), fingerprint + '-' + CONTENT_ENCODING_GZIP);
+            }
+        }
+    }
+
+    /**
+     * @param context - servlet context
+     * @return manifest of the web application, or null if none is configured or it could not be read
+     */
+    public static BundleManifest getInstance(ServletContext context) {
+        Object manifest = context.getAttribute(CONTEXT_ATTR);
+        if (manifest instanceof BundleManifest) {
+            return (BundleManifest) manifest;
+        }
+        String manifestPath = context.getInitParameter(CONTEXT_PARAM_MANIFEST);
+        if (manifestPath == null) {
+            return null;
+        }
+        synchronized (BundleManifest.class) {
+            manifest = context.getAttribute(CONTEXT_ATTR);
+            if (!(manifest instanceof BundleManifest)) {
+                manifest = load(context, manifestPath);
+                if (manifest == null) {
+                    return null;
+                }
+                context.setAttribute(CONTEXT_ATTR, manifest);
+                LOGGER.info("Loaded {} bundles from manifest {}", ((BundleManifest) manifest).artifacts.size(), manifestPath);
+            }
+            return (BundleManifest) manifest;
+        }
+    }
+
+    private static BundleManifest load(ServletContext context, String manifestPath) {
+        InputStream inputStream = context.getResourceAsStream(manifestPath);
+        if (inputStream == null) {
+            LOGGER.warn("Manifest {} not found.", manifestPath);
+            return null;
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(inputStream);
+            Map<String, String> artifacts = new HashMap<String, String>();
+            for (String url : properties.stringPropertyNames()) {
+                artifacts.put(url, properties.getProperty(url));
+            }
+            return new BundleManifest(artifacts);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read manifest {}. {}", manifestPath, ex);
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException ex) {
+                LOGGER.trace("Failed to close {}", manifestPath);
+            }
+        }
+    }
+
+    /**
+     * @param artifacts - bundle url to artifact path
+     * @param file      - manifest file to be written
+     * @throws IOException - in case write fails
+     */
+    public static void write(Map<String, String> artifacts, File file) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(artifacts);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            properties.store(outputStream, "Generated by " + BundleCompiler.class.getName());
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * @param url - context relative bundle url, without fingerprint
+     * @return context relative path of the artifact, or null if bundle is not in manifest
+     */
+    public String getArtifact(String url) {
+        return artifacts.get(url);
+    }
+
+    /**
+     * @param url - context relative bundle url, without fingerprint
+     * @return fingerprint of the artifact, or null if bundle is not in manifest
+     */
+    public String getFingerprint(String url) {
+        return fingerprints.get(url);
+    }
+
+    /**
+     * @param url - context relative bundle url, without fingerprint
+     * @return fingerprint with gzip suffix, ETag of the gzipped artifact, or null if bundle is not in manifest
+     */
+    public String getGzipFingerprint(String url) {
+        return gzipFingerprints.get(url);
+    }
+
+    public Map<String, String> getArtifacts() {
+        return artifacts;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CSS split at its urls, so that it can be written again and again with different replacements for the urls
+ * without parsing it every time.
+ * <p/>
+ * Plan is built once per version of the CSS using {@link CSSURLRewriter}, keeping the CSS between the urls as is and
+ * the urls as resolved while building. Writing the plan just splices the current replacements between the spans.
+ *
+ * @version 1.0
+ */
+public final class CSSRewritePlan {
+
+    private final List<byte[]> spans; //always one more than the urls
+
+    private final List<String> urls;
+
+    private final Charset charset;
+
+    private final int lastByte;
+
+    private final int size;
+
+    private CSSRewritePlan(List<byte[]> spans, List<String> urls, Charset charset, int lastByte) {
+        this.spans = spans;
+        this.urls = urls;
+        this.charset = charset;
+        this.lastByte = lastByte;
+        int total = 0;
+        for (byte[] span : spans) {
+            total += span.length;
+        }
+        for (String url : urls) {
+            total += url.length() * 2;
+        }
+        this.size = total;
+    }
+
+    /**
+     * @param inputStream - CSS to be read
+     * @param charset     - charset of the CSS unless it declares one
+     * @param resolver    - resolves the urls to be replaced when writing, returns null for urls to be kept as is
+     * @return plan of the CSS
+     * @throws IOException - in case read fails
+     */
+    public static CSSRewritePlan build(InputStream inputStream, Charset charset, final CSSURLRewriter.URLHandler resolver) throws IOException {
+        if (!inputStream.markSupported()) {
+            inputStream = new BufferedInputStream(inputStream);
+        }
+        charset = CSSURLRewriter.detectCharset(inputStream, charset);
+        final List<byte[]> spans = new ArrayList<byte[]>();
+        final List<String> urls = new ArrayList<String>();
+        final ByteArrayOutputStream span = new ByteArrayOutputStream();
+        int lastByte = CSSURLRewriter.rewrite(inputStream, span, charset, new CSSURLRewriter.URLHandler() {
+            @Override
+            public String rewrite(String url) {
+                String resolved = resolver.rewrite(url);
+                if (resolved == null) {
+                    return null;
+                }
+                spans.add(span.toByteArray());
+                span.reset();
+                urls.add(resolved);
+                return ""; //url is spliced when writing
+            }
+        });
+        spans.add(span.toByteArray());
+        return new CSSRewritePlan(spans, Collections.unmodifiableList(urls), charset, lastByte);
+    }
+
+    /**
+     * @param outputStream - where CSS is written
+     * @param splicer      - gives the current replacement of each resolved url
+     * @return last byte written or -1 if nothing was written
+     * @throws IOException - in case write fails
+     */
+    public int writeTo(OutputStream outputStream, CSSURLRewriter.URLHandler splicer) throws IOException {
+        for (int i = 0; i < urls.size(); i++) {
+            outputStream.write(spans.get(i));
+            String url = urls.get(i);
+            String replacement = splicer.rewrite(url);
+            outputStream.write((replacement != null ? replacement : url).getBytes(charset));
+        }
+        outputStream.write(spans.get(urls.size()));
+        return lastByte;
+    }
+
+    /**
+     * @return charset of the CSS, used to encode the urls
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return urls as resolved while building the plan
+     */
+    public List<String> getResolvedURLs() {
+        return urls;
+    }
+
+    /**
+     * @return approximate memory held by the plan in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+
+/**
+ * Single pass rewriter of <code>url(...)</code> references in CSS.
+ * <p/>
+ * Reads the CSS as bytes and copies everything except the urls as is to the output, so it neither splits the CSS in
+ * lines nor holds more than one url in memory. Handles minified single line CSS of any size in constant memory.
+ * Matches the urls {@link com.googlecode.webutilities.common.Constants#CSS_IMG_URL_PATTERN} does, and also quoted
+ * urls having parentheses in them and urls having escaped (<code>\)</code>, <code>\'</code> etc.) characters, which
+ * are given to the handler as written.
+ * <p/>
+ * Charset must be ASCII compatible (UTF-8, ISO-8859-x etc.), it is used to decode the urls and encode their
+ * replacements. The <code>@charset</code> rule at the start of the CSS (or UTF-8 byte order mark) takes precedence
+ * over the charset given, unless it names a charset that is not supported or not ASCII compatible.
+ *
+ * @version 1.0
+ */
+public final class CSSURLRewriter {
+
+    /**
+     * Decides the replacement of each url found in the CSS. All the CSS before the url is written to the output
+     * before the handler is called for it.
+     */
+    public interface URLHandler {
+
+        /**
+         * @param url - url as in CSS, without quotes and surrounding spaces
+         * @return replacement for the url, or null to keep it as is
+         */
+        String rewrite(String url);
+    }
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_PENDING = 4 * 1024; //longer urls (eg. data uri) are copied as is
+
+    private static final byte[] CHARSET_RULE = {'@', 'c', 'h', 'a', 'r', 's', 'e', 't', ' ', '"'};
+
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final int MAX_CHARSET_NAME = 40;
+
+    private static final String ASCII_PROBE = "url('\"()) @;azAZ09/.:";
+
+    private static final int TEXT = 0;
+    private static final int SEEN_U = 1;
+    private static final int SEEN_R = 2;
+    private static final int SEEN_L = 3; //url followed by spaces if any
+    private static final int SEEN_PAREN = 4; //url( followed by spaces if any
+    private static final int IN_URL = 5;
+    private static final int SEEN_QUOTE = 6; //closing quote followed by spaces if any
+    private static final int IN_URL_ESCAPE = 7; //backslash in url
+
+    private final OutputStream outputStream;
+
+    private final Charset charset;
+
+    private final URLHandler handler;
+
+    //bytes of the url(...) being matched, not yet written
+    private final byte[] pending = new byte[MAX_PENDING];
+
+    private int pendingLength;
+
+    private int urlStart;
+
+    private int urlEnd;
+
+    private int state = TEXT;
+
+    private byte quote; //opening quote of the url being matched, 0 if unquoted
+
+    private int lastByte = -1;
+
+    private CSSURLRewriter(OutputStream outputStream, Charset charset, URLHandler handler) {
+        this.outputStream = outputStream;
+        this.charset = charset;
+        this.handler = handler;
+    }
+
+    /**
+     * @param inputStream  - CSS to be read
+     * @param outputStream - where rewritten CSS is written
+     * @param charset      - charset of the CSS unless it declares one
+     * @param handler      - decides the replacement of the urls
+     * @return last byte written or -1 if nothing was written
+     * @throws IOException - in case read/write fails
+     */
+    public static int rewrite(InputStream inputStream, OutputStream outputStream, Charset charset, URLHandler handler) throws IOException {
+        if (!inputStream.markSupported()) {
+            inputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        }
+        CSSURLRewriter rewriter = new CSSURLRewriter(outputStream, detectCharset(inputStream, charset), handler);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            rewriter.process(buffer, 0, read);
+        }
+        rewriter.write(rewriter.pending, 0, rewriter.pendingLength); //incomplete url at the end
+        return rewriter.lastByte;
+    }
+
+    /**
+     * Reads the charset from the <code>@charset "name";</code> rule (or UTF-8 byte order mark) at the start of the CSS,
+     * without consuming any of it.
+     *
+     * @param inputStream    - CSS to be read, must support mark
+     * @param defaultCharset - charset to use when CSS does not declare a usable one
+     * @return charset of the CSS
+     * @throws IOException - in case read fails
+     */
+    public static Charset detectCharset(InputStream inputStream, Charset defaultCharset) throws IOException {
+        int max = UTF8_BOM.length + CHARSET_RULE.length + MAX_CHARSET_NAME + 1;
+        byte[] head = new byte[max];
+        int length = 0;
+        inputStream.mark(max);
+        try {
+            int read;
+            while (length < max && (read = inputStream.read(head, length, max - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            inputStream.reset();
+        }
+        if (startsWith(head, length, 0, UTF8_BOM)) {
+            return Charset.forName("UTF-8");
+        }
+        if (!startsWith(head, length, 0, CHARSET_RULE)) {
+            return defaultCharset;
+        }
+        int start = CHARSET_RULE.length;
+        for (int i = start; i < length; i++) {
+            if (head[i] == '"') {
+                String name = new String(head, start, i - start, "US-ASCII");
+                Charset declared = forName(name);
+                return declared != null && isASCIICompatible(declared) ? declared : defaultCharset;
+            }
+        }
+        return defaultCharset;
+    }
+
+    private static Charset forName(String name) {
+        try {
+            return Charset.isSupported(name) ? Charset.forName(name) : null;
+        } catch (IllegalCharsetNameException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isASCIICompatible(Charset charset) {
+        try {
+            return Arrays.equals(ASCII_PROBE.getBytes("US-ASCII"), ASCII_PROBE.getBytes(charset));
+        } catch (UnsupportedOperationException ex) { //decode only charsets
+            return false;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int offset, byte[] prefix) {
+        if (length - offset < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private void process(byte[] bytes, int offset, int end) throws IOException {
+        int spanStart = offset; //start of bytes to be written as is
+        int i = offset;
+        while (i < end) {
+            byte b = bytes[i];
+            if (state == TEXT) {
+                if (b == 'u' || b == 'U') {
+                    this.write(bytes, spanStart, i - spanStart);
+                    spanStart = i + 1;
+                    this.append(b, SEEN_U);
+                }
+                i++;
+                continue;
+            }
+            spanStart = i + 1;
+            if (pendingLength == pending.length) { //too long, give up on this one
+                this.write(pending, 0, pendingLength);
+                this.reset();
+                spanStart = i; //reprocess b as text
+                continue;
+            }
+            switch (state) {
+                case SEEN_U:
+                    if (b == 'r' || b == 'R') {
+                        this.append(b, SEEN_R);
+                    } else {
+                        spanStart = this.mismatch(i);
+                        continue;
+                    }
+                    break;
+                case SEEN_R:
+                    if (b == 'l' || b == 'L') {
+                        this.append(b, SEEN_L);
+                    } else {
+                        spanStart = this.mismatch(i);
+                        continue;
+                    }
+                    break;
+                case SEEN_L:
+                    if (isWhitespace(b)) {
+                        this.append(b, SEEN_L);
+                    } else if (b == '(') {
+                        this.append(b, SEEN_PAREN);
+                    } else {
+                        spanStart = this.mismatch(i);
+                        continue;
+                    }
+                    break;
+                case SEEN_PAREN:
+                    if (isWhitespace(b)) {
+                        this.append(b, SEEN_PAREN);
+                    } else if (b == '\'' || b == '"') {
+                        this.append(b, IN_URL);
+                        urlStart = pendingLength;
+                        quote = b;
+                    } else if (b == '\\') {
+                        urlStart = pendingLength;
+                        this.append(b, IN_URL_ESCAPE);
+                    } else if (b == '(' || b == '|') {
+                        spanStart = this.mismatch(i);
+                        continue;
+                    } else if (b == ')') {
+                        urlStart = urlEnd = pendingLength;
+                        this.append(b, SEEN_QUOTE);
+                        this.complete();
+                    } else {
+                        urlStart = pendingLength;
+                        this.append(b, IN_URL);
+                    }
+                    break;
+                case IN_URL_ESCAPE:
+                    this.append(b, IN_URL);
+                    break;
+                case IN_URL:
+                    if (b == '\\') {
+                        this.append(b, IN_URL_ESCAPE);
+                    } else if (quote != 0) {
+                        if (b == quote) {
+                            urlEnd = pendingLength;
+                            this.append(b, SEEN_QUOTE);
+                        } else if (b == '\n' || b == '\r' || b == '\f') { //unterminated string
+                            this.replay();
+                            spanStart = i;
+                            continue;
+                        } else {
+                            this.append(b, IN_URL);
+                        }
+                    } else if (b == ')') {
+                        urlEnd = pendingLength;
+                        this.append(b, IN_URL);
+                        this.complete();
+                    } else if (b == '\'' || b == '"') {
+                        urlEnd = pendingLength;
+                        this.append(b, SEEN_QUOTE);
+                    } else if (b == '(' || b == '|') {
+                        this.replay();
+                        spanStart = i;
+                        continue;
+                    } else {
+                        this.append(b, IN_URL);
+                    }
+                    break;
+                case SEEN_QUOTE:
+                    if (isWhitespace(b)) {
+                        this.append(b, SEEN_QUOTE);
+                    } else if (b == ')') {
+                        this.append(b, SEEN_QUOTE);
+                        this.complete();
+                    } else {
+                        this.replay();
+                        spanStart = i;
+                        continue;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown state " + state);
+            }
+            i++;
+        }
+        if (state == TEXT) {
+            this.write(bytes, spanStart, end - spanStart);
+        }
+    }
+
+    /**
+     * Pending bytes can not be a url. None but the first of them can start one either, so writes them as is.
+     *
+     * @param position - position of the mismatching byte, which is to be processed again as text
+     * @return position to continue from
+     */
+    private int mismatch(int position) throws IOException {
+        this.write(pending, 0, pendingLength);
+        this.reset();
+        return position;
+    }
+
+    /**
+     * Pending bytes can not be a url, but a url may start within them, so processes them again after the first one.
+     */
+    private void replay() throws IOException {
+        byte[] replay = new byte[pendingLength - 1];
+        System.arraycopy(pending, 1, replay, 0, replay.length);
+        this.write(pending, 0, 1);
+        this.reset();
+        this.process(replay, 0, replay.length);
+    }
+
+    private void complete() throws IOException {
+        int start = urlStart;
+        int end = urlEnd;
+        while (start < end && isWhitespace(pending[start])) start++;
+        while (end > start && isWhitespace(pending[end - 1])) end--;
+        this.write(pending, 0, start); //everything before the url is written before the handler is called
+        String replacement = start < end ? handler.rewrite(new String(pending, start, end - start, charset)) : null;
+        if (replacement == null) {
+            this.write(pending, start, end - start);
+        } else {
+            byte[] replacementBytes = replacement.getBytes(charset);
+            this.write(replacementBytes, 0, replacementBytes.length);
+        }
+        this.write(pending, end, pendingLength - end);
+        this.reset();
+    }
+
+    private void append(byte b, int nextState) {
+        pending[pendingLength++] = b;
+        state = nextState;
+    }
+
+    private void reset() {
+        pendingLength = 0;
+        state = TEXT;
+        quote = 0;
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > 0) {
+            outputStream.write(bytes, offset, length);
+            lastByte = bytes[offset + length - 1] & 0xFF;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.hash.Hashing;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How the ETag of a resource is calculated.
+ * <p/>
+ * <ul>
+ * <li><b>lastModified</b> - (default) digest of last modified time and size of the file. Cheap, but differs between
+ * nodes of a cluster when files have different modified times.</li>
+ * <li><b>murmur3</b> - fast non cryptographic Murmur3 128 bit hash of the file content.</li>
+ * <li><b>sha256</b> - strong SHA-256 hash of the file content, suitable for fingerprinting.</li>
+ * </ul>
+ * Content based hashes are computed once per version of the resource and kept in {@link ResourceMetadataRegistry}.
+ * Strategy can be configured using context init parameter <b>webutilities.eTagStrategy</b>.
+ *
+ * @version 1.0
+ */
+public enum ETagStrategy {
+
+    LAST_MODIFIED("lastModified") {
+        @Override
+        public String hash(byte[] data) {
+            return hex(digest(MD5_DIGEST.get(), data));
+        }
+    },
+
+    MURMUR3("murmur3") {
+        @Override
+        public String hash(byte[] data) {
+            return Hashing.murmur3_128().hashBytes(data).toString();
+        }
+    },
+
+    SHA256("sha256") {
+        @Override
+        public String hash(byte[] data) {
+            return hex(digest(SHA256_DIGEST.get(), data));
+        }
+    };
+
+    public static final String CONTEXT_PARAM_ETAG_STRATEGY = "webutilities.eTagStrategy";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ETagStrategy.class.getName());
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new DigestThreadLocal("MD5");
+
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = new DigestThreadLocal("SHA-256");
+
+    private final String name;
+
+    ETagStrategy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param data - bytes to be hashed
+     * @return hex string of the hash
+     */
+    public abstract String hash(byte[] data);
+
+    /**
+     * @return true if the hash is calculated from the content of the resource
+     */
+    public boolean isContentBased() {
+        return this != LAST_MODIFIED;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name - lastModified, murmur3 or sha256 (case insensitive)
+     * @return matching strategy or LAST_MODIFIED if name is null or unknown
+     */
+    public static ETagStrategy forName(String name) {
+        if (name != null) {
+            for (ETagStrategy strategy : values()) {
+                if (strategy.name.equalsIgnoreCase(name.trim())) {
+                    return strategy;
+                }
+            }
+            LOGGER.warn("Unknown ETag strategy {}, using {}", name, LAST_MODIFIED.name);
+        }
+        return LAST_MODIFIED;
+    }
+
+    static String hex(byte[] data) {
+        char[] hex = new char[2 * data.length];
+        for (int i = 0; i < data.length; ++i) {
+            hex[2 * i] = HEX_CHARS[(data[i] & 0xF0) >>> 4];
+            hex[2 * i + 1] = HEX_CHARS[data[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] digest(MessageDigest messageDigest, byte[] data) {
+        if (messageDigest == null) {
+            return data;
+        }
+        messageDigest.reset();
+        return messageDigest.digest(data);
+    }
+
+    private static class DigestThreadLocal extends ThreadLocal<MessageDigest> {
+
+        private final String algorithm;
+
+        DigestThreadLocal(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                LOGGER.warn("Unable to use {} for digesting.", algorithm, ex);
+                return null;
+            }
+        }
+    }
+
+}
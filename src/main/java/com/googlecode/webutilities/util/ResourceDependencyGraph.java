@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread safe graph of dependencies between resources, eg. CSS file to the images it refers, merged bundle to the
+ * files it is merged from.
+ * <p/>
+ * Nodes are plain keys (real path of a file, or any other key of a cached thing). Dependencies of at most
+ * <code>maxNodes</code> nodes are kept, least recently used ones are forgotten first along with their reverse edges,
+ * so that the graph does not grow without bound.
+ *
+ * @version 1.0
+ */
+public final class ResourceDependencyGraph {
+
+    //node -> nodes it depends on
+    private final Cache<String, Set<String>> dependencies;
+
+    //node -> nodes depending on it
+    private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * @param maxNodes - maximum number of nodes whose dependencies are kept
+     */
+    public ResourceDependencyGraph(long maxNodes) {
+        this.dependencies = CacheBuilder.newBuilder()
+            .maximumSize(maxNodes)
+            .removalListener(new RemovalListener<String, Set<String>>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Set<String>> notification) {
+                    if (notification.getKey() != null && notification.getValue() != null) {
+                        removeReverseEdges(notification.getKey(), notification.getValue());
+                    }
+                }
+            }).build();
+    }
+
+    /**
+     * Replaces all the dependencies of the node
+     *
+     * @param node         - node
+     * @param dependencies - nodes it depends on
+     */
+    public synchronized void setDependencies(String node, Collection<String> dependencies) {
+        Set<String> newDependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        newDependencies.addAll(dependencies);
+        this.dependencies.invalidate(node); //removes old reverse edges
+        for (String dependency : newDependencies) {
+            this.addReverseEdge(node, dependency);
+        }
+        this.dependencies.put(node, newDependencies);
+    }
+
+    /**
+     * @param node       - node
+     * @param dependency - node it depends on
+     */
+    public synchronized void addDependency(String node, String dependency) {
+        Set<String> nodeDependencies = this.dependencies.getIfPresent(node);
+        if (nodeDependencies == null) {
+            nodeDependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            this.dependencies.put(node, nodeDependencies);
+        }
+        nodeDependencies.add(dependency);
+        this.addReverseEdge(node, dependency);
+    }
+
+    /**
+     * @param node       - node
+     * @param dependency - node it no more depends on
+     */
+    public synchronized void removeDependency(String node, String dependency) {
+        Set<String> nodeDependencies = this.dependencies.getIfPresent(node);
+        if (nodeDependencies != null && nodeDependencies.remove(dependency)) {
+            this.removeReverseEdges(node, Collections.singleton(dependency));
+        }
+    }
+
+    /**
+     * Forgets the dependencies of the node
+     *
+     * @param node - node
+     */
+    public synchronized void remove(String node) {
+        this.dependencies.invalidate(node);
+    }
+
+    /**
+     * @param node - node
+     * @return nodes it depends on, or null if they are not known
+     */
+    public Set<String> getDependencies(String node) {
+        Set<String> nodeDependencies = this.dependencies.getIfPresent(node);
+        return nodeDependencies == null ? null : Collections.unmodifiableSet(nodeDependencies);
+    }
+
+    /**
+     * @param node - node
+     * @return nodes directly depending on it, never null
+     */
+    public Set<String> getDependents(String node) {
+        Set<String> nodeDependents = this.dependents.get(node);
+        return nodeDependents == null ? Collections.<String>emptySet() : new HashSet<String>(nodeDependents);
+    }
+
+    /**
+     * Forgets everything
+     */
+    public synchronized void clear() {
+        this.dependencies.invalidateAll();
+        this.dependents.clear();
+    }
+
+    private void addReverseEdge(String node, String dependency) {
+        Set<String> dependencyDependents = this.dependents.get(dependency);
+        if (dependencyDependents == null) {
+            dependencyDependents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            this.dependents.put(dependency, dependencyDependents);
+        }
+        dependencyDependents.add(node);
+    }
+
+    private synchronized void removeReverseEdges(String node, Set<String> nodeDependencies) {
+        for (String dependency : nodeDependencies) {
+            Set<String> dependencyDependents = this.dependents.get(dependency);
+            if (dependencyDependents != null) {
+                dependencyDependents.remove(node);
+                if (dependencyDependents.isEmpty()) {
+                    this.dependents.remove(dependency);
+                }
+            }
+        }
+    }
+
+}
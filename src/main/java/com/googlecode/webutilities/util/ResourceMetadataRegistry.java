@@ -0,0 +1,602 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Per web application registry of resource metadata (size, last modified and ETag).
+ * <p/>
+ * Metadata is read from the file system once and kept until the resource changes. Changes are detected using
+ * {@link WatchService} on the directories of the resources. When the watch service is not available, or resource
+ * has no real path (eg. unexploded WAR), metadata is polled again once it is older than the poll interval.
+ * <p/>
+ * Poll interval in milliseconds can be configured using context init parameter <b>webutilities.pollInterval</b>.
+ * Default 2000. How ETags are computed from the metadata is decided by {@link ETagStrategy}.
+ * <p/>
+ * Registry also keeps the {@link ResourceDependencyGraph} of the resources. Invalidating a resource invalidates all the
+ * resources depending on it, directly or indirectly, and {@link InvalidationListener}s are notified of each of them.
+ * Maximum number of nodes in the graph can be configured using context init parameter
+ * <b>webutilities.maxDependencies</b>. Default 10000.
+ * <p/>
+ * Paths come from requests, so the number of resources whose real path and metadata are kept is bounded, least
+ * recently used are forgotten first (and read again when asked for). Maximum can be configured using context init
+ * parameter <b>webutilities.maxResources</b>. Default 10000.
+ * <p/>
+ * Registry lives as long as the web application. Components having a lifecycle {@link #acquire(ServletContext)} it
+ * when initialized and {@link #release(ServletContext)} it when destroyed, last release closes it. To have it closed
+ * also when only used by the tags (or {@link Utils}), declare {@link ResourceMetadataRegistryListener} in web.xml.
+ * Watcher thread anyway stops once the registry is not reachable anymore (eg. web application undeployed).
+ *
+ * @version 1.0
+ */
+public final class ResourceMetadataRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceMetadataRegistry.class.getName());
+
+    public static final String CONTEXT_PARAM_POLL_INTERVAL = "webutilities.pollInterval";
+
+    public static final String CONTEXT_PARAM_MAX_DEPENDENCIES = "webutilities.maxDependencies";
+
+    public static final String CONTEXT_PARAM_MAX_RESOURCES = "webutilities.maxResources";
+
+    private static final String CONTEXT_ATTR = ResourceMetadataRegistry.class.getName();
+
+    private static final long DEFAULT_POLL_INTERVAL = 2000;
+
+    private static final long DEFAULT_MAX_DEPENDENCIES = 10000;
+
+    private static final long DEFAULT_MAX_RESOURCES = 10000;
+
+    private static final String NO_REAL_PATH = "";
+
+    private static final long WATCH_TIMEOUT = 5000; //to check if registry is still in use
+
+    private int users; //guarded by ResourceMetadataRegistry.class
+
+    private final ServletContext context;
+
+    private final long pollInterval;
+
+    private final ETagStrategy eTagStrategy;
+
+    private final ResourceDependencyGraph dependencyGraph;
+
+    private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+
+    //relative path -> real path (or NO_REAL_PATH), bounded
+    private final ConcurrentMap<String, String> realPaths;
+
+    //real path (or relative path when no real path) -> metadata, bounded
+    private final ConcurrentMap<String, ResourceMetadata> metadata;
+
+    private final Set<Path> watchedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    //incremented on every invalidation, to detect changes while metadata is being read
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private WatchService watchService;
+
+    private ResourceMetadataRegistry(ServletContext context) {
+        this.context = context;
+        this.pollInterval = Utils.readLong(context.getInitParameter(CONTEXT_PARAM_POLL_INTERVAL), DEFAULT_POLL_INTERVAL);
+        this.eTagStrategy = ETagStrategy.forName(context.getInitParameter(ETagStrategy.CONTEXT_PARAM_ETAG_STRATEGY));
+        this.dependencyGraph = new ResourceDependencyGraph(
+            Utils.readLong(context.getInitParameter(CONTEXT_PARAM_MAX_DEPENDENCIES), DEFAULT_MAX_DEPENDENCIES));
+        long maxResources = Math.max(1, Utils.readLong(context.getInitParameter(CONTEXT_PARAM_MAX_RESOURCES), DEFAULT_MAX_RESOURCES));
+        this.realPaths = CacheBuilder.newBuilder().maximumSize(maxResources).<String, String>build().asMap();
+        this.metadata = CacheBuilder.newBuilder().maximumSize(maxResources).<String, ResourceMetadata>build().asMap();
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(new Watcher(this, watchService), "webutilities-resource-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException ex) {
+            LOGGER.warn("Watch service not available, polling resources every {}ms instead. {}", pollInterval, ex);
+            this.watchService = null;
+        } catch (UnsupportedOperationException ex) {
+            LOGGER.warn("Watch service not supported, polling resources every {}ms instead.", pollInterval);
+            this.watchService = null;
+        }
+    }
+
+    /**
+     * @param context - servlet context
+     * @return registry of the given web application, created if not yet
+     */
+    public static ResourceMetadataRegistry getInstance(ServletContext context) {
+        Object registry = context.getAttribute(CONTEXT_ATTR);
+        if (registry instanceof ResourceMetadataRegistry) {
+            return (ResourceMetadataRegistry) registry;
+        }
+        synchronized (ResourceMetadataRegistry.class) {
+            registry = context.getAttribute(CONTEXT_ATTR);
+            if (!(registry instanceof ResourceMetadataRegistry)) {
+                registry = new ResourceMetadataRegistry(context);
+                context.setAttribute(CONTEXT_ATTR, registry);
+            }
+            return (ResourceMetadataRegistry) registry;
+        }
+    }
+
+    /**
+     * Same as {@link #getInstance(ServletContext)}, but the registry is kept open until {@link #release(ServletContext)}
+     * is called as many times.
+     *
+     * @param context - servlet context
+     * @return registry of the given web application, created if not yet
+     */
+    public static ResourceMetadataRegistry acquire(ServletContext context) {
+        synchronized (ResourceMetadataRegistry.class) {
+            ResourceMetadataRegistry registry = getInstance(context);
+            registry.users++;
+            return registry;
+        }
+    }
+
+    /**
+     * Releases the registry acquired using {@link #acquire(ServletContext)}, closing and removing it if this was the
+     * last use of it
+     *
+     * @param context - servlet context
+     */
+    public static void release(ServletContext context) {
+        release(context, null);
+    }
+
+    /**
+     * Same as {@link #release(ServletContext)}, removing the given listener if the registry stays open
+     *
+     * @param context  - servlet context
+     * @param listener - listener added by the releasing component, may be null
+     */
+    public static void release(ServletContext context, InvalidationListener listener) {
+        synchronized (ResourceMetadataRegistry.class) {
+            Object registry = context.getAttribute(CONTEXT_ATTR);
+            if (!(registry instanceof ResourceMetadataRegistry)) return; //already removed
+            if (listener != null) {
+                ((ResourceMetadataRegistry) registry).removeInvalidationListener(listener);
+            }
+            if (--((ResourceMetadataRegistry) registry).users <= 0) {
+                remove(context);
+            }
+        }
+    }
+
+    /**
+     * Closes and removes the registry of the given web application if there is one, whoever is using it
+     *
+     * @param context - servlet context
+     */
+    public static void remove(ServletContext context) {
+        synchronized (ResourceMetadataRegistry.class) {
+            Object registry = context.getAttribute(CONTEXT_ATTR);
+            if (registry instanceof ResourceMetadataRegistry) {
+                context.removeAttribute(CONTEXT_ATTR);
+                ((ResourceMetadataRegistry) registry).close();
+            }
+        }
+    }
+
+    public ETagStrategy getETagStrategy() {
+        return eTagStrategy;
+    }
+
+    public ResourceDependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * @param listener - to be notified of every resource invalidated
+     */
+    public void addInvalidationListener(InvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener - not to be notified anymore
+     */
+    public void removeInvalidationListener(InvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @return key of the resource in the registry and its dependency graph, real path if it has one
+     */
+    public String keyOf(String relativePath) {
+        String realPath = getRealPath(relativePath);
+        return realPath != null ? realPath : relativePath;
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @return real path of the resource or null if it has none
+     */
+    public String getRealPath(String relativePath) {
+        if (relativePath == null) return null;
+        String realPath = realPaths.get(relativePath);
+        if (realPath == null) {
+            realPath = context.getRealPath(relativePath);
+            realPath = realPath == null ? NO_REAL_PATH : normalize(realPath);
+            realPaths.put(relativePath, realPath);
+        }
+        return realPath.equals(NO_REAL_PATH) ? null : realPath;
+    }
+
+    /**
+     * @param relativePath - context relative path of the resource
+     * @return metadata of the resource, never null
+     */
+    public ResourceMetadata get(String relativePath) {
+        String realPath = getRealPath(relativePath);
+        if (realPath == null) {
+            return this.lookup(relativePath, relativePath, false);
+        }
+        return this.lookup(realPath, relativePath, true);
+    }
+
+    /**
+     * @param realPath - real path of the resource
+     * @return metadata of the resource, never null
+     */
+    public ResourceMetadata getByRealPath(String realPath) {
+        ResourceMetadata resourceMetadata = realPath != null ? metadata.get(realPath) : null;
+        if (resourceMetadata != null && !resourceMetadata.isStale()) {
+            return resourceMetadata; //already a key
+        }
+        return this.lookup(normalize(realPath), null, true);
+    }
+
+    /**
+     * @param realPath - real path as returned by the container or found in a watch event
+     * @return absolute, normalized path, so that the same file always has the same key
+     */
+    static String normalize(String realPath) {
+        try {
+            return Paths.get(realPath).toAbsolutePath().normalize().toString();
+        } catch (InvalidPathException ex) {
+            return realPath;
+        }
+    }
+
+    private ResourceMetadata lookup(String key, String relativePath, boolean isRealPath) {
+        ResourceMetadata resourceMetadata = metadata.get(key);
+        if (resourceMetadata == null || resourceMetadata.isStale()) {
+            long generation = invalidations.get();
+            resourceMetadata = isRealPath ? this.readFile(key) : this.readURL(relativePath);
+            metadata.put(key, resourceMetadata);
+            if (generation != invalidations.get()) { //might have changed while reading, read again next time
+                metadata.remove(key, resourceMetadata);
+            }
+        }
+        return resourceMetadata;
+    }
+
+    private ResourceMetadata readFile(String realPath) {
+        File file = new File(realPath);
+        boolean watched = this.watch(file.getAbsoluteFile().getParentFile());
+        boolean isFile = file.isFile();
+        return new ResourceMetadata(realPath, file.exists(), isFile,
+            file.lastModified(), isFile ? file.length() : 0, watched ? Long.MAX_VALUE : this.expiry());
+    }
+
+    private ResourceMetadata readURL(String relativePath) {
+        try {
+            URL url = context.getResource(relativePath);
+            if (url != null) {
+                URLConnection connection = url.openConnection();
+                long lastModified = connection.getLastModified();
+                long size = connection.getContentLength();
+                connection.getInputStream().close();
+                return new ResourceMetadata(null, true, size >= 0, lastModified, size, this.expiry());
+            }
+        } catch (IOException ex) {
+            LOGGER.trace("Unable to read metadata of {}. {}", relativePath, ex);
+        }
+        return new ResourceMetadata(null, false, false, 0, 0, this.expiry());
+    }
+
+    private long expiry() {
+        return System.currentTimeMillis() + pollInterval;
+    }
+
+    /**
+     * @return number of resources whose metadata is kept
+     */
+    public int size() {
+        return metadata.size();
+    }
+
+    /**
+     * Forgets the metadata of the resource, and of all the resources depending on it, so that it is read again next
+     * time. Listeners are notified of every resource invalidated.
+     *
+     * @param key - real path of the resource, or any other node of the dependency graph
+     */
+    public void invalidate(String key) {
+        invalidations.incrementAndGet();
+        if (key == null) return;
+        Set<String> invalidated = new HashSet<String>();
+        LinkedList<String> toInvalidate = new LinkedList<String>();
+        toInvalidate.add(key);
+        while (!toInvalidate.isEmpty()) {
+            String node = toInvalidate.removeFirst();
+            if (!invalidated.add(node)) continue;
+            if (metadata.remove(node) != null) {
+                LOGGER.trace("Invalidated metadata of {}", node);
+            }
+            for (InvalidationListener listener : listeners) {
+                listener.invalidated(node);
+            }
+            toInvalidate.addAll(dependencyGraph.getDependents(node));
+        }
+    }
+
+    /**
+     * Forgets the metadata of all the resources. Listeners are notified once, using
+     * {@link InvalidationListener#invalidatedAll()}.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        metadata.clear();
+        LOGGER.trace("Invalidated metadata of all resources");
+        for (InvalidationListener listener : listeners) {
+            listener.invalidatedAll();
+        }
+    }
+
+    private boolean watch(File directory) {
+        if (watchService == null || directory == null) return false;
+        Path path = directory.toPath();
+        if (watchedDirectories.contains(path)) return true;
+        try {
+            path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            watchedDirectories.add(path);
+            LOGGER.trace("Watching {}", path);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to watch {}, will poll instead. {}", path, ex);
+        } catch (ClosedWatchServiceException ex) {
+            LOGGER.trace("Watch service already closed.");
+        }
+        return false;
+    }
+
+    /**
+     * @param resource - metadata of the resource
+     * @return ETag set using {@link #setCompositeETag} if none of the resources it was computed from changed since,
+     *         null otherwise
+     */
+    public String getCompositeETag(ResourceMetadata resource) {
+        CompositeETag composite = resource.compositeETag;
+        if (composite == null) return null;
+        for (ResourceMetadata part : composite.parts) {
+            if (part.isStale() || metadata.get(part.getRealPath()) != part) return null;
+        }
+        return composite.eTag;
+    }
+
+    /**
+     * Keeps the ETag of the resource computed along with other resources (eg. css with the images it refers) until
+     * the resource or any of those changes.
+     *
+     * @param resource - metadata of the resource
+     * @param eTag     - ETag computed
+     * @param parts    - metadata of the other resources, as read using {@link #getByRealPath}
+     */
+    public void setCompositeETag(ResourceMetadata resource, String eTag, List<ResourceMetadata> parts) {
+        resource.compositeETag = new CompositeETag(eTag, new ArrayList<ResourceMetadata>(parts));
+    }
+
+    private void processEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                LOGGER.debug("Too many changes in {}, invalidating all.", directory);
+                this.invalidateAll();
+            } else {
+                this.invalidate(directory.resolve((Path) event.context()).toAbsolutePath().normalize().toString());
+            }
+        }
+        if (!key.reset()) { //directory is no more accessible
+            watchedDirectories.remove(directory);
+            this.invalidateAll();
+        }
+    }
+
+    private void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close watch service.", ex);
+            }
+        }
+        watchedDirectories.clear();
+        listeners.clear();
+        dependencyGraph.clear();
+        this.invalidateAll();
+    }
+
+    /**
+     * Processes the watch events, holding the registry only weakly so that it does not keep the registry (and web
+     * application) alive. Stops, closing the watch service, once the registry is gone.
+     */
+    private static final class Watcher implements Runnable {
+
+        private final WeakReference<ResourceMetadataRegistry> registryReference;
+
+        private final WatchService watchService;
+
+        Watcher(ResourceMetadataRegistry registry, WatchService watchService) {
+            this.registryReference = new WeakReference<ResourceMetadataRegistry>(registry);
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (this.process(watchService.poll(WATCH_TIMEOUT, TimeUnit.MILLISECONDS))) {
+                    //registry is referenced only while processing
+                }
+                LOGGER.debug("Registry no more in use, closing watch service.");
+                watchService.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ClosedWatchServiceException ex) {
+                LOGGER.trace("Watch service closed.");
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close watch service.", ex);
+            }
+        }
+
+        private boolean process(WatchKey key) {
+            ResourceMetadataRegistry registry = registryReference.get();
+            if (registry == null) return false;
+            if (key != null) {
+                registry.processEvents(key);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gets notified when a resource, or anything depending on it, is invalidated
+     */
+    public interface InvalidationListener {
+
+        /**
+         * @param key - real path of the resource, or other node of the dependency graph, invalidated
+         */
+        void invalidated(String key);
+
+        /**
+         * All the resources are invalidated, eg. when too many changed at once to know which
+         */
+        void invalidatedAll();
+    }
+
+    private static final class CompositeETag {
+
+        private final String eTag;
+
+        private final List<ResourceMetadata> parts;
+
+        CompositeETag(String eTag, List<ResourceMetadata> parts) {
+            this.eTag = eTag;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Metadata of a single resource as it was when read
+     */
+    public static final class ResourceMetadata {
+
+        private final String realPath;
+
+        private final boolean exists;
+
+        private final boolean file;
+
+        private final long lastModified;
+
+        private final long size;
+
+        private final long expiresAt;
+
+        private volatile String eTag;
+
+        private volatile CompositeETag compositeETag;
+
+        ResourceMetadata(String realPath, boolean exists, boolean file, long lastModified, long size, long expiresAt) {
+            this.realPath = realPath;
+            this.exists = exists;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isStale() {
+            return expiresAt < System.currentTimeMillis();
+        }
+
+        public String getRealPath() {
+            return realPath;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public boolean isFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public void setETag(String eTag) {
+            this.eTag = eTag;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Closes the {@link ResourceMetadataRegistry} of the web application, stopping its watch service, when the web
+ * application is stopped.
+ * <p/>
+ * Usage :
+ * <p/>
+ * Put the following in your web.xml
+ * </p>
+ * <pre><code>
+ * &lt;listener&gt;
+ *     &lt;listener-class&gt;com.googlecode.webutilities.util.ResourceMetadataRegistryListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </code></pre>
+ *
+ * @version 1.0
+ */
+public class ResourceMetadataRegistryListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        //registry is created when first needed
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ResourceMetadataRegistry.remove(event.getServletContext());
+    }
+
+}
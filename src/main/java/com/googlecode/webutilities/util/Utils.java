@@ -16,19 +16,25 @@
 
 package com.googlecode.webutilities.util;
 
+import com.google.common.io.ByteStreams;
+
 import javax.servlet.ServletContext;
 import java.io.*;
 import java.net.URLConnection;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.regex.Matcher;
 
 import static com.googlecode.webutilities.common.Constants.*;
 
@@ -48,6 +54,22 @@ public final class Utils {
   private static final String PATH_CURRENT = "./";
   private static final String PATH_PARENT = "../";
 
+  private static final Charset CSS_CHARSET = Charset.forName("UTF-8");
+
+  //content encodings compression filter or precompressed bundles suffix ETags with
+  private static final Set<String> ENCODED_ETAG_SUFFIXES = new HashSet<String>(Arrays.asList(
+      CONTENT_ENCODING_GZIP, CONTENT_ENCODING_DEFLATE, CONTENT_ENCODING_COMPRESS, CONTENT_ENCODING_BROTLI));
+
+  private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
   /**
    * @param string       string representation of a int which is to be parsed and read from
    * @param defaultValue in case parsing fails or string is null, returns this default value
@@ -194,16 +216,12 @@ public final class Utils {
   /**
    * Calculates simple hash using file size and last modified time.
    *
-   * @param resourceRealPath - file path, whose has to be calculated
+   * @param resource - metadata of the file, whose hash has to be calculated
    * @return - hash string as lastmodified#size
    */
-  private static String simpleHashOf(String resourceRealPath) {
-    if (resourceRealPath == null) return null;
-    File resource = new File(resourceRealPath);
+  private static String simpleHashOf(ResourceMetadataRegistry.ResourceMetadata resource) {
     if (!resource.exists()) return null;
-    long lastModified = resource.lastModified();
-    long size = resource.length();
-    return String.format("%s#%s", lastModified, size);
+    return String.format("%s#%s", resource.getLastModified(), resource.getSize());
   }
 
   /**
@@ -259,11 +277,9 @@ public final class Utils {
    * @return true if any of the resources is modified since given time, false otherwise
    */
   public static boolean isAnyResourceModifiedSince(List<String> resources, long sinceTime, ServletContext servletContext) {
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(servletContext);
     for (String resourcePath : resources) {
-      resourcePath = servletContext.getRealPath(resourcePath);
-      if (resourcePath == null) continue;
-      File resource = new File(resourcePath);
-      long lastModified = resource.lastModified();
+      long lastModified = lastModifiedOf(resourcePath, registry);
       if (lastModified > sinceTime) {
         return true;
       }
@@ -271,18 +287,33 @@ public final class Utils {
     return false;
   }
 
+  /**
+   * @param relativePath - relative path of the resource
+   * @param registry     - registry of the web application
+   * @return last modified of the resource or of any known dependency of it (eg. image referred by css), whichever is later
+   */
+  private static long lastModifiedOf(String relativePath, ResourceMetadataRegistry registry) {
+    ResourceMetadataRegistry.ResourceMetadata resource = registry.get(relativePath);
+    long lastModified = resource.getLastModified();
+    Set<String> dependencies = resource.getRealPath() != null ? registry.getDependencyGraph().getDependencies(resource.getRealPath()) : null;
+    if (dependencies != null) {
+      for (String dependency : dependencies) {
+        lastModified = Math.max(lastModified, registry.getByRealPath(dependency).getLastModified());
+      }
+    }
+    return lastModified;
+  }
+
   /**
    * @param resources      - list of resources paths
    * @param servletContext - servlet context
    * @return long - maximum of last modified values of the resources
    */
   public static long getLastModifiedFor(List<String> resources, ServletContext servletContext) {
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(servletContext);
     long lastModified = 0;
     for (String resourcePath : resources) {
-      resourcePath = servletContext.getRealPath(resourcePath);
-      if (resourcePath == null) continue;
-      File resource = new File(resourcePath);
-      long resourceLastModified = resource.lastModified();
+      long resourceLastModified = lastModifiedOf(resourcePath, registry);
       if (resourceLastModified > lastModified) {
         lastModified = resourceLastModified;
       }
@@ -302,12 +333,26 @@ public final class Utils {
       actualETag = buildETagForResources(resources, servletContext);
     }
     if (requestETag != null && actualETag != null) {
-      requestETag = requestETag.replace("-gzip", "");//might have been added by gzip filter
-      return !requestETag.equals(actualETag);
+      return !isSameETag(requestETag, actualETag);
     }
     return true;
   }
 
+  /**
+   * @param requestETag - ETag from If-None-Match header
+   * @param actualETag  - current ETag
+   * @return true if request ETag is the actual one, as it is or with the encoding suffix (eg. -gzip) added by
+   *         compression filter or precompressed bundle
+   */
+  private static boolean isSameETag(String requestETag, String actualETag) {
+    int length = actualETag.length();
+    if (requestETag.length() == length) {
+      return requestETag.equals(actualETag);
+    }
+    return requestETag.length() > length + 1 && requestETag.charAt(length) == '-' && requestETag.startsWith(actualETag)
+        && ENCODED_ETAG_SUFFIXES.contains(requestETag.substring(length + 1));
+  }
+
 
   /**
    * @param resourcesRelativePath - list of resources
@@ -320,14 +365,39 @@ public final class Utils {
       String hash = buildETagForResource(relativePath, context);
       hashForETag = hashForETag + (hash != null ? hash : "");
     }
-    return hashForETag.length() > 0 ? (resourcesRelativePath.size() > 2 ? hexDigestString(hashForETag.getBytes()) : hashForETag) : null;
+    ETagStrategy strategy = ResourceMetadataRegistry.getInstance(context).getETagStrategy();
+    return hashForETag.length() > 0 ? (resourcesRelativePath.size() > 2 ? strategy.hash(hashForETag.getBytes()) : hashForETag) : null;
+  }
+
+  /**
+   * Records (or forgets if image no more exists) the dependency of css file on the image in the dependency graph, so
+   * that css is invalidated whenever image changes.
+   *
+   * @param context     - servlet context
+   * @param cssFilePath - css file real path
+   * @param imgFilePath - img file real path
+   * @return true if dependency is recorded, false otherwise
+   */
+  public static boolean updateReferenceMap(ServletContext context, String cssFilePath, String imgFilePath) {
+    if (cssFilePath == null || imgFilePath == null) return false;
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+    ResourceMetadataRegistry.ResourceMetadata img = registry.getByRealPath(imgFilePath);
+    if (img.isFile() && img.exists()) {
+      registry.getDependencyGraph().addDependency(cssFilePath, imgFilePath);
+      return true;
+    }
+    registry.getDependencyGraph().removeDependency(cssFilePath, imgFilePath);
+    return false;
   }
 
   /**
    * @param cssFilePath - css file path
    * @param imgFilePath - img file path
    * @return true if all goes well and paths are touched, false otherwise
+   * @deprecated does not invalidate anything, as it has no servlet context to find the registry of. Use
+   *             {@link #updateReferenceMap(ServletContext, String, String)} instead.
    */
+  @Deprecated
   public static boolean updateReferenceMap(String cssFilePath, String imgFilePath) {
     if (imgFilePath != null) {
       File imgFile = new File(imgFilePath);
@@ -353,6 +423,51 @@ public final class Utils {
     return false;
   }
 
+  /**
+   * Reads the css file to find the images it refers
+   *
+   * @param relativePath - context relative path of the css file
+   * @param realPath     - real path of the css file
+   * @param registry     - registry of the web application
+   * @return real paths of the existing images referred by the css
+   */
+  private static Set<String> findReferencedImages(final String relativePath, String realPath, final ResourceMetadataRegistry registry) {
+    final Set<String> images = new HashSet<String>();
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(realPath);
+      CSSURLRewriter.rewrite(inputStream, NULL_OUTPUT_STREAM, CSS_CHARSET, new CSSURLRewriter.URLHandler() {
+        @Override
+        public String rewrite(String refImgPath) {
+          if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+            String resolvedImgPath = refImgPath;
+            if (!refImgPath.startsWith(PATH_ROOT)) {
+              resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(relativePath), refImgPath);
+            }
+            String imgRealPath = registry.getRealPath(resolvedImgPath);
+            if (imgRealPath != null && registry.getByRealPath(imgRealPath).isFile()) {
+              images.add(imgRealPath);
+            }
+          }
+          return null;
+        }
+      });
+    } catch (FileNotFoundException ex) {
+      LOGGER.warn("File not found.", ex);
+    } catch (IOException ex) {
+      LOGGER.warn("Failed to read {}. ex: {}", realPath, ex);
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException ex) {
+          LOGGER.warn("Failed to close {}", realPath);
+        }
+      }
+    }
+    return images;
+  }
+
   public static boolean isProtocolURL(String url) {
     return url != null && url.trim().length() != 0 && url.matches("^[a-z0-9\\+\\.\\-]+:.*$");
   }
@@ -364,60 +479,83 @@ public final class Utils {
    */
   public static String buildETagForResource(String relativePath, ServletContext context) {
     String hashForETag = ":";
-    String realPath = context.getRealPath(relativePath);
-    if (realPath == null) return null;
-    File realFile = new File(realPath);
-    if (!realFile.isFile() || !realFile.exists()) return null;
-    if (realPath.endsWith(EXT_CSS)) { // check if any image references by this css has been modified or not
-      long cssLastModified = realFile.lastModified();
-
-      List<String> referencedImages = CSS_IMG_REFERENCES.get(realPath);
-
-      if (referencedImages != null) {
-        for (String referenceImage : referencedImages) {
-          File imgFile = new File(referenceImage);
-          if (imgFile.isFile() && imgFile.exists()) {
-            if (cssLastModified < imgFile.lastModified()) { //means ref img got modified after css
-              //so touch css file
-              realFile.setLastModified(new Date().getTime());
-              break;
-            }
-          }
+    ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+    ResourceMetadataRegistry.ResourceMetadata resource = registry.get(relativePath);
+    if (!resource.isFile() || !resource.exists()) return null;
+    String realPath = resource.getRealPath();
+    ETagStrategy strategy = registry.getETagStrategy();
+    if (realPath != null && realPath.endsWith(EXT_CSS)) { // referenced images are part of the css version too
+      ResourceDependencyGraph dependencyGraph = registry.getDependencyGraph();
+      Set<String> referencedImages = dependencyGraph.getDependencies(realPath);
+      if (referencedImages == null) {
+        referencedImages = findReferencedImages(relativePath, realPath, registry);
+        dependencyGraph.setDependencies(realPath, referencedImages);
+      }
+      //kept along with the metadata of the images, as images that are not watched don't invalidate the css
+      String eTag = registry.getCompositeETag(resource);
+      if (eTag != null) return eTag;
+      List<ResourceMetadataRegistry.ResourceMetadata> images = new ArrayList<ResourceMetadataRegistry.ResourceMetadata>(referencedImages.size());
+      StringBuilder hashes = new StringBuilder(strategy.isContentBased() ? contentHashOf(relativePath, resource, context, strategy) : hashForETag + ":" + Utils.simpleHashOf(resource));
+      for (String referencedImage : new TreeSet<String>(referencedImages)) {
+        ResourceMetadataRegistry.ResourceMetadata img = registry.getByRealPath(referencedImage);
+        images.add(img);
+        if (img.isFile() && img.exists()) {
+          hashes.append(':').append(strategy.isContentBased() ? contentHashOf(null, img, context, strategy) : Utils.simpleHashOf(img));
         }
+      }
+      eTag = strategy.hash(hashes.toString().getBytes());
+      registry.setCompositeETag(resource, eTag, images);
+      return eTag;
+    }
+    if (resource.getETag() == null) {
+      if (strategy.isContentBased()) {
+        return contentHashOf(relativePath, resource, context, strategy);
+      }
+      String hash = Utils.simpleHashOf(resource);
+      hashForETag = hashForETag + (hash != null ? ":" + hash : "");
+      resource.setETag(hexDigestString(hashForETag.getBytes()));
+    }
+    return resource.getETag();
+  }
 
-      } else {
-
-        BufferedReader bufferedReader;
+  /**
+   * Hashes the content of the resource once per version of it and keeps the hash in its metadata.
+   *
+   * @param relativePath - relative path of the resource, used when it has no real path
+   * @param resource     - metadata of the resource
+   * @param context      - servlet context
+   * @param strategy     - content based strategy to be used
+   * @return hash of the content, or of last modified and size in case content could not be read
+   */
+  private static String contentHashOf(String relativePath, ResourceMetadataRegistry.ResourceMetadata resource,
+                                      ServletContext context, ETagStrategy strategy) {
+    String eTag = resource.getETag();
+    if (eTag != null) return eTag;
+    byte[] content = null;
+    InputStream inputStream = null;
+    try {
+      if (resource.getRealPath() != null) {
+        content = Files.readAllBytes(Paths.get(resource.getRealPath()));
+      } else if (relativePath != null && (inputStream = context.getResourceAsStream(relativePath)) != null) {
+        content = ByteStreams.toByteArray(inputStream);
+      }
+    } catch (IOException ex) {
+      LOGGER.warn("Failed to read {} for hashing, using last modified and size instead. {}", resource.getRealPath(), ex);
+    } finally {
+      if (inputStream != null) {
         try {
-          bufferedReader = new BufferedReader(new FileReader(realPath));
-          String line;
-          while ((line = bufferedReader.readLine()) != null) {
-            Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
-            while (matcher.find()) {
-              String refImgPath = matcher.group(1);
-              if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith(PATH_ROOT)) {
-                  resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(realPath), refImgPath);
-                }
-
-                if (updateReferenceMap(realPath, resolvedImgPath)) {
-                  break;
-                }
-
-              }
-            }
-          }
-        } catch (FileNotFoundException ex) {
-          LOGGER.warn("File not found.", ex);
+          inputStream.close();
         } catch (IOException ex) {
-          LOGGER.warn("Failed to read/touch {}. ex: {}", realPath, ex);
+          LOGGER.trace("Failed to close stream of {}", relativePath);
         }
       }
     }
-    String hash = Utils.simpleHashOf(realPath);
-    hashForETag = hashForETag + (hash != null ? ":" + hash : "");
-    return hashForETag.length() > 0 ? hexDigestString(hashForETag.getBytes()) : null;
+    if (content == null) {
+      content = (":" + Utils.simpleHashOf(resource)).getBytes();
+    }
+    eTag = strategy.hash(content);
+    resource.setETag(eTag);
+    return eTag;
   }
 
   /**
@@ -465,23 +603,12 @@ public final class Utils {
     return simpleDateFormat.format(time);
   }
 
+  /**
+   * @param data - bytes to digest
+   * @return hex string of MD5 digest of the data, using a digest instance reused by the current thread
+   */
   public static String hexDigestString(byte[] data) {
-    MessageDigest md5Digest = null;
-    try {
-      md5Digest = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException ex) {
-      LOGGER.warn("Unable to use MD5 for digesting.", ex);
-    }
-    if (md5Digest != null) {
-      data = md5Digest.digest(data);
-    }
-    final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
-    char[] hex = new char[2 * data.length];
-    for (int i = 0; i < data.length; ++i) {
-      hex[2 * i] = HEX_CHARS[(data[i] & 0xF0) >>> 4];
-      hex[2 * i + 1] = HEX_CHARS[data[i] & 0x0F];
-    }
-    return new String(hex);
+    return ETagStrategy.LAST_MODIFIED.hash(data);
   }
 
   /**
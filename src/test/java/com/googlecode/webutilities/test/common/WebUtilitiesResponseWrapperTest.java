@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.common;
+
+import com.googlecode.webutilities.common.ExposedByteArrayOutputStream;
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+public class WebUtilitiesResponseWrapperTest {
+
+    private static final String CONTENTS = "var a = 1;\nvar b = 2;\n";
+
+    /**
+     * @return response doing nothing, as the wrapper buffers everything itself
+     */
+    private static HttpServletResponse newResponse() {
+        return (HttpServletResponse) Proxy.newProxyInstance(WebUtilitiesResponseWrapperTest.class.getClassLoader(),
+            new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) return false;
+                    if (type == int.class) return 0;
+                    if (type == String.class && "getCharacterEncoding".equals(method.getName())) return "UTF-8";
+                    return null;
+                }
+            });
+    }
+
+    private static String read(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            out.write(b);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void testStreamReadWithoutCopy() throws Exception {
+        WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(newResponse());
+        wrapper.getOutputStream().write(CONTENTS.getBytes("UTF-8"));
+
+        Assert.assertEquals(CONTENTS.length(), wrapper.getSize());
+        Assert.assertEquals(CONTENTS, read(wrapper.getInputStream()));
+        byte[] buffer = wrapper.getBuffer();
+        Assert.assertSame(buffer, wrapper.getBuffer()); //the buffer itself, not a copy
+        Assert.assertEquals(CONTENTS, new String(buffer, 0, wrapper.getSize(), "UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        wrapper.writeTo(out);
+        Assert.assertEquals(CONTENTS, new String(out.toByteArray(), "UTF-8"));
+        Assert.assertEquals(CONTENTS, wrapper.getContents());
+    }
+
+    @Test
+    public void testWriterIsFlushed() throws Exception {
+        WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(newResponse());
+        wrapper.getWriter().print(CONTENTS); //not flushed
+
+        Assert.assertEquals(CONTENTS, read(wrapper.getInputStream()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        wrapper.writeTo(out);
+        Assert.assertEquals(CONTENTS, new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(newResponse());
+        wrapper.getOutputStream().write("discarded".getBytes("UTF-8"));
+        wrapper.resetBuffer();
+        wrapper.getOutputStream().write(CONTENTS.getBytes("UTF-8"));
+        Assert.assertEquals(CONTENTS, read(wrapper.getInputStream()));
+        Assert.assertEquals(CONTENTS.length(), wrapper.getSize());
+    }
+
+    @Test
+    public void testExposedBufferIsShared() throws Exception {
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(64);
+        out.write(CONTENTS.getBytes("UTF-8"));
+        InputStream in = out.newInputStream();
+        out.getBuffer()[0] = 'V'; //visible through the stream, as it reads the buffer itself
+        Assert.assertEquals("V" + CONTENTS.substring(1), read(in));
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.googlecode.webutilities.filters.compression.AcceptEncoding;
+
+public class AcceptEncodingTest {
+
+    private static final List<String> BUILT_IN = Arrays.asList("compress", "deflate", "gzip");
+
+    private static String negotiate(String header) {
+        return AcceptEncoding.parse(header).negotiate(BUILT_IN);
+    }
+
+    @Test
+    public void testQualities() {
+        AcceptEncoding acceptEncoding = AcceptEncoding.parse("gzip;q=0.5, deflate ; Q=0.8,br");
+        assertEquals(0.5f, acceptEncoding.getQuality("gzip"), 0);
+        assertEquals(0.8f, acceptEncoding.getQuality("deflate"), 0);
+        assertEquals(1f, acceptEncoding.getQuality("br"), 0);
+        assertEquals(0f, acceptEncoding.getQuality("compress"), 0);
+        assertEquals(1f, acceptEncoding.getQuality("identity"), 0);
+    }
+
+    @Test
+    public void testHighestQualityWins() {
+        assertEquals("deflate", negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals("gzip", negotiate("deflate;q=0.1, GZIP"));
+        assertEquals("compress", negotiate("compress, gzip;q=0.999"));
+    }
+
+    @Test
+    public void testTiesGoToClientOrderThenBuiltInPreference() {
+        assertEquals("deflate", negotiate("deflate, gzip"));
+        assertEquals("gzip", negotiate("gzip, deflate"));
+        assertEquals("gzip", negotiate("*"));
+        assertEquals("deflate", negotiate("gzip;q=0, *"));
+    }
+
+    @Test
+    public void testZeroQualityIsNotAcceptable() {
+        assertNull(negotiate("gzip;q=0"));
+        assertNull(negotiate("gzip;q=0.0, deflate;q=0"));
+        assertFalse(AcceptEncoding.parse("gzip;q=0").accepts("gzip"));
+        assertNull(negotiate("*;q=0"));
+        assertFalse(AcceptEncoding.parse("*;q=0").accepts("identity"));
+    }
+
+    @Test
+    public void testMalformedElementsAreIgnored() {
+        assertEquals("deflate", negotiate("gzip;q=abc, deflate"));
+        assertEquals("deflate", negotiate("gzip;q=2, deflate"));
+        assertEquals("gzip", negotiate(" , ;q=1, gzip;level=9"));
+        assertNull(negotiate("br, sdch"));
+    }
+
+    @Test
+    public void testIdentityCompetesOnlyWhenListed() {
+        assertEquals("gzip", negotiate("gzip;q=0.1"));
+        assertNull(negotiate("identity, gzip;q=0.5"));
+        assertNull(negotiate("identity, gzip"));
+        assertEquals("gzip", negotiate("gzip, identity"));
+        assertEquals("gzip", negotiate("identity;q=0, gzip"));
+    }
+
+    @Test
+    public void testMissingHeader() {
+        assertNull(negotiate(null));
+        assertNull(negotiate(""));
+        assertTrue(AcceptEncoding.parse(null).accepts("identity"));
+    }
+
+    @Test
+    public void testParsedHeadersAreCached() {
+        assertSame(AcceptEncoding.parse("gzip, deflate"), AcceptEncoding.parse("gzip, deflate"));
+    }
+}
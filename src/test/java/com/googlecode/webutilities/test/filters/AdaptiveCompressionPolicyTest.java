@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.AdaptiveCompressionPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thresholds {@link AdaptiveCompressionPolicy} comes to once its one second window rolls.
+ */
+public class AdaptiveCompressionPolicyTest {
+
+    private static final long WINDOW_MILLIS = 1100; //a bit more than the window
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    //CPU time of the whole window on all processors, times the given factor
+    private static long busy(double factor) {
+        return (long) (TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS) * PROCESSORS * factor);
+    }
+
+    @Test
+    public void testMinThresholdWithinBudget() throws Exception {
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(1024, 1 << 20, 25);
+        Assert.assertEquals(1024, policy.getThreshold(null));
+        Assert.assertEquals(1024, policy.getThreshold("text/html"));
+        for (int i = 0; i < 100; i++) {
+            policy.record("text/html", 10000, 2000, 1000);
+        }
+        Thread.sleep(WINDOW_MILLIS);
+        Assert.assertEquals(1024, policy.getThreshold("text/html; charset=UTF-8"));
+        Assert.assertTrue(policy.getLoad() < policy.getCpuBudget());
+    }
+
+    @Test
+    public void testDenseContentIsNotCompressed() throws Exception {
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(1024, 1 << 20, 25);
+        for (int i = 0; i < 40; i++) {
+            policy.record("application/octet-stream", 10000, 9500, 1000);
+            policy.record("text/css", 10000, 2000, 1000);
+        }
+        Thread.sleep(WINDOW_MILLIS);
+        Assert.assertEquals(AdaptiveCompressionPolicy.NO_COMPRESSION, policy.getThreshold("application/octet-stream"));
+        Assert.assertEquals(1024, policy.getThreshold("text/css"));
+        Assert.assertEquals(1024, policy.getThreshold("image/unknown"));
+    }
+
+    @Test
+    public void testTooFewSamplesToTellDensity() throws Exception {
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(1024, 1 << 20, 25);
+        for (int i = 0; i < 10; i++) {
+            policy.record("application/octet-stream", 10000, 9500, 1000);
+        }
+        Thread.sleep(WINDOW_MILLIS);
+        Assert.assertEquals(1024, policy.getThreshold("application/octet-stream"));
+    }
+
+    @Test
+    public void testThresholdRaisedOverBudget() throws Exception {
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(1024, 1 << 22, 25);
+        recordOverload(policy);
+        Thread.sleep(WINDOW_MILLIS);
+        //small responses (4KB bucket) took nearly all the time, so only the ones in buckets above it are compressed
+        Assert.assertEquals(8192, policy.getThreshold("text/html"));
+        Assert.assertTrue(policy.getLoad() > policy.getCpuBudget());
+    }
+
+    @Test
+    public void testNoCompressionBeyondMaxThreshold() throws Exception {
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(1024, 4096, 25);
+        recordOverload(policy);
+        Thread.sleep(WINDOW_MILLIS);
+        Assert.assertEquals(AdaptiveCompressionPolicy.NO_COMPRESSION, policy.getThreshold("text/html"));
+    }
+
+    private static void recordOverload(AdaptiveCompressionPolicy policy) {
+        int responses = 1000;
+        long each = busy(10) / responses; //ten times all processors
+        for (int i = 0; i < responses; i++) {
+            policy.record("text/html", 4096, 1024, each);
+        }
+        policy.record("text/html", 1 << 20, 1 << 18, 1000);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.webutilities.filters.common.BackgroundMinifier;
+
+public class BackgroundMinifierTest {
+
+    private BackgroundMinifier minifier;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        minifier = new BackgroundMinifier("test", 1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        minifier.shutdown();
+    }
+
+    private Callable<String> blocked(final AtomicInteger calls, final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void testConcurrentSubmissionsOfSameKeyRunOnce() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        @SuppressWarnings("unchecked")
+        final Future<String>[] futures = new Future[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        futures[index] = minifier.submit("same", blocked(calls, "minified"));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await(10, TimeUnit.SECONDS);
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertNotNull(future);
+            assertSame(futures[0], future);
+            assertEquals("minified", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, minifier.getSubmitted());
+        assertEquals(0, minifier.getInFlight());
+    }
+
+    @Test
+    public void testKeyIsMinifiedAgainOnceDone() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        release.countDown();
+        assertEquals("a", minifier.submit("key", blocked(calls, "a")).get(10, TimeUnit.SECONDS));
+        assertEquals("b", minifier.submit("key", blocked(calls, "b")).get(10, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> running = minifier.submit("running", blocked(calls, "1"));
+        while (calls.get() == 0) { //wait for the only thread to take it
+            Thread.sleep(1);
+        }
+        Future<String> queued = minifier.submit("queued", blocked(calls, "2"));
+        assertNotNull(running);
+        assertNotNull(queued);
+        assertNull(minifier.submit("rejected", blocked(calls, "3")));
+        assertEquals(1, minifier.getRejected());
+        assertSame(queued, minifier.submit("queued", blocked(calls, "4"))); //already queued, not rejected
+        release.countDown();
+        assertEquals("2", queued.get(10, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFailuresAreCounted() throws Exception {
+        minifier.submit("null", new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(1, minifier.getFailed());
+    }
+}
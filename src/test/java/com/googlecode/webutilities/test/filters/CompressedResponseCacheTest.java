@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.googlecode.webutilities.filters.compression.CompressedResponseCache;
+
+public class CompressedResponseCacheTest {
+
+    private static final byte[] BODY = {31, -117, 8, 0, 1, 2, 3};
+
+    private static final String URL = "/js/a.js";
+
+    private static final String JS = "text/javascript";
+
+    @Test
+    public void testCachedPerETagAndEncoding() {
+        CompressedResponseCache cache = new CompressedResponseCache(1024 * 1024, 1024);
+        cache.put(URL, JS, "\"v1\"", "gzip", BODY);
+        assertArrayEquals(BODY, cache.get(URL, JS, "\"v1\"", "gzip"));
+        assertNull(cache.get(URL, JS, "\"v1\"", "deflate"));
+        assertNull(cache.get(URL, JS, "\"v2\"", "gzip"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSameETagOfDifferentURLsIsNotShared() {
+        //default ETag is built from last modified time and size, different files can have the same
+        CompressedResponseCache cache = new CompressedResponseCache(1024 * 1024, 1024);
+        byte[] other = {31, -117, 8, 0, 4, 5, 6};
+        cache.put("/js/a.js", JS, "\"same\"", "gzip", BODY);
+        cache.put("/js/b.js", JS, "\"same\"", "gzip", other);
+        assertArrayEquals(BODY, cache.get("/js/a.js", JS, "\"same\"", "gzip"));
+        assertArrayEquals(other, cache.get("/js/b.js", JS, "\"same\"", "gzip"));
+        assertNull(cache.get("/js/c.js", JS, "\"same\"", "gzip"));
+        assertNull(cache.get("/js/a.js?v=2", JS, "\"same\"", "gzip"));
+        assertNull(cache.get("/js/a.js", "text/css", "\"same\"", "gzip"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testWeakETagsAreNotCached() {
+        CompressedResponseCache cache = new CompressedResponseCache(1024 * 1024, 1024);
+        cache.put(URL, JS, "W/\"v1\"", "gzip", BODY);
+        cache.put(URL, JS, null, "gzip", BODY);
+        cache.put(URL, JS, "", "gzip", BODY);
+        cache.put(null, JS, "\"v1\"", "gzip", BODY);
+        assertEquals(0, cache.size());
+        assertTrue(CompressedResponseCache.isStrong("\"v1\""));
+        assertFalse(CompressedResponseCache.isStrong("W/\"v1\""));
+        assertFalse(CompressedResponseCache.isStrong(null));
+    }
+
+    @Test
+    public void testBodiesBiggerThanMaxEntrySizeAreNotCached() {
+        CompressedResponseCache cache = new CompressedResponseCache(1024 * 1024, 1024);
+        cache.put(URL, JS, "\"big\"", "gzip", new byte[1025]);
+        cache.put(URL, JS, "\"fits\"", "gzip", new byte[1024]);
+        assertNull(cache.get(URL, JS, "\"big\"", "gzip"));
+        assertEquals(1024, cache.get(URL, JS, "\"fits\"", "gzip").length);
+    }
+
+    @Test
+    public void testBoundedByEncodedBytes() {
+        CompressedResponseCache cache = new CompressedResponseCache(64 * 1024, 1024);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(URL, JS, "\"" + i + "\"", "gzip", new byte[1024]);
+        }
+        assertTrue("entries " + cache.size(), cache.size() <= 64);
+        assertArrayEquals(new byte[1024], cache.get(URL, JS, "\"999\"", "gzip")); //most recent kept
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        CompressedResponseCache cache = new CompressedResponseCache(1024 * 1024, 1024);
+        cache.put(URL, JS, "\"v1\"", "gzip", BODY);
+        cache.put(URL, JS, "\"v1\"", "deflate", BODY);
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(URL, JS, "\"v1\"", "gzip"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.AdaptiveCompressionPolicy;
+import com.googlecode.webutilities.filters.compression.CompressibilitySampler;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Verdicts of {@link CompressibilitySampler} and its use of the pool.
+ */
+public class CompressibilitySamplerTest {
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void testTextCompressesWell() {
+        CompressorPool pool = new CompressorPool(2);
+        CompressibilitySampler sampler = new CompressibilitySampler(pool, 4096);
+        byte[] text = new byte[8192];
+        Arrays.fill(text, (byte) 'a');
+        sampler.write(text, 0, text.length);
+        double ratio = sampler.finish();
+        Assert.assertTrue("ratio " + ratio, ratio > 0 && ratio < 0.1);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(0, pool.getActiveChunks());
+    }
+
+    @Test
+    public void testRandomBytesDoNotCompress() {
+        CompressorPool pool = new CompressorPool(2);
+        CompressibilitySampler sampler = new CompressibilitySampler(pool, 4096);
+        byte[] dense = random(4096);
+        for (int i = 0; i < dense.length; i += 100) { //in pieces, beyond the sample size
+            sampler.write(dense, i, Math.min(100, dense.length - i));
+        }
+        sampler.write(dense, 0, dense.length); //ignored
+        Assert.assertTrue(sampler.finish() >= AdaptiveCompressionPolicy.DENSE_RATIO);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+    }
+
+    @Test
+    public void testTooFewBytesGiveNoVerdict() {
+        CompressorPool pool = new CompressorPool(2);
+        CompressibilitySampler sampler = new CompressibilitySampler(pool, 4096);
+        sampler.write(random(100), 0, 100);
+        Assert.assertEquals(0, sampler.finish(), 0);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(0, pool.getActiveChunks());
+    }
+
+    @Test
+    public void testNothingBorrowedUntilWritten() {
+        CompressorPool pool = new CompressorPool(2);
+        CompressibilitySampler sampler = new CompressibilitySampler(pool, 4096);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        sampler.write(new byte[0], 0, 0);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        sampler.write('a');
+        Assert.assertEquals(1, pool.getActiveDeflaters());
+        Assert.assertEquals(1, pool.getActiveChunks());
+        sampler.close();
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(0, pool.getActiveChunks());
+    }
+
+    @Test
+    public void testCloseWithoutFinishReturnsToPool() {
+        CompressorPool pool = new CompressorPool(2);
+        CompressibilitySampler sampler = new CompressibilitySampler(pool, 4096);
+        sampler.write(random(1000), 0, 1000);
+        sampler.close();
+        sampler.close();
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(0, pool.getActiveChunks());
+        Assert.assertEquals(1, pool.getIdleDeflaters());
+        sampler.write(random(1000), 0, 1000); //ignored once closed
+        Assert.assertEquals(0, sampler.finish(), 0);
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+    }
+}
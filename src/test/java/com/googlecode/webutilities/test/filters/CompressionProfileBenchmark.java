@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.CompressedOutput;
+import com.googlecode.webutilities.filters.compression.CompressionProfile;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+
+/**
+ * Compression ratio and throughput of gzip with the compression profiles commonly configured, on generated JSON and
+ * CSS. Not run as part of the tests, run its main method:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; com.googlecode.webutilities.test.filters.CompressionProfileBenchmark
+ * </pre>
+ */
+public final class CompressionProfileBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long MIN_NANOS = 2000000000L; //per profile
+
+    private static final String[] WORDS = {"id", "name", "price", "color", "margin", "padding", "background", "value",
+        "description", "items", "url", "width", "height", "border", "font", "display", "true", "false", "null"};
+
+    private CompressionProfileBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] json = json(2 * 1024 * 1024);
+        byte[] css = css(64 * 1024);
+        CompressionProfile[] profiles = {
+            new CompressionProfile(1, Deflater.DEFAULT_STRATEGY, CompressionProfile.DEFAULT_BUFFER_SIZE),
+            new CompressionProfile(6, Deflater.DEFAULT_STRATEGY, CompressionProfile.DEFAULT_BUFFER_SIZE),
+            new CompressionProfile(9, Deflater.DEFAULT_STRATEGY, CompressionProfile.DEFAULT_BUFFER_SIZE),
+            new CompressionProfile(6, Deflater.FILTERED, CompressionProfile.DEFAULT_BUFFER_SIZE),
+            new CompressionProfile(6, Deflater.HUFFMAN_ONLY, CompressionProfile.DEFAULT_BUFFER_SIZE),
+            new CompressionProfile(6, Deflater.DEFAULT_STRATEGY, 16 * 1024)
+        };
+        for (CompressionProfile profile : profiles) {
+            run("json 2MB", json, profile);
+        }
+        for (CompressionProfile profile : profiles) {
+            run("css 64KB", css, profile);
+        }
+    }
+
+    private static void run(String name, byte[] content, CompressionProfile profile) throws IOException {
+        EncodedStreamsFactory factory = EncodedStreamsFactory.getFactoryForContentEncoding(CONTENT_ENCODING_GZIP);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        for (int i = 0; i < 5; i++) { //warm up
+            out.reset();
+            compress(factory, content, profile, out);
+        }
+        long start = System.nanoTime();
+        long bytes = 0, nanos;
+        do {
+            out.reset();
+            compress(factory, content, profile, out);
+            bytes += content.length;
+            nanos = System.nanoTime() - start;
+        } while (nanos < MIN_NANOS);
+        System.out.println(String.format("%-10s %-45s %6.1f%% %6.0f MB/s", name, profile,
+            100.0 * out.size() / content.length, bytes / (nanos / 1e9) / (1024 * 1024)));
+    }
+
+    private static void compress(EncodedStreamsFactory factory, byte[] content, CompressionProfile profile, ByteArrayOutputStream out) throws IOException {
+        CompressedOutput compressed = factory.getCompressedStream(out, profile);
+        compressed.getCompressedOutputStream().write(content);
+        compressed.finish();
+        compressed.getCompressedOutputStream().close();
+    }
+
+    private static byte[] json(int size) {
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder("[");
+        while (json.length() < size) {
+            json.append("{\"").append(WORDS[random.nextInt(WORDS.length)]).append("\":").append(random.nextInt(100000))
+                .append(",\"").append(WORDS[random.nextInt(WORDS.length)]).append("\":\"")
+                .append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(Long.toHexString(random.nextLong()))
+                .append("\"},");
+        }
+        return json.append("{}]").toString().getBytes(UTF_8);
+    }
+
+    private static byte[] css(int size) {
+        Random random = new Random(42);
+        StringBuilder css = new StringBuilder();
+        while (css.length() < size) {
+            css.append('.').append(WORDS[random.nextInt(WORDS.length)]).append('-').append(random.nextInt(1000))
+                .append('{').append(WORDS[random.nextInt(WORDS.length)]).append(':').append(random.nextInt(100))
+                .append("px;").append(WORDS[random.nextInt(WORDS.length)]).append(":#")
+                .append(Integer.toHexString(random.nextInt(0xFFFFFF))).append("}\n");
+        }
+        return css.toString().getBytes(UTF_8);
+    }
+
+}
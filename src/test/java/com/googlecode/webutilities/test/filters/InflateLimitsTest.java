@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.CompressedServletInputStream;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Limits of {@link CompressedServletInputStream} on the size and ratio request bodies inflate to.
+ */
+public class InflateLimitsTest {
+
+    private static final EncodedStreamsFactory GZIP = EncodedStreamsFactory.SUPPORTED_ENCODINGS.get("gzip");
+
+    private static final EncodedStreamsFactory DEFLATE = EncodedStreamsFactory.SUPPORTED_ENCODINGS.get("deflate");
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(content);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] zlib(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out);
+        deflate.write(content);
+        deflate.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    //reads to the end, returns bytes read
+    private static long drain(CompressedServletInputStream in) throws IOException {
+        byte[] buffer = new byte[1000];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    @Test
+    public void testWithinLimits() throws Exception {
+        long active = CompressorPool.getInstance().getActiveInflaters();
+        byte[] content = random(100 * 1024);
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(gzip(content)), GZIP, content.length, 2);
+        Assert.assertEquals(content.length, drain(in));
+        Assert.assertEquals(content.length, in.getInflatedBytes());
+        Assert.assertTrue(in.getEncodedBytes() > 0);
+        Assert.assertTrue(in.getInflateNanos() >= 0);
+        in.close();
+        Assert.assertEquals(active, CompressorPool.getInstance().getActiveInflaters());
+    }
+
+    @Test
+    public void testMaxInflatedSize() throws Exception {
+        long active = CompressorPool.getInstance().getActiveInflaters();
+        byte[] content = random(10000);
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(zlib(content)), DEFLATE, 9999, 0);
+        try {
+            drain(in);
+            Assert.fail("inflated beyond the limit");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("9999"));
+        }
+        Assert.assertEquals(active, CompressorPool.getInstance().getActiveInflaters());
+    }
+
+    @Test
+    public void testMaxInflateRatioStopsBomb() throws Exception {
+        long active = CompressorPool.getInstance().getActiveInflaters();
+        byte[] bomb = gzip(new byte[16 * 1024 * 1024]); //zeros compress about 1000 times
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(bomb), GZIP, 0, 100);
+        try {
+            drain(in);
+            Assert.fail("inflated beyond the ratio");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("100 times"));
+        }
+        Assert.assertTrue(in.getInflatedBytes() < 1024 * 1024);
+        Assert.assertTrue(in.getInflateNanos() >= 0);
+        Assert.assertEquals(active, CompressorPool.getInstance().getActiveInflaters());
+    }
+
+    @Test
+    public void testRatioNotCheckedBelowThreshold() throws Exception {
+        byte[] zeros = new byte[(int) CompressedServletInputStream.RATIO_CHECK_THRESHOLD];
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(gzip(zeros)), GZIP, 0, 2);
+        Assert.assertEquals(zeros.length, drain(in));
+        in.close();
+    }
+
+    @Test
+    public void testNoLimits() throws Exception {
+        byte[] zeros = new byte[1024 * 1024];
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(gzip(zeros)), GZIP);
+        Assert.assertEquals(zeros.length, drain(in));
+        in.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotReadableOnceLimitExceeded() throws Exception {
+        CompressedServletInputStream in = new CompressedServletInputStream(new ByteArrayInputStream(gzip(random(1000))), GZIP, 10, 0);
+        try {
+            drain(in);
+        } catch (IOException ex) {
+            in.read(); //closed by the limit
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.google.common.cache.CacheStats;
+import com.googlecode.webutilities.filters.ClosureCompilerFilter;
+import com.googlecode.webutilities.filters.YUIMinFilter;
+import com.googlecode.webutilities.filters.common.BackgroundMinifier;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caching of minified content by YUIMinFilter and ClosureCompilerFilter
+ */
+public class MinifiedContentCacheTest {
+
+    private static final String JS = "function sum(first, second) {\n    return first + second;\n}\nsum(1, 2);\n";
+
+    private static final String CSS = "a {\n    color: red;\n}\n";
+
+    private final FileServletContext context = new FileServletContext(new File("."));
+
+    private FilterConfig config(final String name, final Map<String, String> initParams) {
+        return (FilterConfig) Proxy.newProxyInstance(MinifiedContentCacheTest.class.getClassLoader(),
+            new Class[]{FilterConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getFilterName".equals(method.getName())) return name;
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            });
+    }
+
+    private static HttpServletRequest request(final String url) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (HttpServletRequest) Proxy.newProxyInstance(MinifiedContentCacheTest.class.getClassLoader(),
+            new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getRequestURI".equals(method.getName())) return url;
+                    if ("getAttribute".equals(method.getName())) return attributes.get((String) args[0]);
+                    if ("setAttribute".equals(method.getName())) return attributes.put((String) args[0], args[1]);
+                    return null;
+                }
+            });
+    }
+
+    private static HttpServletResponse response(final StringWriter body) {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(MinifiedContentCacheTest.class.getClassLoader(),
+            new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getWriter".equals(method.getName())) return writer;
+                    if ("getCharacterEncoding".equals(method.getName())) return "UTF-8";
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) return false;
+                    if (type == int.class) return 0;
+                    return null;
+                }
+            });
+    }
+
+    private static String serve(Filter filter, String url, final String contents) throws Exception {
+        StringWriter body = new StringWriter();
+        filter.doFilter(request(url), response(body), new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                response.getWriter().write(contents);
+            }
+        });
+        return body.toString();
+    }
+
+    private YUIMinFilter yuiMinFilter(String name, Map<String, String> initParams) throws Exception {
+        YUIMinFilter filter = new YUIMinFilter();
+        filter.init(config(name, initParams));
+        return filter;
+    }
+
+    private ClosureCompilerFilter closureCompilerFilter(String name, Map<String, String> initParams) throws Exception {
+        ClosureCompilerFilter filter = new ClosureCompilerFilter();
+        filter.init(config(name, initParams));
+        return filter;
+    }
+
+    private BackgroundMinifier compiler(String name) {
+        return (BackgroundMinifier) context.getAttribute(ClosureCompilerFilter.MINIFIER_ATTRIBUTE_PREFIX + name);
+    }
+
+    private static Map<String, String> params(String... nameValues) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            params.put(nameValues[i], nameValues[i + 1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void testYUICacheIsOffByDefault() throws Exception {
+        YUIMinFilter filter = yuiMinFilter("yui", params());
+        try {
+            Assert.assertEquals(serve(filter, "/js/a.js", JS), serve(filter, "/js/a.js", JS));
+            Assert.assertNull(filter.getCacheStats());
+            Assert.assertNull(context.getAttribute(YUIMinFilter.CACHE_STATS_ATTRIBUTE_PREFIX + "yui"));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testYUICacheMissThenHit() throws Exception {
+        YUIMinFilter filter = yuiMinFilter("yui", params("useCache", "true"));
+        try {
+            String minified = serve(filter, "/js/a.js", JS);
+            Assert.assertTrue(minified, minified.startsWith("function sum(b,a){return b+a}"));
+            CacheStats stats = filter.getCacheStats();
+            Assert.assertEquals(1, stats.missCount());
+            Assert.assertEquals(0, stats.hitCount());
+
+            Assert.assertEquals(minified, serve(filter, "/js/b.js", JS)); //same content, any url
+            stats = filter.getCacheStats();
+            Assert.assertEquals(1, stats.missCount());
+            Assert.assertEquals(1, stats.hitCount());
+
+            Assert.assertFalse(minified.equals(serve(filter, "/js/a.js", JS + "sum(2, 1);\n")));
+            Assert.assertEquals(2, filter.getCacheStats().missCount());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testYUICacheIsKeyedOnOptions() throws Exception {
+        YUIMinFilter filter = yuiMinFilter("yui", params("useCache", "true"));
+        YUIMinFilter noMunge = yuiMinFilter("yui-nomunge", params("useCache", "true", "noMunge", "true"));
+        try {
+            String munged = serve(filter, "/js/a.js", JS);
+            String notMunged = serve(noMunge, "/js/a.js", JS);
+            Assert.assertTrue(notMunged, notMunged.startsWith("function sum(first,second){return first+second}"));
+            Assert.assertFalse(munged.equals(notMunged));
+            Assert.assertEquals(0, noMunge.getCacheStats().hitCount());
+
+            //same bytes as CSS are minified as CSS, not taken from the JS entry
+            Assert.assertEquals("a{color:red}", serve(filter, "/css/a.css", CSS));
+            Assert.assertFalse(munged.equals(serve(filter, "/css/a.css", JS)));
+            Assert.assertEquals(0, filter.getCacheStats().hitCount());
+        } finally {
+            filter.destroy();
+            noMunge.destroy();
+        }
+    }
+
+    @Test
+    public void testClosureCacheIsOffByDefault() throws Exception {
+        ClosureCompilerFilter filter = closureCompilerFilter("closure", params());
+        try {
+            Assert.assertEquals(serve(filter, "/js/a.js", JS), serve(filter, "/js/a.js", JS));
+            Assert.assertEquals(2, compiler("closure").getSubmitted());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testClosureCacheMissThenHit() throws Exception {
+        ClosureCompilerFilter filter = closureCompilerFilter("closure", params("useCache", "true"));
+        try {
+            String compiled = serve(filter, "/js/a.js", JS);
+            Assert.assertFalse(compiled, compiled.contains("\n    "));
+            Assert.assertEquals(1, compiler("closure").getSubmitted());
+
+            Assert.assertEquals(compiled, serve(filter, "/js/b.js", JS)); //same content, any url
+            Assert.assertEquals(1, compiler("closure").getSubmitted());
+
+            serve(filter, "/js/a.js", JS + "sum(2, 1);\n");
+            Assert.assertEquals(2, compiler("closure").getSubmitted());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testClosureCacheIsKeyedOnOptions() throws Exception {
+        ClosureCompilerFilter simple = closureCompilerFilter("closure", params("useCache", "true"));
+        ClosureCompilerFilter whitespace = closureCompilerFilter("closure-whitespace",
+            params("useCache", "true", "compilationLevel", "WHITESPACE_ONLY"));
+        try {
+            String simpleCompiled = serve(simple, "/js/a.js", JS);
+            String whitespaceCompiled = serve(whitespace, "/js/a.js", JS);
+            Assert.assertTrue(whitespaceCompiled, whitespaceCompiled.contains("first+second"));
+            Assert.assertFalse(simpleCompiled.equals(whitespaceCompiled));
+            Assert.assertEquals(1, compiler("closure-whitespace").getSubmitted());
+        } finally {
+            simple.destroy();
+            whitespace.destroy();
+        }
+    }
+
+}
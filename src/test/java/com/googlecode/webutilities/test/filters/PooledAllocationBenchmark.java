@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.CompressedHttpServletResponseWrapper;
+import com.googlecode.webutilities.filters.compression.CompressedOutput;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import static com.googlecode.webutilities.common.Constants.CONTENT_ENCODING_GZIP;
+
+/**
+ * Bytes allocated on the heap per response, pooled against unpooled, measured with the allocated bytes of the
+ * current thread. Compares buffering responses in pooled chunks (CompressedHttpServletResponseWrapper) against a
+ * buffer eagerly allocated as large as the threshold, and gzip through pooled deflaters against
+ * <code>GZIPOutputStream</code>. Not run as part of the tests, run its main method on a HotSpot JVM:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; com.googlecode.webutilities.test.filters.PooledAllocationBenchmark
+ * </pre>
+ */
+public final class PooledAllocationBenchmark {
+
+    private static final int THRESHOLD = 128 * 1024;
+
+    private static final int WARM_UP = 500;
+
+    private static final int RESPONSES = 2000;
+
+    private static final int[] SIZES = {200, 8 * 1024, 64 * 1024, 300 * 1024};
+
+    private static final byte[] LINE = "var someVariable = function(a, b) { return a + b; };\n".getBytes(Charset.forName("UTF-8"));
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private PooledAllocationBenchmark() {
+    }
+
+    private interface Response {
+        void write(int size) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("Allocated bytes of threads are not supported by this JVM");
+            System.exit(1);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        final HttpServletResponse response = response();
+        final EncodedStreamsFactory gzip = EncodedStreamsFactory.getFactoryForContentEncoding(CONTENT_ENCODING_GZIP);
+        final OutputStream sink = response.getOutputStream();
+
+        System.out.println("Buffering below the threshold, then gzip (" + THRESHOLD / 1024 + "KB threshold)");
+        System.out.println(String.format("%10s %15s %15s", "body", "unpooled", "pooled"));
+        for (int size : SIZES) {
+            long unpooled = measure(size, new Response() {
+                public void write(int size) throws IOException { //buffer as large as the threshold, up front
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream(THRESHOLD);
+                    OutputStream out = buffer;
+                    GZIPOutputStream gzipped = null;
+                    for (int left = size; left > 0; left -= LINE.length) {
+                        out.write(LINE, 0, Math.min(left, LINE.length));
+                        if (gzipped == null && buffer.size() > THRESHOLD) {
+                            gzipped = new GZIPOutputStream(sink);
+                            buffer.writeTo(gzipped);
+                            out = gzipped;
+                        }
+                    }
+                    if (gzipped != null) {
+                        gzipped.finish();
+                    } else {
+                        buffer.writeTo(sink);
+                    }
+                }
+            });
+            long pooled = measure(size, new Response() {
+                public void write(int size) throws IOException {
+                    CompressedHttpServletResponseWrapper wrapper = new CompressedHttpServletResponseWrapper(response, gzip,
+                        CONTENT_ENCODING_GZIP, THRESHOLD, null);
+                    OutputStream out = wrapper.getOutputStream();
+                    for (int left = size; left > 0; left -= LINE.length) {
+                        out.write(LINE, 0, Math.min(left, LINE.length));
+                    }
+                    out.close();
+                }
+            });
+            System.out.println(String.format("%9dB %14dB %14dB", size, unpooled, pooled));
+        }
+
+        System.out.println("Gzip stream per response");
+        System.out.println(String.format("%10s %15s %15s", "body", "unpooled", "pooled"));
+        for (int size : SIZES) {
+            long unpooled = measure(size, new Response() {
+                public void write(int size) throws IOException {
+                    GZIPOutputStream out = new GZIPOutputStream(sink);
+                    for (int left = size; left > 0; left -= LINE.length) {
+                        out.write(LINE, 0, Math.min(left, LINE.length));
+                    }
+                    out.finish();
+                    out.close(); //ends the deflater, as a well behaved caller would
+                }
+            });
+            long pooled = measure(size, new Response() {
+                public void write(int size) throws IOException {
+                    CompressedOutput compressed = gzip.getCompressedStream(sink);
+                    OutputStream out = compressed.getCompressedOutputStream();
+                    for (int left = size; left > 0; left -= LINE.length) {
+                        out.write(LINE, 0, Math.min(left, LINE.length));
+                    }
+                    compressed.finish();
+                }
+            });
+            System.out.println(String.format("%9dB %14dB %14dB", size, unpooled, pooled));
+        }
+        System.out.println("Pool " + CompressorPool.getInstance());
+    }
+
+    /**
+     * @return average bytes allocated per response, after warm up
+     */
+    private static long measure(int size, Response response) throws IOException {
+        for (int i = 0; i < WARM_UP; i++) {
+            response.write(size);
+        }
+        long thread = Thread.currentThread().getId();
+        long start = THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < RESPONSES; i++) {
+            response.write(size);
+        }
+        return (THREADS.getThreadAllocatedBytes(thread) - start) / RESPONSES;
+    }
+
+    /**
+     * @return response discarding what is written
+     */
+    private static HttpServletResponse response() {
+        final ServletOutputStream sink = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(PooledAllocationBenchmark.class.getClassLoader(),
+            new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getOutputStream".equals(method.getName())) return sink;
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) return false;
+                    if (type == int.class) return 0;
+                    return null;
+                }
+            });
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.filters.compression.CompressedOutput;
+import com.googlecode.webutilities.filters.compression.CompressionProfile;
+import com.googlecode.webutilities.filters.compression.CompressorPool;
+import com.googlecode.webutilities.filters.compression.EncodedStreamsFactory;
+import com.googlecode.webutilities.filters.compression.PooledDeflaterOutputStream;
+import com.googlecode.webutilities.filters.compression.PooledInflaterInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Round trips of {@link PooledDeflaterOutputStream} and {@link PooledInflaterInputStream} against the JDK's own gzip,
+ * zlib and zip streams.
+ */
+public class PooledStreamsTest {
+
+    private static final int[] SIZES = {0, 1, 100, 4095, 4096, 4097, 100 * 1024};
+
+    private static byte[] content(int size) {
+        Random random = new Random(size);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) { //compressible, but not trivially
+            content[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return content;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] pooledDeflate(byte[] content, CompressorPool pool, boolean gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PooledDeflaterOutputStream deflater = new PooledDeflaterOutputStream(out, pool, CompressionProfile.DEFAULT, gzip);
+        deflater.write(content, 0, content.length);
+        deflater.finish();
+        deflater.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] jdkGzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(content);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] jdkDeflate(byte[] content, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+        deflate.write(content);
+        deflate.close();
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Gives the bytes up to the split point in the first reads, and the rest only after, so that the inflater's buffer
+     * ends exactly at the split point
+     */
+    private static InputStream split(final byte[] bytes, final int splitAt) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, pos < splitAt ? Math.min(len, splitAt - pos) : len);
+            }
+        };
+    }
+
+    @Test
+    public void testPooledGzipReadByJDK() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : SIZES) {
+            byte[] content = content(size);
+            byte[] gzipped = pooledDeflate(content, pool, true);
+            Assert.assertArrayEquals("size " + size, content, readFully(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+        }
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+    }
+
+    @Test
+    public void testJDKGzipReadByPooled() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : SIZES) {
+            byte[] content = content(size);
+            byte[] gzipped = jdkGzip(content);
+            Assert.assertArrayEquals("size " + size, content, readFully(PooledInflaterInputStream.gzip(new ByteArrayInputStream(gzipped), pool)));
+        }
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+    @Test
+    public void testGzipHeaderWithOptionalFields() throws Exception {
+        byte[] content = content(1000);
+        byte[] deflated = jdkDeflate(content, true);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        gzip.write(new byte[]{0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 3}); //FHCRC, FEXTRA, FNAME, FCOMMENT
+        gzip.write(new byte[]{3, 0, 'x', 'y', 'z'}); //extra
+        gzip.write("name.txt\0".getBytes("US-ASCII"));
+        gzip.write("comment\0".getBytes("US-ASCII"));
+        gzip.write(new byte[]{0, 0}); //header crc, not checked
+        gzip.write(deflated);
+        writeInt(gzip, (int) crc.getValue());
+        writeInt(gzip, content.length);
+        Assert.assertArrayEquals(content, readFully(PooledInflaterInputStream.gzip(new ByteArrayInputStream(gzip.toByteArray()), new CompressorPool(2))));
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int i) {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    @Test
+    public void testGzipTrailerSplitAcrossBuffer() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : new int[]{100, 100 * 1024}) {
+            byte[] content = content(size);
+            byte[] gzipped = jdkGzip(content);
+            for (int inTrailer = 0; inTrailer <= 8; inTrailer++) { //trailer bytes left in the inflater's buffer
+                InputStream in = split(gzipped, gzipped.length - 8 + inTrailer);
+                Assert.assertArrayEquals("size " + size + ", trailer bytes buffered " + inTrailer, content,
+                    readFully(PooledInflaterInputStream.gzip(in, pool)));
+            }
+        }
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+    @Test
+    public void testCorruptGzipTrailer() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        byte[] gzipped = jdkGzip(content(1000));
+        byte[] badCrc = gzipped.clone();
+        badCrc[badCrc.length - 8] ^= 1;
+        byte[] badSize = gzipped.clone();
+        badSize[badSize.length - 1] ^= 1;
+        for (byte[] corrupt : Arrays.asList(badCrc, badSize)) {
+            try {
+                readFully(PooledInflaterInputStream.gzip(new ByteArrayInputStream(corrupt), pool));
+                Assert.fail("Corrupt trailer not detected");
+            } catch (ZipException ex) {
+                //expected
+            }
+        }
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+    @Test
+    public void testTruncatedGzip() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        byte[] gzipped = jdkGzip(content(1000));
+        try {
+            readFully(PooledInflaterInputStream.gzip(new ByteArrayInputStream(Arrays.copyOf(gzipped, gzipped.length - 3)), pool));
+            Assert.fail("Truncated trailer not detected");
+        } catch (IOException ex) {
+            //expected
+        }
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+    @Test
+    public void testPooledDeflateReadByJDK() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : SIZES) {
+            byte[] content = content(size);
+            byte[] deflated = pooledDeflate(content, pool, false); //zlib, as deflate encoding wants
+            Assert.assertArrayEquals("size " + size, content, readFully(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+        }
+    }
+
+    @Test
+    public void testPooledZipReadByJDK() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : SIZES) {
+            byte[] content = content(size);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PooledDeflaterOutputStream deflater = new PooledDeflaterOutputStream(out, pool, CompressionProfile.DEFAULT, PooledDeflaterOutputStream.Format.ZIP);
+            deflater.write(content, 0, content.length);
+            deflater.finish();
+            byte[] zipped = out.toByteArray();
+
+            ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipped));
+            ZipEntry entry = zip.getNextEntry();
+            Assert.assertEquals("compressed-response.out", entry.getName());
+            Assert.assertArrayEquals("size " + size, content, readFully(zip));
+
+            File file = File.createTempFile("pooled", ".zip"); //read through the central directory
+            try {
+                FileOutputStream fileOutputStream = new FileOutputStream(file);
+                fileOutputStream.write(zipped);
+                fileOutputStream.close();
+                ZipFile zipFile = new ZipFile(file);
+                try {
+                    Assert.assertEquals(1, zipFile.size());
+                    entry = zipFile.getEntry("compressed-response.out");
+                    Assert.assertEquals(size, entry.getSize());
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    Assert.assertEquals(crc.getValue(), entry.getCrc());
+                    Assert.assertArrayEquals("size " + size, content, readFully(zipFile.getInputStream(entry)));
+                } finally {
+                    zipFile.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(1, pool.getCreatedDeflaters());
+    }
+
+    @Test
+    public void testCompressEncodingRoundTrip() throws Exception {
+        EncodedStreamsFactory factory = EncodedStreamsFactory.getFactoryForContentEncoding("compress");
+        byte[] content = content(10000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedOutput compressedOutput = factory.getCompressedStream(out);
+        compressedOutput.getCompressedOutputStream().write(content);
+        compressedOutput.finish();
+        InputStream in = factory.getCompressedStream(new ByteArrayInputStream(out.toByteArray())).getCompressedInputStream();
+        Assert.assertArrayEquals(content, readFully(in));
+    }
+
+    @Test
+    public void testZlibAndRawDeflateDetected() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        for (int size : SIZES) {
+            byte[] content = content(size);
+            Assert.assertArrayEquals("zlib, size " + size, content,
+                readFully(PooledInflaterInputStream.deflate(new ByteArrayInputStream(jdkDeflate(content, false)), pool)));
+            Assert.assertArrayEquals("raw, size " + size, content,
+                readFully(PooledInflaterInputStream.deflate(new ByteArrayInputStream(jdkDeflate(content, true)), pool)));
+        }
+        try {
+            readFully(PooledInflaterInputStream.deflate(new ByteArrayInputStream(new byte[0]), pool));
+            Assert.fail("Empty stream is not deflate format, as for InflaterInputStream");
+        } catch (EOFException ex) {
+            //expected
+        }
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+    @Test
+    public void testDeflatersAndInflatersReused() throws Exception {
+        CompressorPool pool = new CompressorPool(2);
+        byte[] content = content(10000);
+        for (int i = 0; i < 100; i++) {
+            byte[] gzipped = pooledDeflate(content, pool, true);
+            Assert.assertArrayEquals(content, readFully(PooledInflaterInputStream.gzip(new ByteArrayInputStream(gzipped), pool)));
+        }
+        Assert.assertEquals(1, pool.getCreatedDeflaters()); //one per response without the pool
+        Assert.assertEquals(1, pool.getCreatedInflaters());
+        Assert.assertEquals(0, pool.getActiveDeflaters());
+        Assert.assertEquals(0, pool.getActiveInflaters());
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.google.common.io.Files;
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CSS served by JSCSSMergeServlet with cache on is parsed once per version of it, its rewrite plan is replayed with
+ * the current fingerprints of the images after that
+ */
+public class CachedRewritePlanTest {
+
+    private static final String URL = "/app/css/a.css?_skipcache_=1"; //merged every time, from the plan if cached
+
+    private static final Pattern FINGERPRINT = Pattern.compile("/app/img/x_wu_([0-9a-f]+)\\.png");
+
+    private File webappDir;
+
+    private FileServletContext context;
+
+    private JSCSSMergeServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        write("css/a.css", "a{background:url(../img/x.png)}\n");
+        write("img/x.png", "png");
+        context = new FileServletContext(webappDir) {
+            @Override
+            public String getRealPath(String path) {
+                return null; //as with unexploded WAR, so that metadata is read again only when invalidated (or polled)
+            }
+        };
+        context.setInitParameter(ResourceMetadataRegistry.CONTEXT_PARAM_POLL_INTERVAL, String.valueOf(3600 * 1000));
+    }
+
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        ResourceMetadataRegistry.remove(context);
+        new File(webappDir, "css/a.css").delete();
+        new File(webappDir, "img/x.png").delete();
+        new File(webappDir, "css").delete();
+        new File(webappDir, "img").delete();
+        webappDir.delete();
+    }
+
+    private void write(String path, String contents) throws Exception {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charset.forName("UTF-8"));
+    }
+
+    private void init(String useCache) throws Exception {
+        final Map<String, String> initParams = new HashMap<String, String>();
+        if (useCache != null) {
+            initParams.put(JSCSSMergeServlet.INIT_PARAM_USE_CACHE, useCache);
+        }
+        servlet = new JSCSSMergeServlet();
+        servlet.init((ServletConfig) Proxy.newProxyInstance(CachedRewritePlanTest.class.getClassLoader(),
+            new Class[]{ServletConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getServletName".equals(method.getName())) return "merge";
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            }));
+    }
+
+    private String get() throws Exception {
+        return new ServletExchange("/app", URL).send(servlet).getBodyAsString();
+    }
+
+    private static String fingerprintIn(String css) {
+        Matcher matcher = FINGERPRINT.matcher(css);
+        Assert.assertTrue(css, matcher.find());
+        return matcher.group(1);
+    }
+
+    private void invalidate(String path) {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        registry.invalidate(registry.keyOf(path));
+    }
+
+    @Test
+    public void testPlanIsReplayedUntilCSSChanges() throws Exception {
+        init("true");
+        String first = get();
+        Assert.assertTrue(first, first.startsWith("a{background:url(/app/img/x_wu_"));
+        write("css/a.css", "b{background:url(../img/x.png)}\n"); //not invalidated yet
+        Assert.assertEquals(first, get());
+        invalidate("/css/a.css");
+        String changed = get();
+        Assert.assertTrue(changed, changed.startsWith("b{background:url(/app/img/x_wu_"));
+        Assert.assertEquals(fingerprintIn(first), fingerprintIn(changed));
+    }
+
+    @Test
+    public void testReplaySplicesCurrentFingerprints() throws Exception {
+        init("true");
+        String first = get();
+        write("css/a.css", "b{background:url(../img/x.png)}\n"); //not invalidated, so the plan is still replayed
+        write("img/x.png", "changed png");
+        invalidate("/img/x.png");
+        String second = get();
+        Assert.assertTrue(second, second.startsWith("a{background:url(/app/img/x_wu_"));
+        Assert.assertFalse(fingerprintIn(first).equals(fingerprintIn(second)));
+    }
+
+    @Test
+    public void testCSSIsParsedEveryTimeWithoutCache() throws Exception {
+        init(null);
+        String first = get();
+        write("css/a.css", "b{background:url(../img/x.png)}\n");
+        String second = get();
+        Assert.assertTrue(first, first.startsWith("a{"));
+        Assert.assertTrue(second, second.startsWith("b{"));
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.google.common.io.Files;
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resources of a bundle read concurrently by JSCSSMergeServlet are still merged in the order of the url
+ */
+public class ParallelMergeTest {
+
+    private static final int RESOURCES = 24;
+
+    private File webappDir;
+
+    private FileServletContext context;
+
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < RESOURCES; i++) {
+            StringBuilder contents = new StringBuilder("//resource ").append(i).append('\n');
+            for (int line = 0; line < (RESOURCES - i) * 200; line++) { //first ones are the largest, read the longest
+                contents.append("var r").append(i).append('_').append(line).append(" = ").append(line).append(";\n");
+            }
+            File file = new File(webappDir, "js/r" + i + ".js");
+            Files.createParentDirs(file);
+            Files.write(contents, file, Charset.forName("UTF-8"));
+            names.append(i == 0 ? "" : ",").append("r").append(i);
+        }
+        url = "/js/" + names + ".js";
+        context = new FileServletContext(webappDir);
+    }
+
+    @After
+    public void tearDown() {
+        ResourceMetadataRegistry.remove(context);
+        for (int i = 0; i < RESOURCES; i++) {
+            new File(webappDir, "js/r" + i + ".js").delete();
+        }
+        new File(webappDir, "js").delete();
+        webappDir.delete();
+    }
+
+    private JSCSSMergeServlet servlet(Map<String, String> initParams) throws Exception {
+        JSCSSMergeServlet servlet = new JSCSSMergeServlet();
+        servlet.init(config(initParams));
+        return servlet;
+    }
+
+    private ServletConfig config(final Map<String, String> initParams) {
+        return (ServletConfig) Proxy.newProxyInstance(ParallelMergeTest.class.getClassLoader(),
+            new Class[]{ServletConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getServletName".equals(method.getName())) return "merge";
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            });
+    }
+
+    private static HttpServletRequest request(final String url) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ParallelMergeTest.class.getClassLoader(),
+            new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getMethod".equals(method.getName())) return "GET";
+                    if ("getRequestURI".equals(method.getName())) return url;
+                    if ("getContextPath".equals(method.getName())) return "";
+                    if ("getServletPath".equals(method.getName())) return url;
+                    if ("getProtocol".equals(method.getName())) return "HTTP/1.1";
+                    Class<?> type = method.getReturnType();
+                    if (type == long.class) return -1L;
+                    if (type == int.class) return -1;
+                    if (type == boolean.class) return false;
+                    return null;
+                }
+            });
+    }
+
+    private static HttpServletResponse response(final ByteArrayOutputStream body) {
+        final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(ParallelMergeTest.class.getClassLoader(),
+            new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                    if ("getOutputStream".equals(method.getName())) return outputStream;
+                    if ("sendError".equals(method.getName())) throw new IOException("error " + args[0]);
+                    if ("getCharacterEncoding".equals(method.getName())) return "UTF-8";
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) return false;
+                    if (type == int.class) return 0;
+                    return null;
+                }
+            });
+    }
+
+    private static String get(JSCSSMergeServlet servlet, String url) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        servlet.service(request(url), response(body));
+        return new String(body.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void testParallelReadsKeepMergeOrder() throws Exception {
+        JSCSSMergeServlet sequential = servlet(new HashMap<String, String>());
+        String expected;
+        try {
+            expected = get(sequential, url);
+        } finally {
+            sequential.destroy();
+        }
+        int from = -1;
+        for (int i = 0; i < RESOURCES; i++) { //sequential one is in order
+            int at = expected.indexOf("//resource " + i + "\n");
+            Assert.assertTrue("resource " + i + " out of order", at > from);
+            from = at;
+        }
+
+        Map<String, String> initParams = new HashMap<String, String>();
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_PARALLELISM, "4");
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_PARALLEL_QUEUE_SIZE, "2"); //most are read by the request thread
+        JSCSSMergeServlet parallel = servlet(initParams);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(expected, get(parallel, url));
+            }
+        } finally {
+            parallel.destroy();
+        }
+    }
+
+}
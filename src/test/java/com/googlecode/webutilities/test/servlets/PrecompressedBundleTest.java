@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cached bundles of JSCSSMergeServlet are served from their gzip/deflate copies made once when precompress is on
+ */
+public class PrecompressedBundleTest {
+
+    private static final String URL = "/app/js/a,b.js";
+
+    private File webappDir;
+
+    private FileServletContext context;
+
+    private JSCSSMergeServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        write("js/a.js", "function a(first, second) {\n    return first + second;\n}\n");
+        write("js/b.js", "function b(first, second) {\n    return first - second;\n}\n");
+        context = new FileServletContext(webappDir);
+    }
+
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        ResourceMetadataRegistry.remove(context);
+        new File(webappDir, "js/a.js").delete();
+        new File(webappDir, "js/b.js").delete();
+        new File(webappDir, "js").delete();
+        webappDir.delete();
+    }
+
+    private void write(String path, String contents) throws Exception {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charset.forName("UTF-8"));
+    }
+
+    private void init(String precompress) throws Exception {
+        final Map<String, String> initParams = new HashMap<String, String>();
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_USE_CACHE, "true");
+        if (precompress != null) {
+            initParams.put(JSCSSMergeServlet.INIT_PARAM_PRECOMPRESS, precompress);
+        }
+        servlet = new JSCSSMergeServlet();
+        servlet.init((ServletConfig) Proxy.newProxyInstance(PrecompressedBundleTest.class.getClassLoader(),
+            new Class[]{ServletConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getServletName".equals(method.getName())) return "merge";
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            }));
+    }
+
+    private ServletExchange get(String acceptEncoding) throws Exception {
+        ServletExchange exchange = new ServletExchange("/app", URL);
+        if (acceptEncoding != null) {
+            exchange.header("Accept-Encoding", acceptEncoding);
+        }
+        return exchange.send(servlet);
+    }
+
+    @Test
+    public void testFirstRequestIsServedAsIs() throws Exception {
+        init("true");
+        ServletExchange first = get("gzip");
+        Assert.assertNull(first.getHeader("Content-Encoding"));
+        Assert.assertTrue(first.getBodyAsString().contains("return first - second;"));
+    }
+
+    @Test
+    public void testCachedBundleIsServedGzipped() throws Exception {
+        init("true");
+        String merged = get(null).getBodyAsString();
+        ServletExchange gzipped = get("gzip");
+        String eTag = get(null).getHeader("ETag");
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", gzipped.getHeader("Vary"));
+        Assert.assertEquals(eTag + "-gzip", gzipped.getHeader("ETag"));
+        Assert.assertEquals(gzipped.getBody().length, gzipped.getContentLength());
+        byte[] decoded = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzipped.getBody())));
+        Assert.assertEquals(merged, new String(decoded, "UTF-8"));
+    }
+
+    @Test
+    public void testCachedBundleIsServedDeflated() throws Exception {
+        init("true");
+        String merged = get(null).getBodyAsString();
+        ServletExchange deflated = get("deflate");
+        Assert.assertEquals("deflate", deflated.getHeader("Content-Encoding"));
+        Assert.assertTrue(deflated.getHeader("ETag").endsWith("-deflate"));
+        byte[] decoded = ByteStreams.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflated.getBody())));
+        Assert.assertEquals(merged, new String(decoded, "UTF-8"));
+    }
+
+    @Test
+    public void testMostAcceptableEncodingIsChosen() throws Exception {
+        init("true");
+        get(null);
+        Assert.assertEquals("deflate", get("gzip;q=0.5, deflate").getHeader("Content-Encoding"));
+        Assert.assertEquals("gzip", get("gzip, deflate;q=0.2").getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testCachedBundleIsServedAsIsWhenEncodingIsNotAccepted() throws Exception {
+        init("true");
+        String merged = get(null).getBodyAsString();
+        ServletExchange identity = get("identity, gzip;q=0");
+        Assert.assertNull(identity.getHeader("Content-Encoding"));
+        Assert.assertEquals(merged, identity.getBodyAsString());
+        Assert.assertEquals(merged.length(), identity.getContentLength());
+    }
+
+    @Test
+    public void testEncodedETagIsNotModified() throws Exception {
+        init("true");
+        get(null);
+        String encodedETag = get("gzip").getHeader("ETag");
+        ServletExchange revalidated = new ServletExchange("/app", URL)
+            .header("Accept-Encoding", "gzip").header("If-None-Match", encodedETag).send(servlet);
+        Assert.assertEquals(304, revalidated.getStatus());
+        Assert.assertEquals(0, revalidated.getBody().length);
+    }
+
+    @Test
+    public void testNotPrecompressedByDefault() throws Exception {
+        init(null);
+        String merged = get(null).getBodyAsString();
+        ServletExchange cached = get("gzip");
+        Assert.assertNull(cached.getHeader("Content-Encoding"));
+        Assert.assertEquals(merged, cached.getBodyAsString());
+    }
+
+}
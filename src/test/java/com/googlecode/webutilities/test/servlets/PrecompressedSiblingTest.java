@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.google.common.io.Files;
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * .br and .gz files next to a single resource requested from JSCSSMergeServlet are served as they are when
+ * servePrecompressed is on
+ */
+public class PrecompressedSiblingTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String JS = "function a(first, second) {\n    return first + second;\n}\n";
+
+    private static final String CSS = "a{background:url(../img/x.png)}\n";
+
+    private static final long MODIFIED = 1300000000000L;
+
+    private File webappDir;
+
+    private FileServletContext context;
+
+    private JSCSSMergeServlet servlet;
+
+    private final Map<String, String> initParams = new HashMap<String, String>();
+
+    private byte[] gzippedJS;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        gzippedJS = gzip(JS);
+        write("js/a.js", JS.getBytes(UTF_8), MODIFIED);
+        write("js/a.js.gz", gzippedJS, MODIFIED); //as old as the resource is still fine
+        write("js/a.js.br", new byte[]{11, 22, 33, 44}, MODIFIED + 1000);
+        write("js/b.js", JS.replace('a', 'b').getBytes(UTF_8), MODIFIED);
+        write("css/a.css", CSS.getBytes(UTF_8), MODIFIED);
+        write("css/a.css.gz", gzip(CSS), MODIFIED);
+        write("img/x.png", "png".getBytes(UTF_8), MODIFIED);
+        context = new FileServletContext(webappDir);
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_SERVE_PRECOMPRESSED, "true");
+    }
+
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        ResourceMetadataRegistry.remove(context);
+        delete(webappDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] gzip(String contents) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(contents.getBytes(UTF_8));
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private void write(String path, byte[] contents, long lastModified) throws Exception {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file);
+        Assert.assertTrue(file.setLastModified(lastModified));
+    }
+
+    private void init() throws Exception {
+        servlet = new JSCSSMergeServlet();
+        servlet.init((ServletConfig) Proxy.newProxyInstance(PrecompressedSiblingTest.class.getClassLoader(),
+            new Class[]{ServletConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getServletName".equals(method.getName())) return "merge";
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            }));
+    }
+
+    private ServletExchange get(String url, String acceptEncoding) throws Exception {
+        ServletExchange exchange = new ServletExchange("/app", url);
+        if (acceptEncoding != null) {
+            exchange.header("Accept-Encoding", acceptEncoding);
+        }
+        return exchange.send(servlet);
+    }
+
+    @Test
+    public void testGzipSiblingIsServed() throws Exception {
+        init();
+        String eTag = get("/app/js/a.js", null).getHeader("ETag");
+        Assert.assertNotNull(eTag);
+        ServletExchange gzipped = get("/app/js/a.js", "gzip");
+        Assert.assertEquals(200, gzipped.getStatus());
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", gzipped.getHeader("Vary"));
+        Assert.assertEquals(eTag + "-gzip", gzipped.getHeader("ETag"));
+        Assert.assertEquals(gzippedJS.length, gzipped.getContentLength());
+        Assert.assertTrue(Arrays.equals(gzippedJS, gzipped.getBody()));
+        Assert.assertEquals("text/javascript", gzipped.getHeader("Content-Type"));
+    }
+
+    @Test
+    public void testMostAcceptableSiblingIsServed() throws Exception {
+        init();
+        String eTag = get("/app/js/a.js", null).getHeader("ETag");
+        ServletExchange br = get("/app/js/a.js", "gzip;q=0.8, deflate, br");
+        Assert.assertEquals("br", br.getHeader("Content-Encoding"));
+        Assert.assertEquals(eTag + "-br", br.getHeader("ETag"));
+        Assert.assertEquals(4, br.getContentLength());
+        Assert.assertTrue(Arrays.equals(new byte[]{11, 22, 33, 44}, br.getBody()));
+        Assert.assertEquals("gzip", get("/app/js/a.js", "br;q=0.5, gzip").getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testResourceIsServedWhenNoSiblingIsAccepted() throws Exception {
+        init();
+        ServletExchange identity = get("/app/js/a.js", "deflate");
+        Assert.assertNull(identity.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", identity.getHeader("Vary")); //response still depends on it
+        Assert.assertEquals(JS, identity.getBodyAsString());
+    }
+
+    @Test
+    public void testOlderSiblingIsIgnored() throws Exception {
+        new File(webappDir, "js/a.js").setLastModified(MODIFIED + 2000); //changed after both were made
+        init();
+        ServletExchange stale = get("/app/js/a.js", "gzip, br");
+        Assert.assertNull(stale.getHeader("Content-Encoding"));
+        Assert.assertNull(stale.getHeader("Vary"));
+        Assert.assertEquals(JS, stale.getBodyAsString());
+    }
+
+    @Test
+    public void testEncodedETagIsNotModified() throws Exception {
+        init();
+        String eTag = get("/app/js/a.js", "gzip").getHeader("ETag");
+        ServletExchange revalidated = new ServletExchange("/app", "/app/js/a.js")
+            .header("Accept-Encoding", "gzip").header("If-None-Match", eTag).send(servlet);
+        Assert.assertEquals(304, revalidated.getStatus());
+        Assert.assertEquals(0, revalidated.getBody().length);
+    }
+
+    @Test
+    public void testNoETagWhenTurnedOff() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_TURN_OFF_E_TAG, "true");
+        init();
+        ServletExchange gzipped = get("/app/js/a.js", "gzip");
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertNull(gzipped.getHeader("ETag"));
+    }
+
+    @Test
+    public void testBundleIsNotServedFromSiblings() throws Exception {
+        init();
+        ServletExchange merged = get("/app/js/a,b.js", "gzip, br");
+        Assert.assertNull(merged.getHeader("Content-Encoding"));
+        Assert.assertTrue(merged.getBodyAsString().contains("function b("));
+    }
+
+    @Test
+    public void testCSSSiblingOnlyWithoutUrlCorrection() throws Exception {
+        init();
+        ServletExchange corrected = get("/app/css/a.css", "gzip");
+        Assert.assertNull(corrected.getHeader("Content-Encoding"));
+        Assert.assertTrue(corrected.getBodyAsString().startsWith("a{background:url(/app/img/x_wu_"));
+        servlet.destroy();
+
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_AUTO_CORRECT_URLS_IN_CSS, "false");
+        init();
+        ServletExchange asIs = get("/app/css/a.css", "gzip");
+        Assert.assertEquals("gzip", asIs.getHeader("Content-Encoding"));
+        Assert.assertEquals("text/css", asIs.getHeader("Content-Type"));
+    }
+
+    @Test
+    public void testNotServedByDefault() throws Exception {
+        initParams.remove(JSCSSMergeServlet.INIT_PARAM_SERVE_PRECOMPRESSED);
+        init();
+        ServletExchange plain = get("/app/js/a.js", "gzip, br");
+        Assert.assertNull(plain.getHeader("Content-Encoding"));
+        Assert.assertEquals(JS, plain.getBodyAsString());
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * GET request sent to a servlet along with the response it got, for the tests not needing a full mock container
+ */
+public class ServletExchange {
+
+    private final String contextPath;
+
+    private final String uri;
+
+    private final Map<String, String> parameters = new HashMap<String, String>();
+
+    private final Map<String, String> requestHeaders = new HashMap<String, String>();
+
+    private final Map<String, String> responseHeaders = new HashMap<String, String>(); //keyed by lower case name
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private int status = HttpServletResponse.SC_OK;
+
+    private int contentLength = -1;
+
+    public ServletExchange(String contextPath, String uri) {
+        this.contextPath = contextPath;
+        int query = uri.indexOf('?');
+        this.uri = query < 0 ? uri : uri.substring(0, query);
+        if (query >= 0) {
+            for (String parameter : uri.substring(query + 1).split("&")) {
+                String[] nameValue = parameter.split("=", 2);
+                parameters.put(nameValue[0], nameValue.length == 2 ? nameValue[1] : "");
+            }
+        }
+    }
+
+    public ServletExchange header(String name, String value) {
+        requestHeaders.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    public ServletExchange send(HttpServlet servlet) throws Exception {
+        servlet.service(request(), response());
+        return this;
+    }
+
+    public String getHeader(String name) {
+        return responseHeaders.get(name.toLowerCase());
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public byte[] getBody() {
+        return body.toByteArray();
+    }
+
+    public String getBodyAsString() throws Exception {
+        return new String(body.toByteArray(), "UTF-8");
+    }
+
+    private HttpServletRequest request() {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletExchange.class.getClassLoader(),
+            new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getMethod".equals(name)) return "GET";
+                    if ("getRequestURI".equals(name)) return uri;
+                    if ("getContextPath".equals(name)) return contextPath;
+                    if ("getServletPath".equals(name)) return uri.substring(contextPath.length());
+                    if ("getProtocol".equals(name)) return "HTTP/1.1";
+                    if ("getParameter".equals(name)) return parameters.get((String) args[0]);
+                    if ("getHeader".equals(name)) return requestHeaders.get(((String) args[0]).toLowerCase());
+                    if ("getHeaders".equals(name)) {
+                        String value = requestHeaders.get(((String) args[0]).toLowerCase());
+                        return Collections.enumeration(value == null ? Collections.<String>emptyList() : Collections.singletonList(value));
+                    }
+                    if ("getHeaderNames".equals(name)) return Collections.enumeration(requestHeaders.keySet());
+                    Class<?> type = method.getReturnType();
+                    if (type == long.class) return -1L;
+                    if (type == int.class) return -1;
+                    if (type == boolean.class) return false;
+                    return null;
+                }
+            });
+    }
+
+    private HttpServletResponse response() {
+        final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletExchange.class.getClassLoader(),
+            new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getOutputStream".equals(name)) return outputStream;
+                    if ("getCharacterEncoding".equals(name)) return "UTF-8";
+                    if ("setContentType".equals(name)) responseHeaders.put("content-type", (String) args[0]);
+                    if ("setContentLength".equals(name)) contentLength = (Integer) args[0];
+                    if ("setStatus".equals(name) || "sendError".equals(name)) status = (Integer) args[0];
+                    if (name.matches("(set|add)(Int|Date)?Header")) {
+                        responseHeaders.put(((String) args[0]).toLowerCase(), String.valueOf(args[1]));
+                    }
+                    if ("containsHeader".equals(name)) return responseHeaders.containsKey(((String) args[0]).toLowerCase());
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) return false;
+                    if (type == int.class) return 0;
+                    return null;
+                }
+            });
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletConfig;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bundles listed in the warm up manifest or used in JSPs are merged and cached by JSCSSMergeServlet during init
+ */
+public class WarmUpTest {
+
+    private static final String TIMINGS_ATTRIBUTE = JSCSSMergeServlet.WARM_UP_TIMINGS_ATTRIBUTE_PREFIX + "merge";
+
+    private File webappDir;
+
+    private FileServletContext context;
+
+    private JSCSSMergeServlet servlet;
+
+    private final Map<String, String> initParams = new HashMap<String, String>();
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        write("js/a.js", "function a(first, second) {\n    return first + second;\n}\n");
+        write("js/b.js", "function b(first, second) {\n    return first - second;\n}\n");
+        write("css/a.css", "a{background:url(../img/x.png)}\n");
+        write("img/x.png", "png");
+        write("WEB-INF/bundles.txt", "# bundles to warm up\n/js/a,b.js\n\n/js/missing.js\n");
+        write("index.jsp", "<wu:url value=\"/css/a.css\"/>\n<c:url value='/js/b.js'/>\n"
+            + "<wu:url value=\"/img/x.png\"/>\n<wu:url value=\"${base}/js/a.js\"/>\n");
+        write("WEB-INF/lib/skipped.jsp", "<wu:url value=\"/js/a.js\"/>\n");
+        context = new FileServletContext(webappDir);
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_USE_CACHE, "true");
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_PRECOMPRESS, "true");
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS, "/app");
+    }
+
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        ResourceMetadataRegistry.remove(context);
+        delete(webappDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(String path, String contents) throws Exception {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charset.forName("UTF-8"));
+    }
+
+    private void init() throws Exception {
+        servlet = new JSCSSMergeServlet();
+        servlet.init((ServletConfig) Proxy.newProxyInstance(WarmUpTest.class.getClassLoader(),
+            new Class[]{ServletConfig.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getServletContext".equals(method.getName())) return context;
+                    if ("getServletName".equals(method.getName())) return "merge";
+                    if ("getInitParameter".equals(method.getName())) return initParams.get((String) args[0]);
+                    if ("getInitParameterNames".equals(method.getName())) return Collections.enumeration(initParams.keySet());
+                    return null;
+                }
+            }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> timings() {
+        return (Map<String, Long>) context.getAttribute(TIMINGS_ATTRIBUTE);
+    }
+
+    @Test
+    public void testManifestBundlesAreWarmedUp() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/bundles.txt");
+        init();
+        Map<String, Long> timings = timings();
+        Assert.assertEquals(2, timings.size()); //comments and blank lines skipped
+        Assert.assertTrue(timings.get("/js/a,b.js") >= 0);
+        Assert.assertEquals(Long.valueOf(-1), timings.get("/js/missing.js"));
+    }
+
+    @Test
+    public void testFirstRequestIsServedFromCache() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/bundles.txt");
+        init();
+        ServletExchange first = new ServletExchange("/app", "/app/js/a,b.js").header("Accept-Encoding", "gzip").send(servlet);
+        Assert.assertEquals("gzip", first.getHeader("Content-Encoding")); //encoded copies are served only from cache
+        String merged = new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(first.getBody()))), "UTF-8");
+        Assert.assertEquals(new ServletExchange("/app", "/app/js/a,b.js?_skipcache_=1").send(servlet).getBodyAsString(), merged);
+    }
+
+    @Test
+    public void testJSPsAreScanned() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_SCAN_JSPS, "true");
+        init();
+        Map<String, Long> timings = timings();
+        Assert.assertEquals(2, timings.size()); //only JS and CSS, not dynamic ones nor the ones in WEB-INF/lib
+        Assert.assertTrue(timings.get("/css/a.css") >= 0);
+        Assert.assertTrue(timings.get("/js/b.js") >= 0);
+        ServletExchange css = new ServletExchange("/app", "/app/css/a.css").header("Accept-Encoding", "gzip").send(servlet);
+        Assert.assertEquals("gzip", css.getHeader("Content-Encoding"));
+        String warmedUp = new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(css.getBody()))), "UTF-8");
+        Assert.assertTrue(warmedUp, warmedUp.startsWith("a{background:url(/app/img/x_wu_"));
+    }
+
+    @Test
+    public void testManifestAndJSPsTogether() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/bundles.txt");
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_SCAN_JSPS, "true");
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_THREADS, "1");
+        init();
+        Assert.assertEquals(4, timings().size());
+    }
+
+    @Test
+    public void testMissingManifest() throws Exception {
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/missing.txt");
+        init();
+        Assert.assertTrue(timings().isEmpty());
+    }
+
+    @Test
+    public void testSkippedWithoutCache() throws Exception {
+        initParams.remove(JSCSSMergeServlet.INIT_PARAM_USE_CACHE);
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/bundles.txt");
+        init();
+        Assert.assertNull(timings());
+    }
+
+    @Test
+    public void testSkippedWhenContextPathIsNotKnown() throws Exception {
+        initParams.remove(JSCSSMergeServlet.INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS); //and servlet 2.4 context has none
+        initParams.put(JSCSSMergeServlet.INIT_PARAM_WARM_UP_MANIFEST, "/WEB-INF/bundles.txt");
+        init();
+        Assert.assertNull(timings());
+    }
+
+    @Test
+    public void testNoWarmUpByDefault() throws Exception {
+        init();
+        Assert.assertNull(timings());
+        ServletExchange first = new ServletExchange("/app", "/app/js/a,b.js").header("Accept-Encoding", "gzip").send(servlet);
+        Assert.assertNull(first.getHeader("Content-Encoding"));
+    }
+
+}
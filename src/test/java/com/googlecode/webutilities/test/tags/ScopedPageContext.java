@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.tags;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Page context keeping the attributes per scope, for the tag tests not needing a full mock container
+ */
+public class ScopedPageContext extends PageContext {
+
+    private final ServletContext servletContext;
+
+    private final Map<Integer, Map<String, Object>> scopes = new HashMap<Integer, Map<String, Object>>();
+
+    public ScopedPageContext(ServletContext servletContext) {
+        this.servletContext = servletContext;
+        for (int scope = PAGE_SCOPE; scope <= APPLICATION_SCOPE; scope++) {
+            scopes.put(scope, new HashMap<String, Object>());
+        }
+    }
+
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    public void setAttribute(String name, Object value) {
+        setAttribute(name, value, PAGE_SCOPE);
+    }
+
+    public void setAttribute(String name, Object value, int scope) {
+        scopes.get(scope).put(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        return getAttribute(name, PAGE_SCOPE);
+    }
+
+    public Object getAttribute(String name, int scope) {
+        return scopes.get(scope).get(name);
+    }
+
+    public Object findAttribute(String name) {
+        int scope = getAttributesScope(name);
+        return scope == 0 ? null : getAttribute(name, scope);
+    }
+
+    public void removeAttribute(String name) {
+        for (Map<String, Object> attributes : scopes.values()) {
+            attributes.remove(name);
+        }
+    }
+
+    public void removeAttribute(String name, int scope) {
+        scopes.get(scope).remove(name);
+    }
+
+    public int getAttributesScope(String name) {
+        for (int scope = PAGE_SCOPE; scope <= APPLICATION_SCOPE; scope++) {
+            if (scopes.get(scope).containsKey(name)) {
+                return scope;
+            }
+        }
+        return 0;
+    }
+
+    public Enumeration getAttributeNamesInScope(int scope) {
+        return Collections.enumeration(scopes.get(scope).keySet());
+    }
+
+    public void initialize(Servlet servlet, ServletRequest request, ServletResponse response, String errorPageURL,
+                           boolean needsSession, int bufferSize, boolean autoFlush) {
+    }
+
+    public void release() {
+    }
+
+    public HttpSession getSession() {
+        return null;
+    }
+
+    public Object getPage() {
+        return null;
+    }
+
+    public ServletRequest getRequest() {
+        return null;
+    }
+
+    public ServletResponse getResponse() {
+        return null;
+    }
+
+    public Exception getException() {
+        return null;
+    }
+
+    public ServletConfig getServletConfig() {
+        return null;
+    }
+
+    public void forward(String relativeUrlPath) {
+    }
+
+    public void include(String relativeUrlPath) {
+    }
+
+    public void include(String relativeUrlPath, boolean flush) {
+    }
+
+    public void handlePageException(Exception e) {
+    }
+
+    public void handlePageException(Throwable t) {
+    }
+
+    public JspWriter getOut() {
+        return null;
+    }
+
+    public ExpressionEvaluator getExpressionEvaluator() {
+        return null;
+    }
+
+    public VariableResolver getVariableResolver() {
+        return null;
+    }
+
+}
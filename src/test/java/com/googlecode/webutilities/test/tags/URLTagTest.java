@@ -16,14 +16,104 @@
 
 package com.googlecode.webutilities.test.tags;
 
+import com.google.common.io.Files;
+import com.googlecode.webutilities.tags.URLTag;
+import com.googlecode.webutilities.test.util.FileServletContext;
+import com.googlecode.webutilities.util.BundleManifest;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import com.googlecode.webutilities.util.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 
-//!TODO Implementation
+import javax.servlet.jsp.PageContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
 public class URLTagTest {
 
+    private File webappDir;
+
+    private FileServletContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        write("/js/a.js", "var a = 1;");
+        write("/js/b.js", "var b = 2;");
+        BundleManifest.write(Collections.singletonMap("/js/a,b.js", "/js/a,b_wu_0123abcd.js"),
+            new File(webappDir, BundleManifest.DEFAULT_MANIFEST_PATH));
+        context = new FileServletContext(webappDir);
+    }
+
+    @After
+    public void tearDown() {
+        ResourceMetadataRegistry.remove(context);
+        delete(webappDir);
+    }
+
+    private void write(String path, String contents) throws IOException {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charset.forName("UTF-8"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private String url(String value) throws Exception {
+        PageContext pageContext = new ScopedPageContext(context);
+        URLTag tag = new URLTag();
+        tag.setPageContext(pageContext);
+        tag.setContext("/app");
+        tag.setValue(value);
+        tag.setVar("url");
+        tag.doStartTag();
+        tag.doEndTag();
+        return (String) pageContext.getAttribute("url");
+    }
+
+    private String runtimeURL(String value) {
+        String eTag = Utils.buildETagForResources(Utils.findResourcesToMerge("/app", value), context);
+        return "/app" + Utils.addFingerPrint(eTag, value);
+    }
+
     @Test
-    public void testTagUsingDifferentScenarios() throws Exception {
+    public void testTagUsingManifest() throws Exception {
+        context.setInitParameter(BundleManifest.CONTEXT_PARAM_MANIFEST, BundleManifest.DEFAULT_MANIFEST_PATH);
+        Assert.assertEquals("/app/js/a,b_wu_0123abcd.js", url("/js/a,b.js"));
+        Assert.assertEquals("/app/js/a,b_wu_0123abcd.js", url("//js//a,b.js"));
+    }
 
+    @Test
+    public void testTagFallsBackWhenBundleNotInManifest() throws Exception {
+        context.setInitParameter(BundleManifest.CONTEXT_PARAM_MANIFEST, BundleManifest.DEFAULT_MANIFEST_PATH);
+        String url = url("/js/b,a.js");
+        Assert.assertTrue(url, url.matches("/app/js/b,a_wu_[^.]+\\.js"));
+        Assert.assertEquals(runtimeURL("/js/b,a.js"), url);
+    }
+
+    @Test
+    public void testTagFallsBackWhenManifestMissing() throws Exception {
+        context.setInitParameter(BundleManifest.CONTEXT_PARAM_MANIFEST, "/WEB-INF/missing.properties");
+        Assert.assertEquals(runtimeURL("/js/a,b.js"), url("/js/a,b.js"));
+    }
+
+    @Test
+    public void testTagWithoutManifest() throws Exception {
+        String url = url("/js/a,b.js");
+        Assert.assertTrue(url, url.matches("/app/js/a,b_wu_[^.]+\\.js"));
+        Assert.assertEquals(runtimeURL("/js/a,b.js"), url);
     }
 
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.googlecode.webutilities.util.BundleCompiler;
+import com.googlecode.webutilities.util.BundleManifest;
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+public class BundleCompilerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File webappDir;
+
+    private File outputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        webappDir = Files.createTempDir();
+        outputDir = Files.createTempDir();
+        write("/js/a.js", "function a(first, second) {\n    return first + second;\n}\n");
+        write("/js/b.js", "var b = a(1, 2);\n");
+        write("/css/a.css", "a {\n    background: url(../img/x.png);\n}\n");
+        write("/css/b.css", "b {\n    color: red;\n}");
+        write("/img/x.png", "png");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(webappDir);
+        delete(outputDir);
+    }
+
+    private void write(String path, String contents) throws IOException {
+        File file = new File(webappDir, path);
+        Files.createParentDirs(file);
+        Files.write(contents, file, UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String gunzip(File file) throws IOException {
+        InputStream inputStream = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return new String(ByteStreams.toByteArray(inputStream), UTF_8);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void testCompileWritesFingerprintedArtifacts() throws Exception {
+        BundleCompiler compiler = new BundleCompiler(webappDir, outputDir);
+        compiler.setContextPath("/app");
+        Map<String, String> artifacts = compiler.compile(Arrays.asList("/js/a,b.js", "/css/a,b.css"));
+
+        Assert.assertEquals(Arrays.asList("/js/a,b.js", "/css/a,b.css"), Arrays.asList(artifacts.keySet().toArray()));
+        String js = artifacts.get("/js/a,b.js");
+        Assert.assertTrue(js, js.matches("/js/a,b_wu_[^.]+\\.js"));
+        String jsContents = Files.toString(new File(outputDir, js), UTF_8);
+        Assert.assertTrue("not minified: " + jsContents, jsContents.startsWith("function a(d,c){return d+c}"));
+        Assert.assertTrue(jsContents, jsContents.contains("b=a(1,2);"));
+        Assert.assertEquals(jsContents, gunzip(new File(outputDir, js + ".gz")));
+
+        String css = artifacts.get("/css/a,b.css");
+        Assert.assertTrue(css, css.matches("/css/a,b_wu_[^.]+\\.css"));
+        String cssContents = Files.toString(new File(outputDir, css), UTF_8);
+        Assert.assertTrue("url not rewritten: " + cssContents, cssContents.matches(".*url\\(/app/img/x_wu_[^.]+\\.png\\).*"));
+        Assert.assertTrue(cssContents, cssContents.contains("b{color:red}"));
+        Assert.assertEquals(cssContents, gunzip(new File(outputDir, css + ".gz")));
+    }
+
+    @Test
+    public void testCompileIsRepeatable() throws Exception {
+        BundleCompiler compiler = new BundleCompiler(webappDir, outputDir);
+        String first = compiler.compile(Collections.singletonList("/js/a,b.js")).get("/js/a,b.js");
+        String second = new BundleCompiler(webappDir, outputDir).compile(Collections.singletonList("/js/a,b.js")).get("/js/a,b.js");
+        Assert.assertEquals(first, second);
+        write("/js/b.js", "var b = a(2, 1);\n");
+        String changed = new BundleCompiler(webappDir, outputDir).compile(Collections.singletonList("/js/a,b.js")).get("/js/a,b.js");
+        Assert.assertFalse(first.equals(changed));
+    }
+
+    @Test
+    public void testCompileWithoutMinifyAndGzip() throws Exception {
+        BundleCompiler compiler = new BundleCompiler(webappDir, outputDir);
+        compiler.setMinify(false);
+        compiler.setGzip(false);
+        String js = compiler.compile(Collections.singletonList("/js/a,b.js")).get("/js/a,b.js");
+        Assert.assertEquals("function a(first, second) {\n    return first + second;\n}\nvar b = a(1, 2);\n",
+            Files.toString(new File(outputDir, js), UTF_8));
+        Assert.assertFalse(new File(outputDir, js + ".gz").exists());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testCompileFailsOnMissingResource() throws Exception {
+        new BundleCompiler(webappDir, outputDir).compile(Collections.singletonList("/js/a,missing.js"));
+    }
+
+    @Test
+    public void testManifestResolvesCompiledBundles() throws Exception {
+        Map<String, String> artifacts = new BundleCompiler(webappDir, outputDir).compile(Arrays.asList("/js/a,b.js", "/css/a.css"));
+        BundleManifest.write(artifacts, new File(outputDir, BundleManifest.DEFAULT_MANIFEST_PATH));
+
+        FileServletContext context = new FileServletContext(outputDir);
+        context.setInitParameter(BundleManifest.CONTEXT_PARAM_MANIFEST, BundleManifest.DEFAULT_MANIFEST_PATH);
+        try {
+            BundleManifest manifest = BundleManifest.getInstance(context);
+            Assert.assertNotNull(manifest);
+            Assert.assertSame(manifest, BundleManifest.getInstance(context));
+            Assert.assertEquals(artifacts, manifest.getArtifacts());
+
+            String js = artifacts.get("/js/a,b.js");
+            Assert.assertEquals(js, manifest.getArtifact("/js/a,b.js"));
+            String fingerprint = manifest.getFingerprint("/js/a,b.js");
+            Assert.assertEquals(js, "/js/a,b_wu_" + fingerprint + ".js");
+            Assert.assertEquals(fingerprint + "-gzip", manifest.getGzipFingerprint("/js/a,b.js"));
+
+            Assert.assertNull(manifest.getArtifact("/js/b,a.js"));
+            Assert.assertNull(manifest.getFingerprint("/js/b,a.js"));
+            Assert.assertNull(manifest.getGzipFingerprint("/js/b,a.js"));
+        } finally {
+            ResourceMetadataRegistry.remove(context);
+        }
+    }
+
+    @Test
+    public void testNoManifestWhenNotConfiguredOrMissing() {
+        FileServletContext context = new FileServletContext(outputDir);
+        Assert.assertNull(BundleManifest.getInstance(context));
+        context.setInitParameter(BundleManifest.CONTEXT_PARAM_MANIFEST, "/WEB-INF/missing.properties");
+        Assert.assertNull(BundleManifest.getInstance(context));
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.util.CSSRewritePlan;
+import com.googlecode.webutilities.util.CSSURLRewriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CSSRewritePlanTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String CSS = "a{background:url(a.png)}\n"
+        + "b{background:url('../img/b.png') no-repeat}\n"
+        + "c{background:url(\"data:image/png;base64,AAAA\")}\n"
+        + "d{background:url( http://x/d.png )}\n"
+        + "e{background:url(/img/e.png)}";
+
+    /**
+     * Resolves relative urls against <code>/css/</code> and keeps the absolute ones (data:, http:) as is
+     */
+    private static class Resolver implements CSSURLRewriter.URLHandler {
+
+        private final List<String> urls = new ArrayList<String>();
+
+        public String rewrite(String url) {
+            urls.add(url);
+            if (url.contains(":")) {
+                return null;
+            }
+            return url.startsWith("/") ? url : "/css/" + url;
+        }
+    }
+
+    /**
+     * Splices the given version into every url
+     */
+    private static class Versioner implements CSSURLRewriter.URLHandler {
+
+        private final String version;
+
+        private final List<String> urls = new ArrayList<String>();
+
+        Versioner(String version) {
+            this.version = version;
+        }
+
+        public String rewrite(String url) {
+            urls.add(url);
+            return "/ctx" + url + "?v=" + version;
+        }
+    }
+
+    private static CSSRewritePlan build(String css, Resolver resolver) throws IOException {
+        return CSSRewritePlan.build(new ByteArrayInputStream(css.getBytes(UTF_8)), UTF_8, resolver);
+    }
+
+    private static String write(CSSRewritePlan plan, CSSURLRewriter.URLHandler splicer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        plan.writeTo(out, splicer);
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    /**
+     * What rewriting the CSS in one go, resolving and splicing each url, writes
+     */
+    private static String rewrite(String css, final Resolver resolver, final CSSURLRewriter.URLHandler splicer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSSURLRewriter.rewrite(new ByteArrayInputStream(css.getBytes(UTF_8)), out, UTF_8, new CSSURLRewriter.URLHandler() {
+            public String rewrite(String url) {
+                String resolved = resolver.rewrite(url);
+                return resolved == null ? null : splicer.rewrite(resolved);
+            }
+        });
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    @Test
+    public void testReplayIsSameAsRewrite() throws Exception {
+        CSSRewritePlan plan = build(CSS, new Resolver());
+        for (String version : new String[]{"1", "2", "1"}) {
+            Assert.assertEquals(rewrite(CSS, new Resolver(), new Versioner(version)), write(plan, new Versioner(version)));
+        }
+    }
+
+    @Test
+    public void testReplaySplicesCurrentReplacements() throws Exception {
+        CSSRewritePlan plan = build(CSS, new Resolver());
+        String first = write(plan, new Versioner("1"));
+        String second = write(plan, new Versioner("2"));
+        Assert.assertTrue(first.contains("url(/ctx/css/a.png?v=1)"));
+        Assert.assertTrue(first.contains("url('/ctx/css/../img/b.png?v=1') no-repeat"));
+        Assert.assertTrue(first.contains("url(/ctx/img/e.png?v=1)"));
+        Assert.assertEquals(first.replace("?v=1", "?v=2"), second);
+    }
+
+    @Test
+    public void testUrlsAreResolvedOnlyWhileBuilding() throws Exception {
+        Resolver resolver = new Resolver();
+        CSSRewritePlan plan = build(CSS, resolver);
+        Assert.assertEquals(5, resolver.urls.size());
+        Assert.assertEquals(Arrays.asList("/css/a.png", "/css/../img/b.png", "/img/e.png"), plan.getResolvedURLs());
+        Versioner splicer = new Versioner("1");
+        write(plan, splicer);
+        write(plan, new Versioner("2"));
+        Assert.assertEquals(5, resolver.urls.size());
+        Assert.assertEquals(plan.getResolvedURLs(), splicer.urls); //only the resolved ones, in order
+    }
+
+    @Test
+    public void testKeptUrlsAreWrittenAsIs() throws Exception {
+        CSSRewritePlan plan = build(CSS, new Resolver());
+        String written = write(plan, new Versioner("1"));
+        Assert.assertTrue(written.contains("url(\"data:image/png;base64,AAAA\")"));
+        Assert.assertTrue(written.contains("url( http://x/d.png )"));
+    }
+
+    @Test
+    public void testResolvedUrlIsWrittenWhenSplicerGivesNone() throws Exception {
+        CSSRewritePlan plan = build(CSS, new Resolver());
+        String written = write(plan, new CSSURLRewriter.URLHandler() {
+            public String rewrite(String url) {
+                return null;
+            }
+        });
+        Assert.assertTrue(written.contains("url(/css/a.png)"));
+        Assert.assertTrue(written.contains("url(/img/e.png)"));
+    }
+
+    @Test
+    public void testLastByte() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals('}', build(CSS, new Resolver()).writeTo(out, new Versioner("1")));
+        Assert.assertEquals('\n', build("a{}\n", new Resolver()).writeTo(out, new Versioner("1")));
+        Assert.assertEquals(-1, build("", new Resolver()).writeTo(out, new Versioner("1")));
+    }
+
+    @Test
+    public void testWithoutUrls() throws Exception {
+        String css = "a{color:red}\nb{color:blue}";
+        CSSRewritePlan plan = build(css, new Resolver());
+        Assert.assertTrue(plan.getResolvedURLs().isEmpty());
+        Assert.assertEquals(css, write(plan, new Versioner("1")));
+        Assert.assertTrue(plan.getSize() >= css.length());
+    }
+
+}
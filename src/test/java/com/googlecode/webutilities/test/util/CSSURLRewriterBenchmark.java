@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.common.Constants;
+import com.googlecode.webutilities.util.CSSURLRewriter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+
+/**
+ * Compares {@link CSSURLRewriter} with the line by line regex rewriting it replaced, on multi line and minified (single
+ * line) CSS. Not run as part of the tests, run its main method:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; com.googlecode.webutilities.test.util.CSSURLRewriterBenchmark [rules]
+ * </pre>
+ * Prints milliseconds and bytes allocated (when the JVM can tell) per rewrite.
+ */
+public final class CSSURLRewriterBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int ITERATIONS = 20;
+
+    private static final CSSURLRewriter.URLHandler HANDLER = new CSSURLRewriter.URLHandler() {
+        public String rewrite(String url) {
+            return "/context/" + url;
+        }
+    };
+
+    private interface Rewriter {
+        void rewrite(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private CSSURLRewriterBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rules = args.length > 0 ? Integer.parseInt(args[0]) : 10000; //regex on single line is quadratic
+        byte[] multiLine = css(rules, "\n");
+        byte[] singleLine = css(rules, "");
+        Rewriter regex = new Rewriter() {
+            public void rewrite(InputStream in, OutputStream out) throws IOException {
+                regexRewrite(in, out);
+            }
+        };
+        Rewriter streaming = new Rewriter() {
+            public void rewrite(InputStream in, OutputStream out) throws IOException {
+                CSSURLRewriter.rewrite(in, out, UTF_8, HANDLER);
+            }
+        };
+        run("regex, multi line", regex, multiLine);
+        run("CSSURLRewriter, multi line", streaming, multiLine);
+        run("regex, single line", regex, singleLine);
+        run("CSSURLRewriter, single line", streaming, singleLine);
+    }
+
+    private static byte[] css(int rules, String separator) {
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; i < rules; i++) {
+            css.append(".rule").append(i).append("{color:#333;margin:0 auto;background:url('img/sprite")
+                .append(i % 100).append(".png') no-repeat 0 -").append(i % 500).append("px}").append(separator);
+        }
+        return css.toString().getBytes(UTF_8);
+    }
+
+    private static void run(String name, Rewriter rewriter, byte[] css) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(css.length * 2);
+        for (int i = 0; i < ITERATIONS; i++) { //warm up
+            out.reset();
+            rewriter.rewrite(new ByteArrayInputStream(css), out);
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            out.reset();
+            rewriter.rewrite(new ByteArrayInputStream(css), out);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        System.out.println(String.format("%-30s %8d bytes in: %8.2f ms, %12s bytes allocated per rewrite",
+            name, css.length, nanos / 1e6 / ITERATIONS, allocated < 0 ? "n/a" : String.valueOf(allocated / ITERATIONS)));
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * How CSS was rewritten before {@link CSSURLRewriter}
+     */
+    private static void regexRewrite(InputStream inputStream, OutputStream outputStream) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+        String line;
+        StringBuffer buffer = new StringBuffer();
+        while ((line = bufferedReader.readLine()) != null) {
+            buffer.setLength(0);
+            buffer.append(line);
+            Matcher matcher = Constants.CSS_IMG_URL_PATTERN.matcher(buffer);
+            while (matcher.find()) {
+                String refImgPath = matcher.group(1);
+                int offset = buffer.indexOf(refImgPath);
+                buffer.replace(offset, offset + refImgPath.length(), HANDLER.rewrite(refImgPath));
+            }
+            outputStream.write((buffer + "\n").getBytes(UTF_8));
+        }
+    }
+
+}
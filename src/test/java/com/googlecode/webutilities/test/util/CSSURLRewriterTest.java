@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.util.CSSRewritePlan;
+import com.googlecode.webutilities.util.CSSURLRewriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CSSURLRewriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Prefixes every url with <code>/x/</code> and records the urls seen
+     */
+    private static class PrefixingHandler implements CSSURLRewriter.URLHandler {
+
+        private final List<String> urls = new ArrayList<String>();
+
+        public String rewrite(String url) {
+            urls.add(url);
+            return url.startsWith("data:") ? null : "/x/" + url;
+        }
+    }
+
+    /**
+     * Returns at most one byte per read, so that every token is split across reads
+     */
+    private static class OneByteInputStream extends FilterInputStream {
+
+        OneByteInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(1, len));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static String rewrite(String css, Charset charset, PrefixingHandler handler) throws IOException {
+        return rewrite(new ByteArrayInputStream(css.getBytes(charset)), charset, charset, handler);
+    }
+
+    private static String rewrite(InputStream in, Charset charset, Charset outCharset, PrefixingHandler handler) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSSURLRewriter.rewrite(in, out, charset, handler);
+        return new String(out.toByteArray(), outCharset);
+    }
+
+    @Test
+    public void testQuotedAndUnquotedURLs() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "a{background:url(a.png)}b{background:URL( 'b.png' )}c{background:url(\"c.png\")}d{background:url( d.png )}";
+        Assert.assertEquals("a{background:url(/x/a.png)}b{background:URL( '/x/b.png' )}c{background:url(\"/x/c.png\")}d{background:url( /x/d.png )}",
+            rewrite(css, UTF_8, handler));
+        Assert.assertEquals(4, handler.urls.size());
+        Assert.assertEquals("d.png", handler.urls.get(3));
+    }
+
+    @Test
+    public void testNotURLs() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "ul{curl:1}.url{x:url}u r l(a.png) urn(a.png) url() url(a(b).png) url('a.png' x)";
+        Assert.assertEquals(css, rewrite(css, UTF_8, handler));
+        Assert.assertTrue(handler.urls.isEmpty());
+    }
+
+    @Test
+    public void testComments() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "/* it's \"quoted\" ( */a{background:url(a.png)}/* url( */b{background:url(b.png)}";
+        Assert.assertEquals("/* it's \"quoted\" ( */a{background:url(/x/a.png)}/* url( */b{background:url(/x/b.png)}",
+            rewrite(css, UTF_8, handler));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "a{background:url(a\\).png)}b{background:url('it\\'s.png')}c{background:url(\"(c).png\")}";
+        Assert.assertEquals("a{background:url(/x/a\\).png)}b{background:url('/x/it\\'s.png')}c{background:url(\"/x/(c).png\")}",
+            rewrite(css, UTF_8, handler));
+        Assert.assertEquals("a\\).png", handler.urls.get(0));
+        Assert.assertEquals("it\\'s.png", handler.urls.get(1));
+    }
+
+    @Test
+    public void testDataURIs() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "a{background:url(data:image/png;base64,iVBORw0KGgo=)}b{background:url('data:image/svg+xml;utf8,<svg>(x)</svg>')}c{background:url(c.png)}";
+        Assert.assertEquals(css.replace("url(c.png)", "url(/x/c.png)"), rewrite(css, UTF_8, handler));
+        Assert.assertEquals(3, handler.urls.size());
+    }
+
+    @Test
+    public void testLongURLIsCopiedAsIs() throws Exception {
+        StringBuilder data = new StringBuilder("data:image/png;base64,");
+        while (data.length() < 10 * 1024) {
+            data.append("iVBORw0KGgourl(");
+        }
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "a{background:url(" + data + ")}b{background:url(b.png)}";
+        Assert.assertEquals(css.replace("url(b.png)", "url(/x/b.png)"), rewrite(css, UTF_8, handler));
+        Assert.assertEquals(1, handler.urls.size());
+    }
+
+    @Test
+    public void testURLSplitAcrossReads() throws Exception {
+        StringBuilder css = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) { //urls at every offset of the 8KB reads
+            css.append("a").append(i).append("{background:url( 'img/").append(i).append(".png' )}");
+            expected.append("a").append(i).append("{background:url( '/x/img/").append(i).append(".png' )}");
+        }
+        Assert.assertEquals(expected.toString(), rewrite(css.toString(), UTF_8, new PrefixingHandler()));
+        String oneByteAtATime = rewrite(new OneByteInputStream(new ByteArrayInputStream(css.toString().getBytes(UTF_8))),
+            UTF_8, UTF_8, new PrefixingHandler());
+        Assert.assertEquals(expected.toString(), oneByteAtATime);
+    }
+
+    @Test
+    public void testCharset() throws Exception {
+        PrefixingHandler handler = new PrefixingHandler();
+        String css = "a{background:url(caf\u00e9.png)}";
+        Assert.assertEquals("a{background:url(/x/caf\u00e9.png)}", rewrite(css, ISO_8859_1, handler));
+        Assert.assertEquals("caf\u00e9.png", handler.urls.get(0));
+    }
+
+    @Test
+    public void testCharsetRule() throws Exception {
+        String css = "@charset \"ISO-8859-1\";a{background:url(caf\u00e9.png)}";
+        PrefixingHandler handler = new PrefixingHandler();
+        //declared charset wins over the one given
+        String rewritten = rewrite(new ByteArrayInputStream(css.getBytes(ISO_8859_1)), UTF_8, ISO_8859_1, handler);
+        Assert.assertEquals("@charset \"ISO-8859-1\";a{background:url(/x/caf\u00e9.png)}", rewritten);
+        Assert.assertEquals("caf\u00e9.png", handler.urls.get(0));
+
+        //not ASCII compatible or unknown charsets are ignored
+        Assert.assertEquals(UTF_8, CSSURLRewriter.detectCharset(
+            new ByteArrayInputStream("@charset \"UTF-16\";".getBytes(UTF_8)), UTF_8));
+        Assert.assertEquals(UTF_8, CSSURLRewriter.detectCharset(
+            new ByteArrayInputStream("@charset \"no-such-charset\";".getBytes(UTF_8)), UTF_8));
+        Assert.assertEquals(UTF_8, CSSURLRewriter.detectCharset(
+            new ByteArrayInputStream("a{}@charset \"ISO-8859-1\";".getBytes(UTF_8)), UTF_8));
+        Assert.assertEquals(UTF_8, CSSURLRewriter.detectCharset(
+            new ByteArrayInputStream(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a'}), ISO_8859_1));
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        String css = "@charset \"ISO-8859-1\";a{background:url(caf\u00e9.png)}b{background:url(http://x/b.png)}";
+        CSSRewritePlan plan = CSSRewritePlan.build(new ByteArrayInputStream(css.getBytes(ISO_8859_1)), UTF_8,
+            new CSSURLRewriter.URLHandler() {
+                public String rewrite(String url) {
+                    return url.startsWith("http:") ? null : "/img/" + url;
+                }
+            });
+        Assert.assertEquals(ISO_8859_1, plan.getCharset());
+        Assert.assertEquals(1, plan.getResolvedURLs().size());
+        for (int i = 0; i < 2; i++) { //written again and again with the current replacements
+            final String version = String.valueOf(i);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            plan.writeTo(out, new CSSURLRewriter.URLHandler() {
+                public String rewrite(String url) {
+                    return url + "?v=" + version;
+                }
+            });
+            Assert.assertEquals("@charset \"ISO-8859-1\";a{background:url(/img/caf\u00e9.png?v=" + version + ")}b{background:url(http://x/b.png)}",
+                new String(out.toByteArray(), ISO_8859_1));
+        }
+    }
+
+}
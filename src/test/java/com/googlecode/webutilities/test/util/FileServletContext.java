@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Servlet context serving the resources from a directory, for the tests not needing a full mock container
+ */
+public class FileServletContext implements ServletContext {
+
+    private final File root;
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    private final Map<String, String> initParameters = new HashMap<String, String>();
+
+    public FileServletContext(File root) {
+        this.root = root;
+    }
+
+    public void setInitParameter(String name, String value) {
+        initParameters.put(name, value);
+    }
+
+    public String getRealPath(String path) {
+        return new File(root, path).getPath();
+    }
+
+    public URL getResource(String path) throws MalformedURLException {
+        File file = new File(root, path);
+        return file.exists() ? file.toURI().toURL() : null;
+    }
+
+    public InputStream getResourceAsStream(String path) {
+        try {
+            return new FileInputStream(new File(root, path));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+    }
+
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public Enumeration getAttributeNames() {
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    public String getInitParameter(String name) {
+        return initParameters.get(name);
+    }
+
+    public Enumeration getInitParameterNames() {
+        return Collections.enumeration(initParameters.keySet());
+    }
+
+    public ServletContext getContext(String uripath) {
+        return null;
+    }
+
+    public int getMajorVersion() {
+        return 2;
+    }
+
+    public int getMinorVersion() {
+        return 4;
+    }
+
+    public String getMimeType(String file) {
+        return null;
+    }
+
+    public Set getResourcePaths(String path) {
+        File[] files = new File(root, path).listFiles();
+        if (files == null) {
+            return null;
+        }
+        String directory = path.endsWith("/") ? path : path + "/";
+        Set<String> paths = new HashSet<String>();
+        for (File file : files) {
+            paths.add(directory + file.getName() + (file.isDirectory() ? "/" : ""));
+        }
+        return paths;
+    }
+
+    public RequestDispatcher getRequestDispatcher(String path) {
+        return null;
+    }
+
+    public RequestDispatcher getNamedDispatcher(String name) {
+        return null;
+    }
+
+    public Servlet getServlet(String name) {
+        return null;
+    }
+
+    public Enumeration getServlets() {
+        return Collections.enumeration(Collections.emptySet());
+    }
+
+    public Enumeration getServletNames() {
+        return Collections.enumeration(Collections.emptySet());
+    }
+
+    public void log(String msg) {
+    }
+
+    public void log(Exception exception, String msg) {
+    }
+
+    public void log(String message, Throwable throwable) {
+    }
+
+    public String getServerInfo() {
+        return "FileServletContext";
+    }
+
+    public String getServletContextName() {
+        return root.getName();
+    }
+
+}
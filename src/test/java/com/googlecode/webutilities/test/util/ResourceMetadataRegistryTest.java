@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ResourceMetadataRegistryTest {
+
+    private File root;
+
+    private FileServletContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("registry", "");
+        Assert.assertTrue(root.delete() && root.mkdir());
+        write(new File(root, "a.css"), "a{}");
+        write(new File(root, "b.css"), "b{}");
+        context = new FileServletContext(new File(new File(root, "sub"), "..")); //real paths not normalized
+    }
+
+    @After
+    public void tearDown() {
+        ResourceMetadataRegistry.remove(context);
+        new File(root, "a.css").delete();
+        new File(root, "b.css").delete();
+        root.delete();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testKeyIsNormalized() {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        String key = registry.keyOf("/a.css");
+        Assert.assertEquals(new File(root, "a.css").toPath().toAbsolutePath().normalize().toString(), key);
+        ResourceMetadataRegistry.ResourceMetadata metadata = registry.get("/a.css");
+        Assert.assertTrue(metadata.isFile());
+        Assert.assertEquals(3, metadata.getSize());
+        Assert.assertSame(metadata, registry.getByRealPath(key));
+        Assert.assertSame(metadata, registry.getByRealPath(context.getRealPath("/a.css")));
+    }
+
+    @Test
+    public void testInvalidateNotifiesDependents() {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        String a = registry.keyOf("/a.css");
+        String b = registry.keyOf("/b.css");
+        registry.getDependencyGraph().addDependency("bundle", a);
+        registry.getDependencyGraph().addDependency("bundle", b);
+        RecordingListener listener = new RecordingListener(0);
+        registry.addInvalidationListener(listener);
+        ResourceMetadataRegistry.ResourceMetadata metadata = registry.get("/a.css");
+        registry.invalidate(a);
+        Assert.assertTrue(listener.invalidated.contains(a));
+        Assert.assertTrue(listener.invalidated.contains("bundle"));
+        Assert.assertFalse(listener.invalidated.contains(b));
+        Assert.assertNotSame(metadata, registry.get("/a.css"));
+    }
+
+    @Test
+    public void testInvalidateAllNotifies() {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        RecordingListener listener = new RecordingListener(0);
+        registry.addInvalidationListener(listener);
+        ResourceMetadataRegistry.ResourceMetadata metadata = registry.get("/a.css");
+        registry.invalidateAll();
+        Assert.assertEquals(1, listener.invalidatedAll);
+        Assert.assertNotSame(metadata, registry.get("/a.css"));
+    }
+
+    @Test
+    public void testChangeIsWatched() throws Exception {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        String key = registry.keyOf("/a.css");
+        Assert.assertEquals(3, registry.get("/a.css").getSize()); //starts watching the directory
+        RecordingListener listener = new RecordingListener(1);
+        registry.addInvalidationListener(listener);
+        write(new File(root, "a.css"), "a{b:c}");
+        Assert.assertTrue("change not detected", listener.latch.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(listener.invalidated.contains(key));
+        Assert.assertEquals(6, registry.get("/a.css").getSize());
+    }
+
+    @Test
+    public void testLastReleaseCloses() {
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.acquire(context);
+        Assert.assertSame(registry, ResourceMetadataRegistry.acquire(context));
+        RecordingListener listener = new RecordingListener(0);
+        registry.addInvalidationListener(listener);
+        ResourceMetadataRegistry.release(context, listener);
+        Assert.assertSame(registry, ResourceMetadataRegistry.getInstance(context));
+        registry.invalidateAll();
+        Assert.assertEquals(0, listener.invalidatedAll); //removed on release
+        ResourceMetadataRegistry.release(context);
+        Assert.assertNull(context.getAttribute(ResourceMetadataRegistry.class.getName()));
+        Assert.assertNotSame(registry, ResourceMetadataRegistry.getInstance(context));
+    }
+
+    private static class RecordingListener implements ResourceMetadataRegistry.InvalidationListener {
+
+        private final List<String> invalidated = new CopyOnWriteArrayList<String>();
+
+        private final CountDownLatch latch;
+
+        private volatile int invalidatedAll;
+
+        RecordingListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        public void invalidated(String key) {
+            invalidated.add(key);
+            latch.countDown();
+        }
+
+        public void invalidatedAll() {
+            invalidatedAll++;
+            latch.countDown();
+        }
+    }
+
+
+    @Test
+    public void testResourcesKeptAreBounded() {
+        context.setInitParameter(ResourceMetadataRegistry.CONTEXT_PARAM_MAX_RESOURCES, "10");
+        ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertFalse(registry.get("/missing" + i + ".css").exists());
+        }
+        Assert.assertTrue("kept " + registry.size(), registry.size() <= 10);
+        Assert.assertTrue(registry.get("/a.css").isFile()); //read again once forgotten
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2011 Rajendra Patil
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import com.googlecode.webutilities.util.ResourceMetadataRegistry;
+import com.googlecode.webutilities.util.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+public class UtilsTest {
+
+    private static final List<String> RESOURCES = Collections.singletonList("/resources/js/a.js");
+
+    @Test
+    public void testETagNotModified() throws Exception {
+        Assert.assertFalse(Utils.isAnyResourceETagModified(RESOURCES, "abc123", "abc123", null));
+    }
+
+    @Test
+    public void testEncodedETagNotModified() throws Exception {
+        Assert.assertFalse(Utils.isAnyResourceETagModified(RESOURCES, "abc123-gzip", "abc123", null));
+        Assert.assertFalse(Utils.isAnyResourceETagModified(RESOURCES, "abc123-deflate", "abc123", null));
+        Assert.assertFalse(Utils.isAnyResourceETagModified(RESOURCES, "abc123-br", "abc123", null));
+    }
+
+    @Test
+    public void testETagModified() throws Exception {
+        Assert.assertTrue(Utils.isAnyResourceETagModified(RESOURCES, "abc124", "abc123", null));
+        Assert.assertTrue(Utils.isAnyResourceETagModified(RESOURCES, "abc124-gzip", "abc123", null));
+        Assert.assertTrue(Utils.isAnyResourceETagModified(RESOURCES, "abc123-zip", "abc123", null));
+        Assert.assertTrue(Utils.isAnyResourceETagModified(RESOURCES, "abc123gzip", "abc123", null));
+        Assert.assertTrue(Utils.isAnyResourceETagModified(RESOURCES, null, "abc123", null));
+    }
+
+    @Test
+    public void testCSSETagFollowsImages() throws Exception {
+        File root = File.createTempFile("utils", "");
+        Assert.assertTrue(root.delete() && new File(root, "css").mkdirs() && new File(root, "img").mkdirs());
+        File css = new File(root, "css/a.css");
+        File img = new File(root, "img/x.png");
+        FileServletContext context = new FileServletContext(root);
+        try {
+            write(css, "a{background:url(../img/x.png)}");
+            write(img, "abc");
+            ResourceMetadataRegistry registry = ResourceMetadataRegistry.getInstance(context);
+            String eTag = Utils.buildETagForResource("/css/a.css", context);
+            Assert.assertNotNull(eTag);
+            Assert.assertEquals(eTag, registry.getCompositeETag(registry.get("/css/a.css"))); //kept, not computed again
+            Assert.assertEquals(eTag, Utils.buildETagForResource("/css/a.css", context));
+
+            write(img, "abcdef");
+            registry.invalidate(registry.keyOf("/img/x.png"));
+            String changed = Utils.buildETagForResource("/css/a.css", context);
+            Assert.assertFalse(eTag.equals(changed));
+            Assert.assertEquals(changed, Utils.buildETagForResource("/css/a.css", context));
+        } finally {
+            ResourceMetadataRegistry.remove(context);
+            Assert.assertTrue(css.delete() && img.delete() && css.getParentFile().delete() && img.getParentFile().delete() && root.delete());
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}